@@ -1,14 +1,28 @@
+import groovy.transform.Field
+import java.security.DigestInputStream
 import java.security.MessageDigest
+import java.util.concurrent.Callable
+import java.util.concurrent.ExecutionException
+import java.util.concurrent.Executors
+import org.apache.http.client.config.RequestConfig
+import org.apache.http.client.methods.HttpGet
+import org.apache.http.client.methods.HttpPut
+import org.apache.http.client.utils.URIBuilder
 import org.apache.http.entity.FileEntity
+import org.apache.http.impl.client.HttpClients
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager
+import org.apache.http.util.EntityUtils
 import groovyx.net.http.*
 
 /************************************************************************************
  *
  * Provide helpers to interact with Artifactory Repository through REST service.
- * This class provides 3 helpers:
+ * This class provides 5 helpers:
  * 1.  Publishing a file on zFS to an artifactory repository.
  * 2.  Downloading a remote file from artifactory repository to zFS.
  * 3.  Retrieve the latest uploaded artifact from a remote path in artifactory.
+ * 4.  Publishing many files in parallel, skipping the upload of files already on the server.
+ * 5.  Downloading many files in parallel, resuming interrupted downloads.
  *
  * Note:  In order to use this class, you need to download the following dependencies.
  * These dependencies can be downloaded from Maven Central Repository:
@@ -26,6 +40,17 @@ import groovyx.net.http.*
  ************************************************************************************/
 
 
+//Size of the buffer files are streamed through
+@Field static final int BUFFER_SIZE = 64 * 1024
+//Default number of parallel transfers of publishAll and downloadAll
+@Field static final int DEFAULT_CONCURRENCY = 4
+//Attempts of a batch download, later attempts resume where the previous one stopped
+@Field static final int DOWNLOAD_ATTEMPTS = 3
+//Timeouts of the batch transfers: to connect, to get a pooled connection, and between two packets of a response
+@Field static final int CONNECT_TIMEOUT_MILLIS = 30 * 1000
+@Field static final int CONNECTION_REQUEST_TIMEOUT_MILLIS = 5 * 60 * 1000
+@Field static final int SOCKET_TIMEOUT_MILLIS = 2 * 60 * 1000
+
 /**
  * Publish a file from HFS to an artifactory repository at location specified in remoteFilePath
  */
@@ -41,9 +66,11 @@ def publish(serverUrl, repo, apiKey, remoteFilePath, File localFile)
     //Artifactory URL must end with '/'
     def url = serverUrl.endsWith('/') ? serverUrl : serverUrl + '/'
 
-    //Create SHA1 and MD5 checksums to be published along with the file
-    def sha1 = getChecksum(localFile)
-    def md5 = getChecksum(localFile, "MD5")
+    //Create SHA1 and MD5 checksums to be published along with the file, in a single read of it.
+    //The upload itself streams the file from disk.
+    def checksums = getChecksums(localFile)
+    def sha1 = checksums.sha1
+    def md5 = checksums.md5
        
     def filePath = "$repo/$remoteFilePath" 
     
@@ -72,25 +99,282 @@ def download(serverUrl, repo, apiKey, remoteFilePath, File localFile)
     def filePath = "$repo/$remoteFilePath"
     
     def restClient = new RESTClient(url)
-    restClient.encoder.'application/zip' = this.&encodeZipFile
-    def response = restClient.get(path: filePath, headers: ['X-JFrog-Art-Api' : apiKey, responseContentType: 'application/zip'])
     
-    assert response.isSuccess(), "Failed to retrieve file $filePath"
+    //Stream the contents to a temporary file next to the local file, computing the checksums while the bytes move.
+    //The closure gets the response before it is buffered, so the file is never held in memory.
+    //The local file is only replaced once the download is complete, a failed one leaves it as it was.
+    def tempFile = File.createTempFile(localFile.name, '.part', localFile.absoluteFile.parentFile)
+    try
+    {
+        def expectedSha1, expectedMd5, actual
+        restClient.get(path: filePath, headers: ['X-JFrog-Art-Api' : apiKey], contentType: ContentType.BINARY) { response, inputStream ->
+            expectedSha1 = response.headers['X-Checksum-Sha1']?.value
+            expectedMd5 = response.headers['X-Checksum-Md5']?.value
+            tempFile.withOutputStream { outputStream ->
+                actual = copyWithChecksums(inputStream, outputStream)
+            }
+        }
+        
+        //Compare with the remote file checksums to ensure the transfer is complete
+        assert actual.sha1 == expectedSha1 && actual.md5 == expectedMd5, "The downloaded file $localFile does not have the right checksum"
+        
+        !localFile.exists() ?: localFile.delete()
+        assert tempFile.renameTo(localFile), "Failed to move $tempFile to $localFile"
+    }
+    finally
+    {
+        tempFile.delete()
+    }
     
-    //Write the contents to the local file
-    def inputStream = response.data    
-    !localFile.exists() ?: localFile.delete()
-    localFile << inputStream.bytes
+    println "Successfully download $filePath to $localFile"
+}
+
+/**
+ * Publish many files in parallel over a shared pool of connections.
+ * files maps the path of each file in the repository to the local file.
+ * Each file is first deployed by checksum only, so its content is sent only if the server doesn't have it yet.
+ * Return a map of each path to 'uploaded' or 'checksum-deployed'
+ */
+def publishAll(serverUrl, repo, apiKey, Map files, int concurrency = DEFAULT_CONCURRENCY)
+{
+    assert serverUrl != null, "Need to specify a valid URL to artifactory server"
+    assert repo != null, "Need to specify a valid artifactory repository"
+    assert apiKey != null, "Need to specify a valid API key to authenticate with $repo"
+    files.each { remoteFilePath, localFile ->
+        assert localFile != null && localFile.exists(), "Local file $localFile of $remoteFilePath must exist"
+    }
     
-    //Retrieve the remote file checksums to do comparison to ensure
-    //the transfer is complete
-    def expectedSha1 = response.headers['X-Checksum-Sha1'].value
-    def expectedMd5 = response.headers['X-Checksum-Md5'].value    
-    def actualSha1 = getChecksum(localFile)
-    def actualMd5 = getChecksum(localFile, "MD5")    
-    assert actualSha1 == expectedSha1 && actualMd5 == expectedMd5, "The downloaded file $localFile does not have the right checksum"
+    def url = serverUrl.endsWith('/') ? serverUrl : serverUrl + '/'
+    return transferAll(files, concurrency) { client, remoteFilePath, localFile ->
+        publishWithClient(client, getFileUri(url, repo, remoteFilePath), apiKey, localFile)
+    }
+}
+
+/**
+ * Download many files in parallel over a shared pool of connections.
+ * files maps the path of each file in the repository to the local file to download it to.
+ * Files are downloaded to a '.part' file next to the target first. An interrupted download is resumed from
+ * where it stopped, in the same call or the next one, and the target is replaced only once the checksums match.
+ * A resumed download asks for the rest only if the file is still the one the '.part' file has the start of
+ * (If-Range with its ETag or Last-Modified, kept in a '.part.validator' file), and starts over otherwise.
+ * Return a map of each path to its local file
+ */
+def downloadAll(serverUrl, repo, apiKey, Map files, int concurrency = DEFAULT_CONCURRENCY)
+{
+    assert serverUrl != null, "Need to specify a valid URL to artifactory server"
+    assert repo != null, "Need to specify a valid artifactory repository"
+    assert apiKey != null, "Need to specify a valid API key to authenticate with $repo"
     
-    println "Successfully download $filePath to $localFile"
+    def url = serverUrl.endsWith('/') ? serverUrl : serverUrl + '/'
+    return transferAll(files, concurrency) { client, remoteFilePath, localFile ->
+        downloadWithClient(client, getFileUri(url, repo, remoteFilePath), apiKey, (File) localFile)
+    }
+}
+
+/**
+ * Return the URI of a file in a repository, url ending with '/'.
+ * The path is percent-encoded, so characters like the '#' of z/OS dataset names or spaces are part of the path.
+ */
+def getFileUri(url, repo, remoteFilePath)
+{
+    def builder = new URIBuilder(url)
+    return builder.setPath("${builder.path ?: '/'}$repo/$remoteFilePath").build()
+}
+
+/**
+ * Run transfer for every entry of files on a pool of concurrency threads sharing one pooled HTTP client
+ */
+def transferAll(Map files, int concurrency, Closure transfer)
+{
+    assert concurrency > 0, "Concurrency must be positive"
+    
+    def connectionManager = new PoolingHttpClientConnectionManager()
+    connectionManager.maxTotal = concurrency
+    connectionManager.defaultMaxPerRoute = concurrency
+    def requestConfig = RequestConfig.custom()
+            .setConnectTimeout(CONNECT_TIMEOUT_MILLIS)
+            .setConnectionRequestTimeout(CONNECTION_REQUEST_TIMEOUT_MILLIS)
+            .setSocketTimeout(SOCKET_TIMEOUT_MILLIS)
+            .build()
+    def client = HttpClients.custom().setConnectionManager(connectionManager).setDefaultRequestConfig(requestConfig).build()
+    def executor = Executors.newFixedThreadPool(concurrency)
+    try
+    {
+        def futures = files.collectEntries { remoteFilePath, localFile ->
+            [(remoteFilePath): executor.submit({ transfer(client, remoteFilePath, localFile) } as Callable)]
+        }
+        def results = [:]
+        def failures = []
+        futures.each { remoteFilePath, future ->
+            try
+            {
+                results[remoteFilePath] = future.get()
+            }
+            catch (ExecutionException e)
+            {
+                failures << "$remoteFilePath: ${e.cause.message}"
+            }
+        }
+        assert failures.isEmpty(), "Failed to transfer ${failures.size()} of ${files.size()} files:\n${failures.join('\n')}"
+        return results
+    }
+    finally
+    {
+        executor.shutdownNow()
+        client.close()
+    }
+}
+
+def publishWithClient(client, fileUrl, apiKey, File localFile)
+{
+    def checksums = getChecksums(localFile)
+    
+    //Checksum deploy: the server links the file to content it already has, or answers 404 if it has none
+    def checksumPut = new HttpPut(fileUrl)
+    setDeployHeaders(checksumPut, apiKey, checksums)
+    checksumPut.setHeader('X-Checksum-Deploy', 'true')
+    def status = execute(client, checksumPut)
+    if (status in 200..299)
+    {
+        println "Successfully deployed $localFile to $fileUrl by checksum"
+        return 'checksum-deployed'
+    }
+    assert status == 404, "Failed to publish file $localFile by checksum, status $status"
+    
+    def put = new HttpPut(fileUrl)
+    setDeployHeaders(put, apiKey, checksums)
+    put.entity = new FileEntity(localFile)
+    put.entity.setContentType('application/octet-stream')
+    status = execute(client, put)
+    assert status in 200..299, "Failed to publish file $localFile, status $status"
+    
+    println "Successfully publish file $localFile to $fileUrl"
+    return 'uploaded'
+}
+
+def setDeployHeaders(request, apiKey, checksums)
+{
+    request.setHeader('X-JFrog-Art-Api', apiKey)
+    request.setHeader('X-Checksum-Sha1', checksums.sha1)
+    request.setHeader('X-Checksum-MD5', checksums.md5)
+}
+
+/**
+ * Execute a request whose response body isn't needed, returning the connection to the pool
+ */
+def execute(client, request)
+{
+    def response = client.execute(request)
+    try
+    {
+        EntityUtils.consume(response.entity)
+        return response.statusLine.statusCode
+    }
+    finally
+    {
+        response.close()
+    }
+}
+
+def downloadWithClient(client, fileUrl, apiKey, File localFile)
+{
+    def partFile = new File(localFile.path + '.part')
+    def validatorFile = new File(partFile.path + '.validator')
+    for (int attempt = 1; ; attempt++)
+    {
+        try
+        {
+            downloadPart(client, fileUrl, apiKey, localFile, partFile, validatorFile)
+            return localFile
+        }
+        catch (IOException e)
+        {
+            if (attempt >= DOWNLOAD_ATTEMPTS)
+            {
+                throw e
+            }
+            println "Download of $fileUrl interrupted after ${partFile.length()} bytes, resuming: ${e.message}"
+        }
+    }
+}
+
+/**
+ * Download fileUrl to partFile, continuing from its current length if validatorFile tells which version of the file
+ * it holds the start of, then move it to localFile
+ */
+def downloadPart(client, fileUrl, apiKey, File localFile, File partFile, File validatorFile)
+{
+    def sha1 = MessageDigest.getInstance('SHA1')
+    def md5 = MessageDigest.getInstance('MD5')
+    def get = new HttpGet(fileUrl)
+    get.setHeader('X-JFrog-Art-Api', apiKey)
+    if (partFile.length() > 0 && validatorFile.exists())
+    {
+        //The server sends the whole file instead of the range if it doesn't match the validator any more
+        get.setHeader('Range', "bytes=${partFile.length()}-")
+        get.setHeader('If-Range', validatorFile.text)
+    }
+    def response = client.execute(get)
+    try
+    {
+        def status = response.statusLine.statusCode
+        if (status == 416)
+        {
+            //The part file is no prefix of the remote file (it changed), start over
+            EntityUtils.consume(response.entity)
+            partFile.delete()
+            validatorFile.delete()
+            throw new IOException("Range of partial download $partFile not satisfiable")
+        }
+        assert status == 200 || status == 206, "Failed to retrieve file $fileUrl, status $status"
+        
+        def append = status == 206
+        if (append)
+        {
+            //The digests must cover the bytes downloaded before
+            partFile.withInputStream { inputStream -> copyWithDigests(inputStream, null, sha1, md5) }
+        }
+        else
+        {
+            //A new download, possibly of a changed file: remember which version the part file is the start of.
+            //A weak ETag can't be used in If-Range, without a strong validator the download can't be resumed.
+            def etag = response.getFirstHeader('ETag')?.value
+            def validator = etag != null && !etag.startsWith('W/') ? etag : response.getFirstHeader('Last-Modified')?.value
+            if (validator != null)
+            {
+                validatorFile.text = validator
+            }
+            else
+            {
+                validatorFile.delete()
+            }
+        }
+        new FileOutputStream(partFile, append).withStream { outputStream ->
+            response.entity.content.withStream { inputStream ->
+                copyWithDigests(inputStream, outputStream, sha1, md5)
+            }
+        }
+        
+        def expectedSha1 = response.getFirstHeader('X-Checksum-Sha1')?.value
+        def expectedMd5 = response.getFirstHeader('X-Checksum-Md5')?.value
+        def actualSha1 = sha1.digest().encodeHex().toString()
+        def actualMd5 = md5.digest().encodeHex().toString()
+        if (actualSha1 != expectedSha1 || actualMd5 != expectedMd5)
+        {
+            partFile.delete()
+            validatorFile.delete()
+            assert false, "The downloaded file $localFile does not have the right checksum"
+        }
+    }
+    finally
+    {
+        response.close()
+    }
+    
+    !localFile.exists() ?: localFile.delete()
+    assert partFile.renameTo(localFile), "Failed to move $partFile to $localFile"
+    validatorFile.delete()
+    println "Successfully download $fileUrl to $localFile"
 }
 
 /**
@@ -127,8 +411,51 @@ def getChecksum(File file, type = 'SHA1')
     assert file.exists(), "$file does not exist"
     
     def digest = MessageDigest.getInstance(type)
-    digest.update(file.bytes)
-    return new BigInteger(1,digest.digest()).toString(16)
+    def buffer = new byte[BUFFER_SIZE]
+    file.withInputStream { inputStream ->
+        int read
+        while ((read = inputStream.read(buffer)) != -1)
+        {
+            digest.update(buffer, 0, read)
+        }
+    }
+    return digest.digest().encodeHex().toString()
+}
+
+/**
+ * Return the SHA1 and MD5 checksums of a file, reading it once
+ */
+def getChecksums(File file)
+{
+    assert file.exists(), "$file does not exist"
+    
+    return file.withInputStream { inputStream -> copyWithChecksums(inputStream, null) }
+}
+
+/**
+ * Copy a stream with a bounded buffer, if outputStream is null only read it.
+ * Return the SHA1 and MD5 checksums of the bytes copied, as zero padded hex strings.
+ */
+def copyWithChecksums(InputStream inputStream, OutputStream outputStream)
+{
+    def sha1 = MessageDigest.getInstance('SHA1')
+    def md5 = MessageDigest.getInstance('MD5')
+    copyWithDigests(inputStream, outputStream, sha1, md5)
+    return [sha1: sha1.digest().encodeHex().toString(), md5: md5.digest().encodeHex().toString()]
+}
+
+/**
+ * Copy a stream with a bounded buffer updating both digests, if outputStream is null only read it
+ */
+def copyWithDigests(InputStream inputStream, OutputStream outputStream, MessageDigest sha1, MessageDigest md5)
+{
+    def digestStream = new DigestInputStream(new DigestInputStream(inputStream, sha1), md5)
+    def buffer = new byte[BUFFER_SIZE]
+    int read
+    while ((read = digestStream.read(buffer)) != -1)
+    {
+        outputStream?.write(buffer, 0, read)
+    }
 }
 
 def static encodeZipFile(Object data) throws UnsupportedEncodingException
@@ -0,0 +1,204 @@
+import com.sun.net.httpserver.HttpServer
+import groovyx.net.http.HttpResponseException
+import java.security.MessageDigest
+
+/************************************************************************************
+ * Test the downloads and batch transfers of ArtifactoryHelpers against a stub Artifactory server
+ * running in this JVM.
+ *
+ * Run from this directory with the dependencies on the class path:
+ *
+ *        groovy -cp "dependencies/*" ArtifactoryHelpersTest.groovy
+ *
+ * The script fails on the first assertion that doesn't hold.
+ ************************************************************************************/
+
+def apiKey = 'test-key'
+def repo = 'libs-local'
+
+//Stub state: the repository's files by path, the checksums it has content for, and the requests it got
+def stored = [:].asSynchronized()
+def knownSha1 = [] as Set
+def requests = [].asSynchronized()
+//Paths whose next GET is cut after this many bytes of the body
+def interruptAfter = [:].asSynchronized()
+//Paths served with a SHA1 checksum header that doesn't match their content
+def wrongChecksum = [] as Set
+
+def server = HttpServer.create(new InetSocketAddress('127.0.0.1', 0), 0)
+server.createContext('/artifactory/') { exchange ->
+    try
+    {
+        def path = exchange.requestURI.path - "/artifactory/$repo/"
+        requests << [method: exchange.requestMethod, rawPath: exchange.requestURI.rawPath, path: path,
+                     headers: exchange.requestHeaders.collectEntries { k, v -> [(k.toLowerCase()): v[0]] }]
+        assert exchange.requestHeaders.getFirst('X-JFrog-Art-Api') == apiKey
+        if (exchange.requestMethod == 'PUT')
+        {
+            def checksum = exchange.requestHeaders.getFirst('X-Checksum-Sha1')
+            if (exchange.requestHeaders.getFirst('X-Checksum-Deploy') == 'true')
+            {
+                if (checksum in knownSha1)
+                {
+                    stored[path] = 'by checksum'
+                    respond(exchange, 201)
+                }
+                else
+                {
+                    respond(exchange, 404)
+                }
+                return
+            }
+            def body = exchange.requestBody.bytes
+            assert sha1(body) == checksum, "Uploaded content of $path doesn't match its checksum header"
+            stored[path] = body
+            knownSha1 << checksum
+            respond(exchange, 201)
+            return
+        }
+        byte[] content = stored[path]
+        if (content == null)
+        {
+            respond(exchange, 404)
+            return
+        }
+        def etag = '"' + sha1(content) + '"'
+        exchange.responseHeaders.add('ETag', etag)
+        exchange.responseHeaders.add('X-Checksum-Sha1', path in wrongChecksum ? sha1(new byte[0]) : sha1(content))
+        exchange.responseHeaders.add('X-Checksum-Md5', md5(content))
+        def range = exchange.requestHeaders.getFirst('Range')
+        def ifRange = exchange.requestHeaders.getFirst('If-Range')
+        int from = 0
+        if (range != null && (ifRange == null || ifRange == etag))
+        {
+            from = (range =~ /bytes=(\d+)-/)[0][1] as int
+            exchange.responseHeaders.add('Content-Range', "bytes $from-${content.length - 1}/${content.length}")
+            exchange.sendResponseHeaders(206, content.length - from)
+        }
+        else
+        {
+            exchange.sendResponseHeaders(200, content.length)
+        }
+        def cut = interruptAfter.remove(path)
+        exchange.responseBody.write(content, from, cut != null ? cut : content.length - from)
+        exchange.responseBody.flush()
+    }
+    catch (Throwable t)
+    {
+        //Fails the client side, the stub's own failure is only visible here
+        t.printStackTrace()
+        throw t
+    }
+    finally
+    {
+        //Closing a body shorter than announced drops the connection, which is how a download is interrupted
+        try
+        {
+            exchange.close()
+        }
+        catch (IOException ignored)
+        {
+        }
+    }
+}
+server.start()
+
+def helpersClass = new GroovyClassLoader(getClass().getClassLoader()).parseClass(new File('./ArtifactoryHelpers.groovy'))
+def helpers = (GroovyObject) helpersClass.newInstance()
+def url = "http://127.0.0.1:${server.address.port}/artifactory"
+def dir = File.createTempDir()
+try
+{
+    def random = new Random(42)
+    def bytes = { int size -> def b = new byte[size]; random.nextBytes(b); b }
+
+    //publishAll: content the server already has is deployed by checksum, the rest is uploaded after the 404
+    def existing = new File(dir, 'existing.bin')
+    existing.bytes = bytes(10000)
+    knownSha1 << sha1(existing.bytes)
+    def fresh = new File(dir, 'fresh.bin')
+    fresh.bytes = bytes(200000)
+    def results = helpers.publishAll(url, repo, apiKey, ['a/existing.bin': existing, 'a/USER.LOAD#1.bin': fresh])
+    assert results == ['a/existing.bin': 'checksum-deployed', 'a/USER.LOAD#1.bin': 'uploaded']
+    assert stored['a/USER.LOAD#1.bin'] == fresh.bytes
+    assert requests.find { it.path == 'a/USER.LOAD#1.bin' }.rawPath == "/artifactory/$repo/a/USER.LOAD%231.bin"
+    assert requests.count { it.path == 'a/existing.bin' } == 1
+    println 'publishAll: checksum deploy and 404 fallback OK'
+
+    //downloadAll: a download cut off in the middle is resumed with a Range for the rest
+    requests.clear()
+    def target = new File(dir, 'downloaded.bin')
+    interruptAfter['a/USER.LOAD#1.bin'] = 70000
+    assert helpers.downloadAll(url, repo, apiKey, ['a/USER.LOAD#1.bin': target]) == ['a/USER.LOAD#1.bin': target]
+    assert target.bytes == fresh.bytes
+    assert requests.size() == 2
+    assert requests[0].headers.range == null
+    assert requests[1].headers.range == 'bytes=70000-'
+    assert requests[1].headers.'if-range' == '"' + sha1(fresh.bytes) + '"'
+    assert !new File(target.path + '.part').exists() && !new File(target.path + '.part.validator').exists()
+    println 'downloadAll: Range resume OK'
+
+    //downloadAll: a part file of a version that changed since is replaced, not appended to
+    requests.clear()
+    def changed = new File(dir, 'changed.bin')
+    new File(changed.path + '.part').bytes = bytes(5000)
+    new File(changed.path + '.part.validator').text = '"stale"'
+    stored['a/changed.bin'] = bytes(30000)
+    helpers.downloadAll(url, repo, apiKey, ['a/changed.bin': changed])
+    assert changed.bytes == stored['a/changed.bin']
+    assert requests.size() == 1 && requests[0].headers.'if-range' == '"stale"'
+    println 'downloadAll: changed artifact restarted OK'
+    
+    //download: a file that isn't there or arrives corrupted leaves the local file as it was, and no partial file
+    def single = new File(dir, 'single.bin')
+    single.text = 'previous'
+    assert failure { helpers.download(url, repo, apiKey, 'a/missing.bin', single) } instanceof HttpResponseException
+    assert single.text == 'previous'
+    stored['a/corrupted.bin'] = bytes(100000)
+    wrongChecksum << 'a/corrupted.bin'
+    assert failure { helpers.download(url, repo, apiKey, 'a/corrupted.bin', single) } instanceof AssertionError
+    assert single.text == 'previous'
+    helpers.download(url, repo, apiKey, 'a/changed.bin', single)
+    assert single.bytes == stored['a/changed.bin']
+    assert dir.list().findAll { it.startsWith('single.bin') } == ['single.bin']
+    println 'download: replaced only once complete OK'
+}
+finally
+{
+    server.stop(0)
+    dir.deleteDir()
+}
+
+/**
+ * Answer with a small JSON body like Artifactory does, the stub server drops the connection after a response without
+ * a body
+ */
+static void respond(exchange, int status)
+{
+    def body = '{}'.bytes
+    exchange.sendResponseHeaders(status, body.length)
+    exchange.responseBody.write(body)
+}
+
+static Throwable failure(Closure action)
+{
+    try
+    {
+        action()
+    }
+    catch (Throwable t)
+    {
+        return t
+    }
+    assert false, 'Expected a failure'
+}
+
+static String sha1(byte[] content)
+{
+    MessageDigest.getInstance('SHA1').digest(content).encodeHex().toString()
+}
+
+static String md5(byte[] content)
+{
+    MessageDigest.getInstance('MD5').digest(content).encodeHex().toString()
+}
@@ -0,0 +1,274 @@
+/*
+ *
+ * Artifactory is a binaries repository manager.
+ * Copyright (C) 2016 JFrog Ltd.
+ *
+ * Artifactory is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ * Artifactory is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with Artifactory.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package org.jfrog.storage.util;
+
+import org.jfrog.storage.JdbcHelper;
+import org.jfrog.storage.util.functional.SQLThrowingFunction;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.sql.DataSource;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.DatabaseMetaData;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Asynchronous variants of the {@link DbUtils} connection helpers for one data source.
+ * <p>
+ * At most as many calls as the pool has connections run at once, the others wait in a queue without holding a thread,
+ * so nothing ever blocks in {@link DataSource#getConnection()} waiting for the pool. A call that times out or whose
+ * future is cancelled has its statements cancelled and closed, which frees its connection.
+ */
+public class AsyncDbHelper implements AutoCloseable {
+    private static final Logger log = LoggerFactory.getLogger(AsyncDbHelper.class);
+
+    public static final int DEFAULT_MAX_CONCURRENCY = 10;
+    private static final String[] POOL_SIZE_GETTERS = {"getMaxActive", "getMaxTotal", "getMaximumPoolSize"};
+
+    private final DataSource dataSource;
+    private final Semaphore permits;
+    private final Queue<Call<?>> pending = new ConcurrentLinkedQueue<>();
+    private final ExecutorService executor;
+    private final ScheduledExecutorService timer;
+    private volatile boolean closed;
+
+    /**
+     * Runs as many calls at once as the pool's max active connections, when the data source tells it (tomcat, dbcp
+     * and Hikari pools do), {@value #DEFAULT_MAX_CONCURRENCY} otherwise.
+     */
+    public AsyncDbHelper(JdbcHelper jdbcHelper) {
+        this(jdbcHelper, getMaxPoolSize(jdbcHelper.getDataSource()));
+    }
+
+    public AsyncDbHelper(JdbcHelper jdbcHelper, int maxConcurrency) {
+        if (maxConcurrency < 1) {
+            throw new IllegalArgumentException("Max concurrency must be positive: " + maxConcurrency);
+        }
+        this.dataSource = jdbcHelper.getDataSource();
+        this.permits = new Semaphore(maxConcurrency);
+        this.executor = Executors.newFixedThreadPool(maxConcurrency, daemonThreads("db-async-"));
+        this.timer = Executors.newSingleThreadScheduledExecutor(daemonThreads("db-async-timeout-"));
+    }
+
+    public <T> CompletableFuture<T> withConnection(SQLThrowingFunction<Connection, T, SQLException> whatToDo) {
+        return submit(whatToDo, 0, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @param timeout Time from now, including the time waiting for a connection, after which the call fails with a
+     *                {@link TimeoutException} and its statements are cancelled
+     */
+    public <T> CompletableFuture<T> withConnection(SQLThrowingFunction<Connection, T, SQLException> whatToDo,
+            long timeout, TimeUnit unit) {
+        return submit(whatToDo, timeout, unit);
+    }
+
+    public <T> CompletableFuture<T> withMetadata(SQLThrowingFunction<DatabaseMetaData, T, SQLException> whatToDo) {
+        return submit(conn -> whatToDo.apply(conn.getMetaData()), 0, TimeUnit.MILLISECONDS);
+    }
+
+    public <T> CompletableFuture<T> withMetadata(SQLThrowingFunction<DatabaseMetaData, T, SQLException> whatToDo,
+            long timeout, TimeUnit unit) {
+        return submit(conn -> whatToDo.apply(conn.getMetaData()), timeout, unit);
+    }
+
+    /**
+     * @return Number of calls waiting for a connection
+     */
+    public int getPendingCount() {
+        return pending.size();
+    }
+
+    /**
+     * Fails the pending calls and stops the threads, running calls are interrupted.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        Call<?> call;
+        while ((call = pending.poll()) != null) {
+            call.future.completeExceptionally(new CancellationException("Closed before the call started"));
+        }
+        executor.shutdownNow();
+        timer.shutdownNow();
+    }
+
+    private <T> CompletableFuture<T> submit(SQLThrowingFunction<Connection, T, SQLException> whatToDo, long timeout,
+            TimeUnit unit) {
+        Call<T> call = new Call<>(whatToDo);
+        if (closed) {
+            call.future.completeExceptionally(new IllegalStateException("Async helper is closed"));
+            return call.future;
+        }
+        if (timeout > 0) {
+            ScheduledFuture<?> expiry = timer.schedule(() -> call.future.completeExceptionally(
+                    new TimeoutException("Database call timed out after " + unit.toMillis(timeout) + "ms")),
+                    timeout, unit);
+            call.future.whenComplete((result, e) -> expiry.cancel(false));
+        }
+        // Timed out or cancelled by the caller, stop whatever the call is running
+        call.future.whenComplete((result, e) -> {
+            if (e != null) {
+                call.abort();
+            }
+        });
+        pending.add(call);
+        dispatch();
+        return call.future;
+    }
+
+    /**
+     * Starts pending calls while there are free permits. Called on submit and whenever a call ends, so a call queued
+     * right as the last permit was released is still picked up.
+     */
+    private void dispatch() {
+        while (!pending.isEmpty() && permits.tryAcquire()) {
+            Call<?> call = pending.poll();
+            if (call == null) {
+                permits.release();
+                continue;
+            }
+            try {
+                executor.execute(() -> {
+                    try {
+                        call.run();
+                    } finally {
+                        permits.release();
+                        dispatch();
+                    }
+                });
+            } catch (RuntimeException e) {
+                permits.release();
+                call.future.completeExceptionally(e);
+            }
+        }
+    }
+
+    static int getMaxPoolSize(DataSource dataSource) {
+        for (String getter : POOL_SIZE_GETTERS) {
+            try {
+                Object size = dataSource.getClass().getMethod(getter).invoke(dataSource);
+                if (size instanceof Integer && (Integer) size > 0) {
+                    return (Integer) size;
+                }
+            } catch (NoSuchMethodException e) {
+                // Not this kind of pool
+            } catch (Exception e) {
+                log.debug("Could not read pool size with {}: {}", getter, e.getMessage());
+            }
+        }
+        log.debug("Pool size of {} unknown, defaulting to {}", dataSource, DEFAULT_MAX_CONCURRENCY);
+        return DEFAULT_MAX_CONCURRENCY;
+    }
+
+    private static ThreadFactory daemonThreads(String prefix) {
+        AtomicInteger count = new AtomicInteger();
+        return r -> {
+            Thread thread = new Thread(r, prefix + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+
+    private class Call<T> {
+        private final SQLThrowingFunction<Connection, T, SQLException> work;
+        private final CompletableFuture<T> future = new CompletableFuture<>();
+        private final Set<Statement> statements = ConcurrentHashMap.newKeySet();
+
+        Call(SQLThrowingFunction<Connection, T, SQLException> work) {
+            this.work = work;
+        }
+
+        void run() {
+            if (future.isDone()) {
+                // Cancelled or timed out while pending
+                return;
+            }
+            ConnectionLease lease = null;
+            try {
+                lease = ConnectionLease.acquire(dataSource, work);
+                future.complete(work.apply(trackStatements(lease.getConnection())));
+            } catch (Throwable e) {
+                future.completeExceptionally(e);
+            } finally {
+                statements.clear();
+                if (lease != null) {
+                    lease.release();
+                }
+            }
+        }
+
+        void abort() {
+            for (Statement statement : statements) {
+                try {
+                    statement.cancel();
+                } catch (SQLException e) {
+                    log.debug("Could not cancel statement: {}", e.getMessage());
+                }
+                DbUtils.close(statement);
+            }
+        }
+
+        /**
+         * @return A view of the connection that remembers the statements it creates, so they can be aborted
+         */
+        private Connection trackStatements(Connection conn) {
+            return (Connection) Proxy.newProxyInstance(AsyncDbHelper.class.getClassLoader(),
+                    new Class<?>[]{Connection.class}, (proxy, method, args) -> {
+                        Object result = invoke(conn, method, args);
+                        if (result instanceof Statement) {
+                            statements.add((Statement) result);
+                            if (future.isDone()) {
+                                abort();
+                            }
+                        }
+                        return result;
+                    });
+        }
+    }
+
+    private static Object invoke(Object target, Method method, Object[] args) throws Throwable {
+        try {
+            return method.invoke(target, args);
+        } catch (InvocationTargetException e) {
+            throw e.getCause();
+        }
+    }
+}
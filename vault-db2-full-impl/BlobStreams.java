@@ -0,0 +1,297 @@
+/*
+ *
+ * Artifactory is a binaries repository manager.
+ * Copyright (C) 2016 JFrog Ltd.
+ *
+ * Artifactory is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ * Artifactory is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with Artifactory.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package org.jfrog.storage.util;
+
+import lombok.AccessLevel;
+import lombok.NoArgsConstructor;
+import org.jfrog.storage.DbType;
+import org.jfrog.storage.JdbcHelper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import java.io.BufferedInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+/**
+ * Moves binaries in and out of BLOB columns as streams, so storing or serving a file takes a fixed amount of heap
+ * whatever its size. Both directions compute the checksum of the bytes while they pass through.
+ * <p>
+ * On DB2 the JCC driver only streams LOBs it reads when progressive streaming is on ({@code progressiveStreaming=1},
+ * the default against servers that support it). With it off the whole value is materialized in the driver before the
+ * first byte is returned, so make sure the connection URL doesn't turn it off.
+ */
+@NoArgsConstructor(access = AccessLevel.PRIVATE)
+public abstract class BlobStreams {
+    private static final Logger log = LoggerFactory.getLogger(BlobStreams.class);
+
+    public static final String DEFAULT_CHECKSUM_ALGORITHM = "SHA-1";
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * Executes the insert or update {@param sql}, binding {@param in} to the parameter at {@param blobIndex} (1 based)
+     * and {@param params} to the other parameters in order. The driver reads the stream in chunks while sending it.
+     *
+     * @param length Exact number of bytes in the stream, the driver needs it up front to stream the value. A stream
+     *               that turns out shorter or longer fails the statement from within the driver's read, so no row is
+     *               written, and is reported as an IOException
+     * @return The hex {@value #DEFAULT_CHECKSUM_ALGORITHM} checksum of the written bytes
+     */
+    public static String writeBlob(Connection conn, String sql, int blobIndex, InputStream in, long length,
+            Object... params) throws SQLException, IOException {
+        if (blobIndex < 1 || blobIndex > params.length + 1) {
+            throw new IllegalArgumentException("BLOB parameter index out of range: " + blobIndex);
+        }
+        ExactLengthInputStream checksumStream =
+                new ExactLengthInputStream(new BufferedInputStream(in, BUFFER_SIZE), length);
+        try (PreparedStatement stmt = conn.prepareStatement(sql)) {
+            int paramIndex = 0;
+            for (int i = 1; i <= params.length + 1; i++) {
+                if (i == blobIndex) {
+                    stmt.setBinaryStream(i, checksumStream, length);
+                } else {
+                    stmt.setObject(i, params[paramIndex++]);
+                }
+            }
+            stmt.executeUpdate();
+        } catch (SQLException e) {
+            if (checksumStream.getFailure() != null) {
+                throw new IOException(checksumStream.getFailure().getMessage(), e);
+            }
+            throw e;
+        }
+        if (checksumStream.getFailure() != null) {
+            // The driver swallowed the failed read
+            throw checksumStream.getFailure();
+        }
+        if (checksumStream.getCount() != length) {
+            throw new IOException("Expected the driver to read " + length + " bytes but it read " +
+                    checksumStream.getCount());
+        }
+        String checksum = checksumStream.getChecksum();
+        log.debug("Wrote BLOB of {} bytes with checksum {}", length, checksum);
+        return checksum;
+    }
+
+    /**
+     * Runs {@param sql} and returns the BLOB in the first column of its first row as a stream read from the database
+     * as it's consumed. The stream holds a connection until it is closed, so always close it.
+     *
+     * @return The BLOB stream, or null if there is no row or the value is null
+     */
+    @Nullable
+    public static ChecksumInputStream readBlob(JdbcHelper jdbcHelper, DbType dbType, String sql, Object... params)
+            throws SQLException {
+        ConnectionLease lease = ConnectionLease.acquire(jdbcHelper.getDataSource(), BlobStreams.class);
+        StreamingQuery query = null;
+        try {
+            query = StreamingQuery.open(lease.getConnection(), dbType, sql, params);
+            ResultSet rs = query.getResultSet();
+            InputStream blob = rs.next() ? rs.getBinaryStream(1) : null;
+            if (blob != null) {
+                return new ResultChecksumInputStream(blob, query, lease);
+            }
+        } catch (SQLException | RuntimeException e) {
+            close(query, lease);
+            throw e;
+        }
+        close(query, lease);
+        return null;
+    }
+
+    private static void close(@Nullable StreamingQuery query, ConnectionLease lease) {
+        try {
+            if (query != null) {
+                query.close();
+            }
+        } finally {
+            lease.release();
+        }
+    }
+
+    /**
+     * A stream that digests and counts the bytes read through it.
+     */
+    public static class ChecksumInputStream extends FilterInputStream {
+        private final MessageDigest digest;
+        private long count;
+        private String checksum;
+
+        ChecksumInputStream(InputStream in, String algorithm) {
+            super(in);
+            try {
+                digest = MessageDigest.getInstance(algorithm);
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalArgumentException("Unsupported checksum algorithm: " + algorithm, e);
+            }
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = in.read();
+            if (b != -1) {
+                digest.update((byte) b);
+                count++;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = in.read(b, off, len);
+            if (n > 0) {
+                digest.update(b, off, n);
+                count += n;
+            }
+            return n;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            if (n <= 0) {
+                return 0;
+            }
+            // Skipped bytes must still be digested
+            byte[] buffer = new byte[(int) Math.min(n, 8192)];
+            long skipped = 0;
+            int read;
+            while (skipped < n && (read = read(buffer, 0, (int) Math.min(buffer.length, n - skipped))) != -1) {
+                skipped += read;
+            }
+            return skipped;
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+
+        /**
+         * @return Number of bytes read so far
+         */
+        public long getCount() {
+            return count;
+        }
+
+        /**
+         * @return Hex checksum of the read bytes, only meaningful once the stream was read to the end since it can
+         * only be computed once
+         */
+        public String getChecksum() {
+            if (checksum != null) {
+                return checksum;
+            }
+            byte[] bytes = digest.digest();
+            StringBuilder hex = new StringBuilder(bytes.length * 2);
+            for (byte b : bytes) {
+                hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+            }
+            checksum = hex.toString();
+            return checksum;
+        }
+    }
+
+    /**
+     * Fails the read that finds the stream shorter or longer than the length given to the driver, while the driver is
+     * still sending the value.
+     */
+    private static class ExactLengthInputStream extends ChecksumInputStream {
+        private final long length;
+        private boolean verified;
+        private IOException failure;
+
+        ExactLengthInputStream(InputStream in, long length) {
+            super(in, DEFAULT_CHECKSUM_ALGORITHM);
+            this.length = length;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            verify(b == -1);
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = super.read(b, off, len);
+            verify(n == -1);
+            return n;
+        }
+
+        private void verify(boolean ended) throws IOException {
+            if (failure == null && !verified) {
+                if (ended && getCount() < length) {
+                    failure = new IOException("Expected a stream of " + length + " bytes but it ended after " +
+                            getCount());
+                } else if (getCount() > length || (getCount() == length && in.read() != -1)) {
+                    failure = new IOException("Expected a stream of " + length + " bytes but it is longer");
+                } else if (getCount() == length) {
+                    verified = true;
+                }
+            }
+            if (failure != null) {
+                throw failure;
+            }
+        }
+
+        @Nullable
+        IOException getFailure() {
+            return failure;
+        }
+    }
+
+    /**
+     * Owns the query and connection the BLOB is read from, which must stay open until the stream is done.
+     */
+    private static class ResultChecksumInputStream extends ChecksumInputStream {
+        private final StreamingQuery query;
+        private final ConnectionLease lease;
+        private boolean closed;
+
+        ResultChecksumInputStream(InputStream in, StreamingQuery query, ConnectionLease lease) {
+            super(in, DEFAULT_CHECKSUM_ALGORITHM);
+            this.query = query;
+            this.lease = lease;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            try {
+                super.close();
+            } finally {
+                BlobStreams.close(query, lease);
+            }
+        }
+    }
+}
@@ -0,0 +1,469 @@
+/*
+ *
+ * Artifactory is a binaries repository manager.
+ * Copyright (C) 2016 JFrog Ltd.
+ *
+ * Artifactory is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ * Artifactory is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with Artifactory.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package org.jfrog.storage.util;
+
+import org.jfrog.storage.DbType;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Writes many rows to one table with as few statements as each database allows:
+ * <ul>
+ * <li>Inserts use a multi-row {@code VALUES} list on DB2 LUW, Postgres, MySQL/MariaDB, MSSQL and Derby, and JDBC
+ * batches of single row inserts on Oracle and DB2 for z/OS (whose drivers turn those into multi-row inserts)</li>
+ * <li>Upserts use {@code MERGE} on DB2, Oracle and MSSQL, {@code ON CONFLICT} on Postgres and
+ * {@code ON DUPLICATE KEY UPDATE} on MySQL/MariaDB. Derby falls back to update-then-insert per row.</li>
+ * </ul>
+ * Rows are split so no statement goes over the driver's parameter marker limit (2100 on MSSQL, 32767 on Postgres and
+ * DB2...) or {@link #maxRowsPerStatement}.
+ * <p>
+ * A multi-row {@code MERGE} or {@code ON CONFLICT} fails if two of its rows have the same key, so upserts only write
+ * the last of the rows sharing a key (compared with {@link Arrays#deepEquals}, so a key must be given as values of the
+ * same Java type throughout).
+ * <p>
+ * Values are bound with {@link PreparedStatement#setObject}, except {@link StreamedValue}s that bind themselves.
+ */
+public class BulkWriter {
+    private static final Logger log = LoggerFactory.getLogger(BulkWriter.class);
+
+    public static final int DEFAULT_MAX_ROWS_PER_STATEMENT = 1000;
+
+    private final DbType dbType;
+    private final String tableName;
+    private final List<String> columns;
+    private final List<String> keyColumns;
+    private int maxRowsPerStatement = DEFAULT_MAX_ROWS_PER_STATEMENT;
+    private volatile ConnectionProfile profile;
+    private volatile Map<String, String> db2ColumnTypes;
+
+    private BulkWriter(DbType dbType, String tableName, List<String> columns, List<String> keyColumns) {
+        if (columns.isEmpty()) {
+            throw new IllegalArgumentException("No columns to write to " + tableName);
+        }
+        for (String keyColumn : keyColumns) {
+            if (!columns.contains(keyColumn)) {
+                throw new IllegalArgumentException("Key column " + keyColumn + " isn't one of the written columns");
+            }
+        }
+        this.dbType = dbType;
+        this.tableName = tableName;
+        this.columns = columns;
+        this.keyColumns = keyColumns;
+    }
+
+    /**
+     * A writer inserting rows holding the values of {@param columns}, in that order.
+     */
+    public static BulkWriter insert(DbType dbType, String tableName, String... columns) {
+        return new BulkWriter(dbType, tableName, Arrays.asList(columns), Collections.emptyList());
+    }
+
+    /**
+     * A writer inserting rows holding the values of {@param columns}, in that order, or updating the non key columns
+     * of the row with the same {@param keyColumns} if there is one. The key columns must have a unique constraint.
+     */
+    public static BulkWriter upsert(DbType dbType, String tableName, List<String> keyColumns, String... columns) {
+        if (keyColumns.isEmpty()) {
+            throw new IllegalArgumentException("Upsert into " + tableName + " needs key columns");
+        }
+        return new BulkWriter(dbType, tableName, Arrays.asList(columns), new ArrayList<>(keyColumns));
+    }
+
+    public BulkWriter maxRowsPerStatement(int maxRowsPerStatement) {
+        if (maxRowsPerStatement < 1) {
+            throw new IllegalArgumentException("Max rows per statement must be positive: " + maxRowsPerStatement);
+        }
+        this.maxRowsPerStatement = maxRowsPerStatement;
+        return this;
+    }
+
+    /**
+     * The profile of the data source written to, as cached by {@link DbUtils#getConnectionProfile}. Without it the
+     * profile is resolved from the first connection written to.
+     */
+    public BulkWriter profile(ConnectionProfile profile) {
+        this.profile = profile;
+        return this;
+    }
+
+    /**
+     * Writes the rows, each holding a value per column. Nothing is committed here.
+     *
+     * @return Total update count as reported by the driver (MySQL counts an updated row twice)
+     */
+    public int write(Connection conn, List<Object[]> rows) throws SQLException {
+        if (rows.isEmpty()) {
+            return 0;
+        }
+        for (Object[] row : rows) {
+            if (row.length != columns.size()) {
+                throw new IllegalArgumentException("Expected " + columns.size() + " values per row but got " +
+                        row.length);
+            }
+        }
+        boolean upsert = !keyColumns.isEmpty();
+        if (upsert) {
+            rows = lastPerKey(rows);
+        }
+        boolean zos = DbType.DB2.equals(dbType) && getProfile(conn).isDb2ForZos();
+        long start = System.nanoTime();
+        int updated;
+        switch (dbType) {
+            case ORACLE:
+                updated = writeBatched(conn, upsert ? oracleMerge() : insertSql(1), rows);
+                break;
+            case DERBY:
+                updated = upsert ? derbyUpsert(conn, rows) : writeMultiRow(conn, rows, this::insertSql);
+                break;
+            case DB2:
+                if (zos) {
+                    updated = writeBatched(conn, upsert ? db2Merge(conn, 1) : insertSql(1), rows);
+                } else {
+                    updated = upsert ? writeMultiRow(conn, rows, rowCount -> db2Merge(conn, rowCount)) :
+                            writeMultiRow(conn, rows, this::insertSql);
+                }
+                break;
+            case MSSQL:
+                updated = writeMultiRow(conn, rows, upsert ? this::mssqlMerge : this::insertSql);
+                break;
+            case POSTGRESQL:
+                updated = writeMultiRow(conn, rows, upsert ? this::postgresUpsert : this::insertSql);
+                break;
+            default:
+                updated = writeMultiRow(conn, rows, upsert ? this::mysqlUpsert : this::insertSql);
+                break;
+        }
+        log.debug("Wrote {} rows to {} in {}ms", rows.size(), tableName, (System.nanoTime() - start) / 1_000_000);
+        return updated;
+    }
+
+    /**
+     * @return Max parameter markers a single statement may have
+     */
+    static int getMaxParameters(DbType dbType) {
+        switch (dbType) {
+            case MSSQL:
+                // 2100 including the ones the driver may add itself
+                return 2000;
+            case MYSQL:
+            case MARIADB:
+            case ORACLE:
+                return 65535;
+            default:
+                return 32767;
+        }
+    }
+
+    int getRowsPerStatement() {
+        return Math.max(1, Math.min(maxRowsPerStatement, getMaxParameters(dbType) / columns.size()));
+    }
+
+    private int writeMultiRow(Connection conn, List<Object[]> rows, StatementBuilder builder) throws SQLException {
+        int chunkSize = getRowsPerStatement();
+        int updated = 0;
+        PreparedStatement full = null;
+        try {
+            for (int from = 0; from < rows.size(); from += chunkSize) {
+                List<Object[]> chunk = rows.subList(from, Math.min(from + chunkSize, rows.size()));
+                if (chunk.size() == chunkSize) {
+                    if (full == null) {
+                        full = conn.prepareStatement(builder.build(chunkSize));
+                    }
+                    updated += executeChunk(full, chunk);
+                } else {
+                    try (PreparedStatement last = conn.prepareStatement(builder.build(chunk.size()))) {
+                        updated += executeChunk(last, chunk);
+                    }
+                }
+            }
+        } finally {
+            DbUtils.close(full);
+        }
+        return updated;
+    }
+
+    private static int executeChunk(PreparedStatement stmt, List<Object[]> chunk) throws SQLException {
+        int index = 1;
+        for (Object[] row : chunk) {
+            for (Object value : row) {
+                setValue(stmt, index++, value);
+            }
+        }
+        return stmt.executeUpdate();
+    }
+
+    private int writeBatched(Connection conn, String sql, List<Object[]> rows) throws SQLException {
+        int updated = 0;
+        try (PreparedStatement stmt = conn.prepareStatement(sql)) {
+            int batched = 0;
+            for (Object[] row : rows) {
+                for (int i = 0; i < row.length; i++) {
+                    setValue(stmt, i + 1, row[i]);
+                }
+                stmt.addBatch();
+                if (++batched >= maxRowsPerStatement) {
+                    updated += sum(stmt.executeBatch());
+                    batched = 0;
+                }
+            }
+            if (batched > 0) {
+                updated += sum(stmt.executeBatch());
+            }
+        }
+        return updated;
+    }
+
+    private static void setValue(PreparedStatement stmt, int index, Object value) throws SQLException {
+        if (value instanceof StreamedValue) {
+            ((StreamedValue) value).bind(stmt, index);
+        } else {
+            stmt.setObject(index, value);
+        }
+    }
+
+    private static int sum(int[] updateCounts) {
+        int sum = 0;
+        for (int count : updateCounts) {
+            // Some drivers only tell a statement succeeded
+            sum += count == Statement.SUCCESS_NO_INFO ? 1 : Math.max(count, 0);
+        }
+        return sum;
+    }
+
+    private int derbyUpsert(Connection conn, List<Object[]> rows) throws SQLException {
+        List<String> updateColumns = getNonKeyColumns().isEmpty() ? keyColumns : getNonKeyColumns();
+        String update = "UPDATE " + tableName + " SET " + join(updateColumns, "", " = ?") + " WHERE " +
+                String.join(" AND ", suffixed(keyColumns, "", " = ?"));
+        int updated = 0;
+        try (PreparedStatement updateStmt = conn.prepareStatement(update);
+             PreparedStatement insertStmt = conn.prepareStatement(insertSql(1))) {
+            for (Object[] row : rows) {
+                int index = 1;
+                for (String column : updateColumns) {
+                    setValue(updateStmt, index++, row[columns.indexOf(column)]);
+                }
+                for (String column : keyColumns) {
+                    setValue(updateStmt, index++, row[columns.indexOf(column)]);
+                }
+                int count = updateStmt.executeUpdate();
+                if (count == 0) {
+                    for (int i = 0; i < row.length; i++) {
+                        setValue(insertStmt, i + 1, row[i]);
+                    }
+                    count = insertStmt.executeUpdate();
+                }
+                updated += count;
+            }
+        }
+        return updated;
+    }
+
+    private String insertSql(int rowCount) {
+        return "INSERT INTO " + tableName + " (" + String.join(", ", columns) + ")" + DbUtils.VALUES + " " +
+                rowMarkers(rowCount);
+    }
+
+    private String postgresUpsert(int rowCount) {
+        List<String> nonKeyColumns = getNonKeyColumns();
+        return insertSql(rowCount) + " ON CONFLICT (" + String.join(", ", keyColumns) + ") DO " +
+                (nonKeyColumns.isEmpty() ? "NOTHING" :
+                        "UPDATE SET " + String.join(", ", assignments(nonKeyColumns, "EXCLUDED.")));
+    }
+
+    private String mysqlUpsert(int rowCount) {
+        List<String> updateColumns = getNonKeyColumns().isEmpty() ? keyColumns : getNonKeyColumns();
+        List<String> assignments = new ArrayList<>();
+        for (String column : updateColumns) {
+            assignments.add(column + " = VALUES(" + column + ")");
+        }
+        return insertSql(rowCount) + " ON DUPLICATE KEY UPDATE " + String.join(", ", assignments);
+    }
+
+    private String mssqlMerge(int rowCount) {
+        // MSSQL insists on the terminator after MERGE
+        return merge("(VALUES " + rowMarkers(rowCount) + ") AS s (" +
+                String.join(", ", columns) + ")") + ";";
+    }
+
+    private String oracleMerge() {
+        return merge("(SELECT " + join(columns, "? ", "") + " FROM DUAL) s");
+    }
+
+    /**
+     * DB2 can't tell the type of an untyped parameter marker in a {@code VALUES} row, so each is cast to its column's
+     * type, read once from the table's metadata.
+     */
+    private String db2Merge(Connection conn, int rowCount) throws SQLException {
+        Map<String, String> types = getDb2ColumnTypes(conn);
+        List<String> casts = new ArrayList<>();
+        for (String column : columns) {
+            casts.add("CAST(? AS " + types.get(column) + ")");
+        }
+        String row = "(" + String.join(", ", casts) + ")";
+        return merge("(VALUES " + String.join(", ", Collections.nCopies(rowCount, row)) +
+                ") AS s (" + String.join(", ", columns) + ")");
+    }
+
+    private String merge(String source) {
+        List<String> conditions = new ArrayList<>();
+        for (String column : keyColumns) {
+            conditions.add("t." + column + " = s." + column);
+        }
+        StringBuilder sql = new StringBuilder("MERGE INTO ").append(tableName).append(" t USING ").append(source)
+                .append(" ON (").append(String.join(" AND ", conditions)).append(")");
+        List<String> nonKeyColumns = getNonKeyColumns();
+        if (!nonKeyColumns.isEmpty()) {
+            // Oracle can't update the columns of the ON clause, so with only key columns there's nothing to update
+            sql.append(" WHEN MATCHED THEN UPDATE SET ").append(String.join(", ", assignments(nonKeyColumns, "s.")));
+        }
+        return sql.append(" WHEN NOT MATCHED THEN INSERT (").append(String.join(", ", columns)).append(")")
+                .append(DbUtils.VALUES).append(" (").append(join(columns, "s.", "")).append(")").toString();
+    }
+
+    private ConnectionProfile getProfile(Connection conn) throws SQLException {
+        ConnectionProfile resolved = profile;
+        if (resolved == null || resolved.getDbType() != dbType) {
+            resolved = ConnectionProfile.resolve(conn, dbType);
+            profile = resolved;
+        }
+        return resolved;
+    }
+
+    /**
+     * Column types as declared, read once from the catalog.
+     */
+    private Map<String, String> getDb2ColumnTypes(Connection conn) throws SQLException {
+        Map<String, String> types = db2ColumnTypes;
+        if (types != null) {
+            return types;
+        }
+        ConnectionProfile resolved = getProfile(conn);
+        Map<String, String> tableTypes = Db2Catalog.getColumnTypes(conn, resolved, resolved.normalize(tableName));
+        types = new LinkedHashMap<>();
+        for (String column : columns) {
+            String type = tableTypes.get(resolved.normalize(column));
+            if (type == null) {
+                throw new SQLException("Column " + column + " was not found on table " + tableName);
+            }
+            types.put(column, type);
+        }
+        db2ColumnTypes = types;
+        return types;
+    }
+
+    /**
+     * @return The rows, keeping only the last one of those with the same key values
+     */
+    private List<Object[]> lastPerKey(List<Object[]> rows) {
+        int[] keyIndexes = new int[keyColumns.size()];
+        for (int i = 0; i < keyIndexes.length; i++) {
+            keyIndexes[i] = columns.indexOf(keyColumns.get(i));
+        }
+        Map<RowKey, Object[]> byKey = new LinkedHashMap<>();
+        for (Object[] row : rows) {
+            Object[] key = new Object[keyIndexes.length];
+            for (int i = 0; i < keyIndexes.length; i++) {
+                key[i] = row[keyIndexes[i]];
+            }
+            byKey.put(new RowKey(key), row);
+        }
+        if (byKey.size() == rows.size()) {
+            return rows;
+        }
+        log.debug("Writing {} of {} rows to {}, the others share a key with a later row", byKey.size(), rows.size(),
+                tableName);
+        return new ArrayList<>(byKey.values());
+    }
+
+    private List<String> getNonKeyColumns() {
+        List<String> nonKeyColumns = new ArrayList<>(columns);
+        nonKeyColumns.removeAll(keyColumns);
+        return nonKeyColumns;
+    }
+
+    private String rowMarkers(int rowCount) {
+        String row = "(" + String.join(", ", Collections.nCopies(columns.size(), "?")) + ")";
+        return String.join(", ", Collections.nCopies(rowCount, row));
+    }
+
+    private static List<String> assignments(List<String> columns, String sourcePrefix) {
+        List<String> assignments = new ArrayList<>();
+        for (String column : columns) {
+            assignments.add(column + " = " + sourcePrefix + column);
+        }
+        return assignments;
+    }
+
+    private static List<String> suffixed(List<String> columns, String prefix, String suffix) {
+        List<String> result = new ArrayList<>();
+        for (String column : columns) {
+            result.add(prefix + column + suffix);
+        }
+        return result;
+    }
+
+    private static String join(List<String> columns, String prefix, String suffix) {
+        return String.join(", ", suffixed(columns, prefix, suffix));
+    }
+
+    /**
+     * A value too large to hold in memory, bound as a stream. Every call opens a new stream, since a row may be bound
+     * to more than one statement.
+     */
+    @FunctionalInterface
+    interface StreamedValue {
+        void bind(PreparedStatement stmt, int index) throws SQLException;
+    }
+
+    @FunctionalInterface
+    private interface StatementBuilder {
+        String build(int rowCount) throws SQLException;
+    }
+
+    private static final class RowKey {
+        private final Object[] values;
+
+        private RowKey(Object[] values) {
+            this.values = values;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof RowKey && Arrays.deepEquals(values, ((RowKey) o).values);
+        }
+
+        @Override
+        public int hashCode() {
+            return Arrays.deepHashCode(values);
+        }
+    }
+}
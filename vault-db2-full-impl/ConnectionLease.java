@@ -0,0 +1,282 @@
+/*
+ *
+ * Artifactory is a binaries repository manager.
+ * Copyright (C) 2016 JFrog Ltd.
+ *
+ * Artifactory is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ * Artifactory is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with Artifactory.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package org.jfrog.storage.util;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A connection borrowed by one of the {@link DbUtils} connection helpers. Measures the borrow for the configured
+ * {@link ConnectionMetrics} and, when a slow hold threshold is set, remembers who borrowed it so connections that are
+ * held too long can be reported with the borrower's stack.
+ * <p>
+ * Only with a slow hold threshold is the stack captured on every borrow. Otherwise the call site reported to the
+ * metrics is looked up in the stack once per class of caller, the first time a connection is borrowed for it, so a
+ * callback or helper reached from several places is reported under the first of them.
+ */
+final class ConnectionLease {
+    private static final Logger log = LoggerFactory.getLogger(ConnectionLease.class);
+
+    static final String SLOW_HOLD_THRESHOLD_PROPERTY = "jfrog.storage.connection.slowHoldThresholdMillis";
+    // Frames of these packages are skipped when looking for the call site
+    private static final String[] HELPER_PACKAGES = {"org.jfrog.storage.util.", "java.", "javax.", "sun.", "jdk."};
+
+    private static final ClassValue<String> callSites = new ClassValue<String>() {
+        @Override
+        protected String computeValue(Class<?> callerClass) {
+            // Computed on the borrowing thread, its stack still leads to the helper's caller
+            String callSite = findCallSite(new Throwable().getStackTrace());
+            return callSite != null ? callSite : getClassName(callerClass);
+        }
+    };
+
+    private static final AtomicInteger borrowed = new AtomicInteger();
+    // Only populated while a slow hold threshold is set
+    private static final Set<ConnectionLease> active = ConcurrentHashMap.newKeySet();
+    private static volatile ConnectionMetrics metrics = ConnectionMetrics.NOOP;
+    private static volatile long slowHoldThresholdNanos =
+            TimeUnit.MILLISECONDS.toNanos(Long.getLong(SLOW_HOLD_THRESHOLD_PROPERTY, 0));
+    private static ScheduledExecutorService watchdog;
+
+    static {
+        if (slowHoldThresholdNanos > 0) {
+            setSlowHoldThreshold(TimeUnit.NANOSECONDS.toMillis(slowHoldThresholdNanos));
+        }
+    }
+
+    private final Connection connection;
+    private final DataSource dataSource;
+    private final Object caller;
+    private final String callSite;
+    private final long acquiredAt;
+    private final Throwable borrowStack;
+    // Reuses the connection of the thread's ConnectionScope, which releases it
+    private final boolean scoped;
+    private volatile boolean reported;
+    private Runnable releaseHook;
+
+    private ConnectionLease(Connection connection, DataSource dataSource, Object caller, String callSite,
+            long acquiredAt, Throwable borrowStack, boolean scoped) {
+        this.connection = connection;
+        this.dataSource = dataSource;
+        this.caller = caller;
+        this.callSite = callSite;
+        this.acquiredAt = acquiredAt;
+        this.borrowStack = borrowStack;
+        this.scoped = scoped;
+    }
+
+    /**
+     * Borrows a connection from the data source, or reuses the one of the current thread's {@link ConnectionScope}
+     * on it if there is one.
+     *
+     * @param caller The callback the connection is borrowed for, or the class of the helper borrowing it. Its class is
+     *               reported as the call site when the borrowing thread's stack has no frame outside the helpers
+     *               (asynchronous calls)
+     */
+    static ConnectionLease acquire(DataSource dataSource, Object caller) throws SQLException {
+        ConnectionScope scope = ConnectionScope.current(dataSource);
+        if (scope != null) {
+            return new ConnectionLease(scope.getConnection(caller), dataSource, caller, null, System.nanoTime(), null,
+                    true);
+        }
+        return borrow(dataSource, caller);
+    }
+
+    /**
+     * Like {@link #acquire} for work that only reads, which goes to a replica when a {@link ReplicaRouter} is set for
+     * the data source. Inside a {@link ConnectionScope} the scope's connection is used as usual.
+     */
+    static ConnectionLease acquireReadOnly(DataSource dataSource, Object caller) throws SQLException {
+        ReplicaRouter router = ReplicaRouter.forPrimary(dataSource);
+        if (router == null || ConnectionScope.current(dataSource) != null) {
+            return acquire(dataSource, caller);
+        }
+        return router.borrow(caller);
+    }
+
+    /**
+     * Borrows a connection from the data source, that {@link #release} returns to it.
+     */
+    static ConnectionLease borrow(DataSource dataSource, Object caller) throws SQLException {
+        long start = System.nanoTime();
+        Connection connection;
+        try {
+            connection = dataSource.getConnection();
+        } catch (SQLException e) {
+            if (!(caller instanceof PoolWarmer)) {
+                PoolWarmer.connectionFailed(dataSource, e);
+            }
+            throw e;
+        }
+        long acquiredAt = System.nanoTime();
+        StatementCache.register(connection);
+        ConnectionMetrics currentMetrics = metrics;
+        currentMetrics.connectionAcquired(acquiredAt - start);
+        currentMetrics.connectionsBorrowed(borrowed.incrementAndGet());
+        boolean tracked = slowHoldThresholdNanos > 0;
+        Throwable borrowStack = tracked ? new Throwable("Connection borrowed here") : null;
+        String callSite = null;
+        if (tracked) {
+            callSite = findCallSite(borrowStack.getStackTrace());
+        } else if (currentMetrics != ConnectionMetrics.NOOP) {
+            callSite = callSites.get(caller instanceof Class ? (Class<?>) caller : caller.getClass());
+        }
+        ConnectionLease lease = new ConnectionLease(connection, dataSource, caller, callSite, acquiredAt,
+                borrowStack, false);
+        if (tracked) {
+            active.add(lease);
+        }
+        return lease;
+    }
+
+    Connection getConnection() {
+        return connection;
+    }
+
+    DataSource getDataSource() {
+        return dataSource;
+    }
+
+    /**
+     * @param releaseHook Run once the connection is released
+     */
+    void onRelease(Runnable releaseHook) {
+        this.releaseHook = releaseHook;
+    }
+
+    void release() {
+        if (scoped) {
+            return;
+        }
+        long heldNanos = System.nanoTime() - acquiredAt;
+        try {
+            StatementCache.release(connection);
+            DbUtils.close(connection, dataSource);
+        } finally {
+            borrowed.decrementAndGet();
+            if (borrowStack != null) {
+                active.remove(this);
+                long threshold = slowHoldThresholdNanos;
+                if (threshold > 0 && heldNanos > threshold && !reported) {
+                    log.warn("Connection was held for {}ms by {}", TimeUnit.NANOSECONDS.toMillis(heldNanos),
+                            getCallSite(), borrowStack);
+                }
+            }
+            metrics.connectionReleased(getCallSite(), heldNanos);
+            if (releaseHook != null) {
+                releaseHook.run();
+            }
+        }
+    }
+
+    /**
+     * @return Class and method of the first frame outside the helpers and the JDK, i.e. the code that called the
+     * public helper, or null if there is none
+     */
+    private static String findCallSite(StackTraceElement[] stack) {
+        for (StackTraceElement frame : stack) {
+            if (!isHelperFrame(frame.getClassName())) {
+                return frame.getClassName() + "." + frame.getMethodName();
+            }
+        }
+        return null;
+    }
+
+    private static boolean isHelperFrame(String className) {
+        for (String helperPackage : HELPER_PACKAGES) {
+            if (className.startsWith(helperPackage)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private String getCallSite() {
+        if (callSite != null) {
+            return callSite;
+        }
+        return getClassName(caller instanceof Class ? (Class<?>) caller : caller.getClass());
+    }
+
+    private static String getClassName(Class<?> callerClass) {
+        String name = callerClass.getName();
+        int lambda = name.indexOf("$$Lambda");
+        return lambda > 0 ? name.substring(0, lambda) : name;
+    }
+
+    static void closeFailed(Exception e) {
+        metrics.closeFailed(e);
+    }
+
+    static void setMetrics(ConnectionMetrics connectionMetrics) {
+        metrics = connectionMetrics == null ? ConnectionMetrics.NOOP : connectionMetrics;
+    }
+
+    static int getBorrowedCount() {
+        return borrowed.get();
+    }
+
+    /**
+     * Connections held longer than the threshold are logged with the borrower's stack when released, and while still
+     * held by a background check that runs every half threshold. 0 disables tracking.
+     */
+    static synchronized void setSlowHoldThreshold(long millis) {
+        slowHoldThresholdNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(millis, 0));
+        if (watchdog != null) {
+            watchdog.shutdownNow();
+            watchdog = null;
+        }
+        if (millis > 0) {
+            watchdog = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread thread = new Thread(r, "db-connection-hold-watchdog");
+                thread.setDaemon(true);
+                return thread;
+            });
+            long period = Math.max(millis / 2, 1);
+            watchdog.scheduleWithFixedDelay(ConnectionLease::reportLongHeld, period, period, TimeUnit.MILLISECONDS);
+        } else {
+            active.clear();
+        }
+    }
+
+    private static void reportLongHeld() {
+        long now = System.nanoTime();
+        for (ConnectionLease lease : active) {
+            long heldNanos = now - lease.acquiredAt;
+            if (!lease.reported && heldNanos > slowHoldThresholdNanos) {
+                lease.reported = true;
+                log.warn("Connection held for {}ms and counting by {}", TimeUnit.NANOSECONDS.toMillis(heldNanos),
+                        lease.getCallSite(), lease.borrowStack);
+            }
+        }
+    }
+}
@@ -0,0 +1,61 @@
+/*
+ *
+ * Artifactory is a binaries repository manager.
+ * Copyright (C) 2016 JFrog Ltd.
+ *
+ * Artifactory is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ * Artifactory is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with Artifactory.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package org.jfrog.storage.util;
+
+/**
+ * Receives the pool usage measured by the {@link DbUtils} connection helpers (withConnection, doWithConnection,
+ * doStreamWithConnection and withMetadata). Implementations are called on the borrowing thread so they must be cheap
+ * and thread safe, see {@link HistogramConnectionMetrics} for a ready made one.
+ *
+ * @see DbUtils#setConnectionMetrics
+ */
+public interface ConnectionMetrics {
+
+    ConnectionMetrics NOOP = new ConnectionMetrics() {
+    };
+
+    /**
+     * @param nanos Time spent in {@link javax.sql.DataSource#getConnection()}
+     */
+    default void connectionAcquired(long nanos) {
+    }
+
+    /**
+     * @param callSite Class and method that called the helper asking for the connection, or the class of the
+     *                 helper's callback when called asynchronously. Unless a slow hold threshold is set, it's looked
+     *                 up once per callback class and reused for later borrows
+     * @param nanos    Time between acquiring and releasing the connection
+     */
+    default void connectionReleased(String callSite, long nanos) {
+    }
+
+    /**
+     * @param borrowed Number of connections currently borrowed through the helpers, reported on every borrow
+     */
+    default void connectionsBorrowed(int borrowed) {
+    }
+
+    /**
+     * Called for exceptions that {@link DbUtils#close(java.sql.Connection, javax.sql.DataSource)} logs and swallows.
+     */
+    default void closeFailed(Exception e) {
+    }
+}
@@ -0,0 +1,126 @@
+/*
+ *
+ * Artifactory is a binaries repository manager.
+ * Copyright (C) 2016 JFrog Ltd.
+ *
+ * Artifactory is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ * Artifactory is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with Artifactory.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package org.jfrog.storage.util;
+
+import org.jfrog.storage.DbType;
+
+import javax.annotation.Nullable;
+import java.sql.Connection;
+import java.sql.DatabaseMetaData;
+import java.sql.SQLException;
+import java.util.Locale;
+
+/**
+ * The session properties of a data source's connections that the schema helpers need on every call: the active schema
+ * and catalog (see {@link DbUtils#getActiveSchema} for what each db type means by these) and the case the database
+ * stores unquoted identifiers in.
+ * <p>
+ * Resolved once per data source by {@link DbUtils#getConnectionProfile}, after which normalizing an identifier is a
+ * pure in-memory operation.
+ */
+public final class ConnectionProfile {
+
+    public enum IdentifierCase {
+        UPPER, LOWER, MIXED
+    }
+
+    private final DbType dbType;
+    private final String schema;
+    private final String catalog;
+    private final IdentifierCase identifierCase;
+    private final boolean db2ForZos;
+
+    ConnectionProfile(DbType dbType, @Nullable String schema, @Nullable String catalog,
+            IdentifierCase identifierCase, boolean db2ForZos) {
+        this.dbType = dbType;
+        this.schema = schema;
+        this.catalog = catalog;
+        this.identifierCase = identifierCase;
+        this.db2ForZos = db2ForZos;
+    }
+
+    /**
+     * Resolves the profile from the given connection, this costs a few driver calls so prefer the cached
+     * {@link DbUtils#getConnectionProfile} where a data source is available.
+     */
+    public static ConnectionProfile resolve(Connection conn, DbType dbType) throws SQLException {
+        DatabaseMetaData metadata = conn.getMetaData();
+        IdentifierCase identifierCase;
+        if (metadata.storesLowerCaseIdentifiers()) {
+            identifierCase = IdentifierCase.LOWER;
+        } else if (metadata.storesUpperCaseIdentifiers()) {
+            identifierCase = IdentifierCase.UPPER;
+        } else {
+            identifierCase = IdentifierCase.MIXED;
+        }
+        // DB2 for z/OS reports its version as DSNvvrrm, LUW as SQLvvrrm
+        boolean db2ForZos = DbType.DB2.equals(dbType) && metadata.getDatabaseProductVersion() != null &&
+                metadata.getDatabaseProductVersion().startsWith("DSN");
+        String schema = DbUtils.getActiveSchema(conn, dbType);
+        return new ConnectionProfile(dbType, schema == null ? null : schema.trim(),
+                DbUtils.getActiveCatalog(conn, dbType), identifierCase, db2ForZos);
+    }
+
+    public DbType getDbType() {
+        return dbType;
+    }
+
+    @Nullable
+    public String getSchema() {
+        return schema;
+    }
+
+    @Nullable
+    public String getCatalog() {
+        return catalog;
+    }
+
+    public IdentifierCase getIdentifierCase() {
+        return identifierCase;
+    }
+
+    /**
+     * @return True if this is a DB2 for z/OS subsystem, which has the SYSIBM catalog tables but not the SYSCAT views.
+     */
+    public boolean isDb2ForZos() {
+        return db2ForZos;
+    }
+
+    /**
+     * @return {@param name} in the case the database stores identifiers in, the same instance if it already is.
+     */
+    public String normalize(String name) {
+        switch (identifierCase) {
+            case LOWER:
+                return name.toLowerCase(Locale.ENGLISH);
+            case UPPER:
+                return name.toUpperCase(Locale.ENGLISH);
+            default:
+                return name;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "ConnectionProfile{dbType=" + dbType + ", schema='" + schema + "', catalog='" + catalog +
+                "', identifierCase=" + identifierCase + ", db2ForZos=" + db2ForZos + "}";
+    }
+}
@@ -0,0 +1,110 @@
+/*
+ *
+ * Artifactory is a binaries repository manager.
+ * Copyright (C) 2016 JFrog Ltd.
+ *
+ * Artifactory is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ * Artifactory is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with Artifactory.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package org.jfrog.storage.util;
+
+import javax.annotation.Nullable;
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Binds one connection of a data source to the current thread: while the scope is open, the {@link DbUtils} connection
+ * helpers called on that thread for the same data source all use it instead of borrowing their own. The connection is
+ * borrowed on first use and released when the outermost scope is closed, nested scopes just share it.
+ * <p>
+ * Not thread safe, a scope must be closed by the thread that opened it. Streams returned by the helpers inside a
+ * scope must be consumed before it closes.
+ *
+ * @see DbUtils#openConnectionScope
+ */
+public final class ConnectionScope implements AutoCloseable {
+
+    private static final ThreadLocal<Map<DataSource, ConnectionScope>> scopes = new ThreadLocal<>();
+
+    private final DataSource dataSource;
+    private int depth = 1;
+    @Nullable
+    private ConnectionLease lease;
+
+    private ConnectionScope(DataSource dataSource) {
+        this.dataSource = dataSource;
+    }
+
+    static ConnectionScope open(DataSource dataSource) {
+        Map<DataSource, ConnectionScope> threadScopes = scopes.get();
+        if (threadScopes == null) {
+            threadScopes = new HashMap<>();
+            scopes.set(threadScopes);
+        }
+        ConnectionScope scope = threadScopes.get(dataSource);
+        if (scope != null) {
+            scope.depth++;
+            return scope;
+        }
+        scope = new ConnectionScope(dataSource);
+        threadScopes.put(dataSource, scope);
+        return scope;
+    }
+
+    @Nullable
+    static ConnectionScope current(DataSource dataSource) {
+        Map<DataSource, ConnectionScope> threadScopes = scopes.get();
+        return threadScopes == null ? null : threadScopes.get(dataSource);
+    }
+
+    Connection getConnection(Object caller) throws SQLException {
+        if (lease == null) {
+            lease = ConnectionLease.borrow(dataSource, caller);
+        }
+        return lease.getConnection();
+    }
+
+    /**
+     * @return True if the scope holds a connection
+     */
+    public boolean isConnected() {
+        return lease != null;
+    }
+
+    /**
+     * Leaves this scope, the outermost one releases the connection.
+     */
+    @Override
+    public void close() {
+        if (depth == 0 || --depth > 0) {
+            return;
+        }
+        Map<DataSource, ConnectionScope> threadScopes = scopes.get();
+        if (threadScopes != null) {
+            threadScopes.remove(dataSource);
+            if (threadScopes.isEmpty()) {
+                scopes.remove();
+            }
+        }
+        if (lease != null) {
+            ConnectionLease borrowed = lease;
+            lease = null;
+            borrowed.release();
+        }
+    }
+}
@@ -0,0 +1,460 @@
+/*
+ *
+ * Artifactory is a binaries repository manager.
+ * Copyright (C) 2016 JFrog Ltd.
+ *
+ * Artifactory is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ * Artifactory is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with Artifactory.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package org.jfrog.storage.util;
+
+import org.jfrog.storage.DbType;
+import org.jfrog.storage.JdbcHelper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Runs the statements of several SQL scripts (e.g. the conversions of an upgrade) in parallel where they don't depend
+ * on each other, such as index builds on different tables, on a bounded number of connections.
+ * <p>
+ * The tables (and indexes, views, sequences...) each statement names are read from its text, and a statement depends
+ * on the previous statement naming any of the same objects, so statements on the same table keep their script order.
+ * Statements naming nothing recognizable, and procedural ones like {@code CALL}, are barriers: they run alone, after
+ * everything before them and before everything after them. Statements changing the session ({@code SET SCHEMA},
+ * {@code SET CURRENT PATH}, {@code SET search_path}, {@code ALTER SESSION}, {@code USE}...) are rejected, since they
+ * would only apply to the one pooled connection they ran on: qualify the names instead.
+ * <p>
+ * On DB2 LUW, an {@code ALTER TABLE} that always leaves the table in reorg pending state (dropping a column or
+ * changing its nullability) is followed by a {@code REORG TABLE} through {@code SYSPROC.ADMIN_CMD} before the next
+ * statement on the table (and at the end), unless the script reorgs it itself. Other alters only need one sometimes,
+ * e.g. {@code SET DATA TYPE} does unless it widens a string: a statement failing with SQL0668N reason 7 gets the table
+ * reorged and is retried once. DB2 for z/OS has no reorg pending state that blocks access, and no reorg is done there.
+ */
+public class ConversionScheduler {
+    private static final Logger log = LoggerFactory.getLogger(ConversionScheduler.class);
+
+    public static final int DEFAULT_CONNECTIONS = 4;
+
+    private static final String IDENTIFIER = "((?:[\"`\\[]?[\\w$#]+[\"`\\]]?\\.)?[\"`\\[]?[\\w$#]+[\"`\\]]?)";
+    // The object kind after ON, as in COMMENT ON TABLE x or GRANT ... ON INDEX x, is skipped
+    private static final Pattern OBJECT_REFERENCE = Pattern.compile(
+            "\\b(?:TABLE|INTO|FROM|JOIN|UPDATE|REFERENCES|ON(?:\\s+(?:TABLE|INDEX|VIEW|SEQUENCE))?|INDEX|VIEW|" +
+                    "SEQUENCE|TRIGGER)\\s+(?:IF\\s+(?:NOT\\s+)?EXISTS\\s+)?(?:ONLY\\s+)?" + IDENTIFIER,
+            Pattern.CASE_INSENSITIVE);
+    // COMMENT ON COLUMN [schema.]table.column names the table
+    private static final Pattern COLUMN_REFERENCE = Pattern.compile(
+            "\\bON\\s+COLUMN\\s+" + IDENTIFIER + "\\.[\"`\\[]?[\\w$#]+[\"`\\]]?", Pattern.CASE_INSENSITIVE);
+    // Keywords following ON in foreign key and other clauses
+    private static final Set<String> NOT_OBJECTS = new HashSet<>(
+            Arrays.asList("DELETE", "UPDATE", "CONFLICT", "DUPLICATE", "COMMIT", "COLUMN"));
+    private static final Pattern DB2_REORG = Pattern.compile(
+            "^CALL\\s+SYSPROC\\.ADMIN_CMD\\s*\\(\\s*'REORG\\s+TABLE\\s+" + IDENTIFIER, Pattern.CASE_INSENSITIVE);
+    private static final Pattern DB2_REORG_PENDING_ALTER = Pattern.compile(
+            "^ALTER\\s+TABLE\\s+.*\\b(?:DROP\\s+COLUMN|SET\\s+NOT\\s+NULL|DROP\\s+NOT\\s+NULL)\\b",
+            Pattern.CASE_INSENSITIVE | Pattern.DOTALL);
+    private static final Pattern DB2_REORG_PENDING_ERROR = Pattern.compile("SQLERRMC=7;([^,\\s]+)");
+    private static final Set<String> BARRIER_KEYWORDS = new HashSet<>(Arrays.asList(
+            "CALL", "SET", "BEGIN", "DECLARE", "EXEC", "EXECUTE", "COMMIT", "ROLLBACK", "LOCK", "DO"));
+    // SET INTEGRITY works on tables, every other SET changes the session
+    private static final Pattern SESSION_STATEMENT = Pattern.compile(
+            "^(?:SET\\s+(?!INTEGRITY\\b)|ALTER\\s+SESSION\\b|USE\\s)", Pattern.CASE_INSENSITIVE);
+
+    private final JdbcHelper jdbcHelper;
+    private final DbType dbType;
+    private final List<Step> scriptSteps = new ArrayList<>();
+    private final List<Step> steps = new ArrayList<>();
+    private int connections = DEFAULT_CONNECTIONS;
+    private RetryPolicy retryPolicy = new RetryPolicy();
+    private SqlScriptExecutor.StatementListener listener = SqlScriptExecutor.StatementListener.NOOP;
+    // The dependency graph of the current execute(): last step naming each object, and the objects left in reorg
+    // pending state, while adding scripts
+    private final Map<String, Step> lastByObject = new HashMap<>();
+    private final Set<String> reorgPending = new LinkedHashSet<>();
+    private Step lastBarrier;
+    private List<Step> sinceBarrier = new ArrayList<>();
+    private boolean db2Luw;
+
+    public ConversionScheduler(JdbcHelper jdbcHelper, DbType dbType) {
+        this.jdbcHelper = jdbcHelper;
+        this.dbType = dbType;
+    }
+
+    /**
+     * @param connections Max statements running at once, each on its own connection
+     */
+    public ConversionScheduler connections(int connections) {
+        if (connections < 1) {
+            throw new IllegalArgumentException("Connections must be positive: " + connections);
+        }
+        this.connections = connections;
+        return this;
+    }
+
+    /**
+     * @param retryPolicy Retries statements failing with a transient error, e.g. a deadlock on the catalog between
+     *                    two concurrent DDL statements
+     */
+    public ConversionScheduler retryPolicy(RetryPolicy retryPolicy) {
+        this.retryPolicy = retryPolicy;
+        return this;
+    }
+
+    public ConversionScheduler listener(SqlScriptExecutor.StatementListener listener) {
+        this.listener = listener == null ? SqlScriptExecutor.StatementListener.NOOP : listener;
+        return this;
+    }
+
+    /**
+     * Reads the statements of the UTF-8 encoded script, scripts are ordered among each other the same as the
+     * statements of a single script.
+     *
+     * @param name Name the script's statements are reported by
+     * @throws IllegalArgumentException If the script changes the session, see the class doc
+     */
+    public ConversionScheduler script(String name, InputStream in) throws IOException {
+        SqlScriptReader reader = new SqlScriptReader(
+                new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8)), ';');
+        ScriptStatement statement;
+        while ((statement = reader.next()) != null) {
+            if (isSessionStatement(statement.getSql())) {
+                throw new IllegalArgumentException("Can't schedule " + name + " " + statement + ": it changes the " +
+                        "session of only one of the pooled connections, qualify the names it affects instead");
+            }
+            scriptSteps.add(new Step(name, statement, objectsOf(statement.getSql()), isBarrier(statement.getSql())));
+        }
+        return this;
+    }
+
+    /**
+     * Runs all the statements added, stopping at the first one that fails after the statements already running
+     * complete. The statements added are dropped either way, the scheduler can then be given more scripts and
+     * executed again.
+     *
+     * @throws SQLException The first failure, with the script and statement it happened in
+     */
+    public void execute() throws SQLException {
+        db2Luw = DbType.DB2.equals(dbType) && !DbUtils.getConnectionProfile(jdbcHelper, dbType).isDb2ForZos();
+        try {
+            for (Step step : scriptSteps) {
+                add(step);
+            }
+            for (String table : new ArrayList<>(reorgPending)) {
+                add(reorgStep(table));
+            }
+            if (!steps.isEmpty()) {
+                executeSteps();
+            }
+        } finally {
+            scriptSteps.clear();
+            steps.clear();
+            lastByObject.clear();
+            reorgPending.clear();
+            lastBarrier = null;
+            sinceBarrier = new ArrayList<>();
+        }
+    }
+
+    private void executeSteps() throws SQLException {
+        long start = System.nanoTime();
+        ExecutorService executor = Executors.newFixedThreadPool(connections, conversionThreads());
+        CompletionService<Step> completion = new ExecutorCompletionService<>(executor);
+        SQLException failure = null;
+        int running = 0;
+        int executed = 0;
+        try {
+            for (Step step : steps) {
+                if (step.pending == 0) {
+                    submit(completion, step);
+                    running++;
+                }
+            }
+            while (running > 0) {
+                Step done;
+                try {
+                    done = completion.take().get();
+                } catch (ExecutionException e) {
+                    running--;
+                    if (failure == null) {
+                        failure = asSqlException(e.getCause());
+                    } else {
+                        failure.addSuppressed(e.getCause());
+                    }
+                    continue;
+                }
+                running--;
+                executed++;
+                if (failure != null) {
+                    continue;
+                }
+                for (Step dependent : done.dependents) {
+                    if (--dependent.pending == 0) {
+                        submit(completion, dependent);
+                        running++;
+                    }
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            executor.shutdownNow();
+            throw new SQLException("Interrupted while running conversions", e);
+        } finally {
+            executor.shutdown();
+            DbUtils.invalidateSchemaCache();
+        }
+        if (failure != null) {
+            throw failure;
+        }
+        log.info("Executed {} conversion statements on up to {} connections in {}ms", executed, connections,
+                (System.nanoTime() - start) / 1_000_000);
+    }
+
+    private void add(Step step) {
+        if (db2Luw) {
+            addDb2Reorgs(step);
+        }
+        if (step.barrier) {
+            for (Step previous : sinceBarrier) {
+                dependOn(step, previous);
+            }
+            dependOn(step, lastBarrier);
+            lastBarrier = step;
+            sinceBarrier = new ArrayList<>();
+            lastByObject.clear();
+        } else {
+            dependOn(step, lastBarrier);
+            for (String object : step.objects) {
+                dependOn(step, lastByObject.get(object));
+                lastByObject.put(object, step);
+            }
+            sinceBarrier.add(step);
+        }
+        steps.add(step);
+    }
+
+    /**
+     * Reorgs the tables the step touches that an earlier alter left in reorg pending state, before the step.
+     */
+    private void addDb2Reorgs(Step step) {
+        Matcher reorg = DB2_REORG.matcher(step.statement.getSql().trim());
+        if (reorg.find()) {
+            reorgPending.remove(key(reorg.group(1)));
+        } else {
+            for (String object : step.objects) {
+                if (reorgPending.remove(object)) {
+                    add(reorgStep(object));
+                }
+            }
+        }
+        if (DB2_REORG_PENDING_ALTER.matcher(step.statement.getSql().trim()).find() && !step.objects.isEmpty()) {
+            // The first name of an ALTER TABLE is its table
+            reorgPending.add(step.objects.iterator().next());
+        }
+    }
+
+    private Step reorgStep(String table) {
+        String sql = "CALL SYSPROC.ADMIN_CMD('REORG TABLE " + qualify(table) + "')";
+        Set<String> objects = Collections.singleton(table);
+        return new Step("reorg", new ScriptStatement(sql, 0, 0), objects, false);
+    }
+
+    private String qualify(String table) {
+        if (table.indexOf('.') >= 0) {
+            return table;
+        }
+        try {
+            String schema = DbUtils.getConnectionProfile(jdbcHelper, dbType).getSchema();
+            return schema == null ? table : schema + "." + table;
+        } catch (SQLException e) {
+            log.debug("Could not resolve the schema to reorg {} in: {}", table, e.getMessage());
+            return table;
+        }
+    }
+
+    private static void dependOn(Step step, @Nullable Step dependency) {
+        if (dependency != null && dependency != step && dependency.dependents.add(step)) {
+            step.pending++;
+        }
+    }
+
+    private void submit(CompletionService<Step> completion, Step step) {
+        completion.submit(() -> {
+            run(step);
+            return step;
+        });
+    }
+
+    private void run(Step step) throws SQLException {
+        log.debug("Executing {} {}", step.script, step.statement);
+        Object event = DbEvents.beginStatement();
+        long start = System.nanoTime();
+        try {
+            execute(step.statement.getSql());
+        } catch (SQLException e) {
+            String table = db2Luw ? getReorgPendingTable(e) : null;
+            if (table == null) {
+                throw failed(step, e);
+            }
+            log.info("Table {} is in reorg pending state, reorging it and retrying {}", table, step.statement);
+            try {
+                execute("CALL SYSPROC.ADMIN_CMD('REORG TABLE " + table + "')");
+                execute(step.statement.getSql());
+            } catch (SQLException retryFailure) {
+                throw failed(step, retryFailure);
+            }
+        }
+        listener.statementExecuted(step.statement, System.nanoTime() - start, 1);
+        if (event != null) {
+            DbEvents.commitStatement(event, step.statement, 1);
+        }
+    }
+
+    private void execute(String sql) throws SQLException {
+        DbUtils.doWithConnection(jdbcHelper, dbType, retryPolicy, conn -> {
+            try (Statement stmt = conn.createStatement()) {
+                stmt.execute(sql);
+            }
+            if (!conn.getAutoCommit()) {
+                conn.commit();
+            }
+        });
+    }
+
+    private static SQLException failed(Step step, SQLException e) {
+        log.error("Failed executing {} {}: {}", step.script, step.statement, e.getMessage());
+        return new SQLException("Failed executing " + step.script + " " + step.statement + ": " + e.getMessage(),
+                e.getSQLState(), e.getErrorCode(), e);
+    }
+
+    /**
+     * @return The qualified table of an SQL0668N reason code 7 failure, null for any other failure
+     */
+    @Nullable
+    private static String getReorgPendingTable(SQLException e) {
+        if (e.getErrorCode() != -668 || e.getMessage() == null) {
+            return null;
+        }
+        Matcher matcher = DB2_REORG_PENDING_ERROR.matcher(e.getMessage());
+        return matcher.find() ? matcher.group(1) : null;
+    }
+
+    private static SQLException asSqlException(Throwable t) {
+        return t instanceof SQLException ? (SQLException) t :
+                new SQLException("Failed executing conversion: " + t.getMessage(), t);
+    }
+
+    /**
+     * @return The upper-cased, unqualified names the statement refers to. Names of different kinds of objects share
+     * one namespace, a clash merely orders two statements that could have run in parallel.
+     */
+    static Set<String> objectsOf(String sql) {
+        Set<String> objects = new LinkedHashSet<>();
+        Matcher reorg = DB2_REORG.matcher(sql.trim());
+        if (reorg.find()) {
+            objects.add(key(reorg.group(1)));
+            return objects;
+        }
+        Matcher column = COLUMN_REFERENCE.matcher(sql);
+        while (column.find()) {
+            objects.add(key(column.group(1)));
+        }
+        Matcher matcher = OBJECT_REFERENCE.matcher(sql);
+        while (matcher.find()) {
+            String object = key(matcher.group(1));
+            if (!NOT_OBJECTS.contains(object)) {
+                objects.add(object);
+            }
+        }
+        return objects;
+    }
+
+    private static boolean isBarrier(String sql) {
+        String trimmed = sql.trim();
+        if (DB2_REORG.matcher(trimmed).find()) {
+            return false;
+        }
+        int end = 0;
+        while (end < trimmed.length() && Character.isLetter(trimmed.charAt(end))) {
+            end++;
+        }
+        return BARRIER_KEYWORDS.contains(trimmed.substring(0, end).toUpperCase(Locale.ENGLISH)) ||
+                objectsOf(trimmed).isEmpty();
+    }
+
+    static boolean isSessionStatement(String sql) {
+        return SESSION_STATEMENT.matcher(sql.trim()).find();
+    }
+
+    private static String key(String identifier) {
+        String name = identifier.substring(identifier.lastIndexOf('.') + 1).replaceAll("[\"`\\[\\]]", "");
+        return name.toUpperCase(Locale.ENGLISH);
+    }
+
+    private static ThreadFactory conversionThreads() {
+        AtomicInteger count = new AtomicInteger();
+        return r -> {
+            Thread thread = new Thread(r, "db-conversion-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+
+    /**
+     * A statement and the statements waiting for it. Dependency counts are only touched by the scheduling thread.
+     */
+    private static class Step {
+        private final String script;
+        private final ScriptStatement statement;
+        private final Set<String> objects;
+        private final boolean barrier;
+        private final Set<Step> dependents = new LinkedHashSet<>();
+        private int pending;
+
+        Step(String script, ScriptStatement statement, Set<String> objects, boolean barrier) {
+            this.script = script;
+            this.statement = statement;
+            this.objects = objects;
+            this.barrier = barrier;
+        }
+    }
+}
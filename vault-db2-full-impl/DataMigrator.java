@@ -0,0 +1,789 @@
+/*
+ *
+ * Artifactory is a binaries repository manager.
+ * Copyright (C) 2016 JFrog Ltd.
+ *
+ * Artifactory is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ * Artifactory is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with Artifactory.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package org.jfrog.storage.util;
+
+import org.jfrog.storage.DbType;
+import org.jfrog.storage.JdbcHelper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.sql.Blob;
+import java.sql.Clob;
+import java.sql.Connection;
+import java.sql.DatabaseMetaData;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * Copies the tables of one database to another, possibly of a different {@link DbType}, e.g. to move an Artifactory
+ * from Postgres to DB2 without a dump and load. The target tables must already exist, see
+ * {@link #initializeTargetSchema}.
+ * <p>
+ * Tables with a single column numeric primary key are split into key ranges of {@link #rangeSize} that are copied in
+ * parallel, each read with keyset pagination and written with {@link BulkWriter}. The ranges are aligned on multiples
+ * of the range size, so they stay the same between runs whatever rows were added or removed since, and ranges without
+ * rows are skipped over with an index lookup. Other tables are copied whole by a
+ * single task. Tasks run on a bounded pool whose queue pushes back on the submitter once full, and every copied range
+ * is recorded in the {@link MigrationCheckpoints} so a rerun skips it. A range that didn't complete is cleared in the
+ * target before being copied again. Once copied, the row count and an order independent checksum of every table are
+ * compared between source and target.
+ * <p>
+ * Foreign keys between the target tables should be dropped or disabled for the copy since tables are copied in no
+ * particular order.
+ */
+public class DataMigrator {
+    private static final Logger log = LoggerFactory.getLogger(DataMigrator.class);
+
+    public static final long DEFAULT_RANGE_SIZE = 100_000;
+    public static final int DEFAULT_PAGE_SIZE = 5000;
+    /**
+     * Pages of tables with LOB columns, whose values are held in memory until written
+     */
+    private static final int LOB_PAGE_SIZE = 50;
+    /**
+     * LOBs larger than this are spooled to a temp file until their page was written
+     */
+    private static final int LOB_SPOOL_THRESHOLD = 1024 * 1024;
+    private static final int COPY_BUFFER_SIZE = 8 * 1024;
+    private static final String WHOLE_TABLE = "*";
+
+    private final JdbcHelper source;
+    private final DbType sourceType;
+    private final JdbcHelper target;
+    private final DbType targetType;
+    private int threads = Math.max(2, Runtime.getRuntime().availableProcessors());
+    private long rangeSize = DEFAULT_RANGE_SIZE;
+    private int pageSize = DEFAULT_PAGE_SIZE;
+    private boolean verifyChecksums = true;
+    private MigrationCheckpoints checkpoints = new MigrationCheckpoints();
+    @Nullable
+    private Collection<String> tables;
+
+    public DataMigrator(JdbcHelper source, DbType sourceType, JdbcHelper target, DbType targetType) {
+        this.source = source;
+        this.sourceType = sourceType;
+        this.target = target;
+        this.targetType = targetType;
+    }
+
+    /**
+     * @param threads Tasks copied concurrently, each holds a source and a target connection
+     */
+    public DataMigrator threads(int threads) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("Threads must be positive: " + threads);
+        }
+        this.threads = threads;
+        return this;
+    }
+
+    /**
+     * @param rangeSize Width of the primary key range copied by a single task
+     */
+    public DataMigrator rangeSize(long rangeSize) {
+        if (rangeSize < 1) {
+            throw new IllegalArgumentException("Range size must be positive: " + rangeSize);
+        }
+        this.rangeSize = rangeSize;
+        return this;
+    }
+
+    /**
+     * @param pageSize Rows read and written at a time
+     */
+    public DataMigrator pageSize(int pageSize) {
+        if (pageSize < 1) {
+            throw new IllegalArgumentException("Page size must be positive: " + pageSize);
+        }
+        this.pageSize = pageSize;
+        return this;
+    }
+
+    public DataMigrator checkpoints(MigrationCheckpoints checkpoints) {
+        this.checkpoints = checkpoints;
+        return this;
+    }
+
+    /**
+     * @param verifyChecksums False to only compare row counts after the copy, which doesn't read every table twice
+     */
+    public DataMigrator verifyChecksums(boolean verifyChecksums) {
+        this.verifyChecksums = verifyChecksums;
+        return this;
+    }
+
+    /**
+     * @param tables The tables to copy, all the tables of the source schema if not set
+     */
+    public DataMigrator tables(Collection<String> tables) {
+        this.tables = new ArrayList<>(tables);
+        return this;
+    }
+
+    /**
+     * Creates the Artifactory schema in the target by running the {@code /<db type>/<db type>.sql} script of its db
+     * type (see {@link DbUtils#getDbTypeNameForSqlResources}) found on the class path.
+     */
+    public void initializeTargetSchema() throws SQLException, IOException {
+        String dbTypeName = DbUtils.getDbTypeNameForSqlResources(targetType);
+        String resource = "/" + dbTypeName + "/" + dbTypeName + ".sql";
+        try (InputStream in = DataMigrator.class.getResourceAsStream(resource)) {
+            if (in == null) {
+                throw new IOException("Schema script " + resource + " was not found on the class path");
+            }
+            DbUtils.doStreamWithConnection(target, conn -> DbUtils.executeSqlStream(conn, in));
+        }
+    }
+
+    /**
+     * Copies and verifies the tables.
+     *
+     * @return The result of every table, in the order they were listed
+     * @throws SQLException If copying failed, after the tasks that didn't fail completed and were checkpointed
+     */
+    public Map<String, TableResult> migrate() throws SQLException {
+        long start = System.nanoTime();
+        List<TablePlan> plans = planTables();
+        Map<String, TableResult> results = new LinkedHashMap<>();
+        for (TablePlan plan : plans) {
+            results.put(plan.name, new TableResult(plan.name));
+        }
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(threads * 2), migrationThreads(),
+                new ThreadPoolExecutor.CallerRunsPolicy());
+        try {
+            List<Future<?>> copies = new ArrayList<>();
+            for (TablePlan plan : plans) {
+                TableResult result = results.get(plan.name);
+                for (KeyRange range : splitRanges(plan)) {
+                    if (checkpoints.isDone(plan.name, range.id)) {
+                        log.debug("Skipping already copied range {} of {}", range.id, plan.name);
+                        continue;
+                    }
+                    copies.add(executor.submit(() -> {
+                        copyRange(plan, range, result);
+                        return null;
+                    }));
+                }
+            }
+            awaitAll(copies);
+            log.info("Copied {} tables in {}s, verifying", plans.size(),
+                    TimeUnit.NANOSECONDS.toSeconds(System.nanoTime() - start));
+            List<Future<?>> verifications = new ArrayList<>();
+            for (TablePlan plan : plans) {
+                verifications.add(executor.submit(() -> {
+                    verify(plan, results.get(plan.name));
+                    return null;
+                }));
+            }
+            awaitAll(verifications);
+        } finally {
+            executor.shutdownNow();
+        }
+        for (TableResult result : results.values()) {
+            if (!result.isVerified()) {
+                log.error("Verification failed for {}", result);
+            }
+        }
+        log.info("Migration from {} to {} done in {}s", sourceType, targetType,
+                TimeUnit.NANOSECONDS.toSeconds(System.nanoTime() - start));
+        return results;
+    }
+
+    private static void awaitAll(List<Future<?>> futures) throws SQLException {
+        Exception failure = null;
+        for (Future<?> future : futures) {
+            try {
+                future.get();
+            } catch (ExecutionException e) {
+                if (failure == null) {
+                    failure = e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new SQLException("Interrupted while migrating", e);
+            }
+        }
+        if (failure instanceof SQLException) {
+            throw (SQLException) failure;
+        }
+        if (failure != null) {
+            throw new SQLException("Migration failed: " + failure.getMessage(), failure);
+        }
+    }
+
+    private List<TablePlan> planTables() throws SQLException {
+        ConnectionProfile profile = DbUtils.getConnectionProfile(source, sourceType);
+        return DbUtils.withMetadata(source, metadata -> {
+            List<String> names = new ArrayList<>();
+            if (tables != null) {
+                for (String table : tables) {
+                    names.add(profile.normalize(table));
+                }
+            } else {
+                try (ResultSet rs = metadata.getTables(profile.getCatalog(), profile.getSchema(), null,
+                        new String[]{"TABLE"})) {
+                    while (rs.next()) {
+                        names.add(rs.getString("TABLE_NAME"));
+                    }
+                }
+            }
+            List<TablePlan> plans = new ArrayList<>();
+            for (String name : names) {
+                plans.add(planTable(metadata, profile, name));
+            }
+            return plans;
+        });
+    }
+
+    private TablePlan planTable(DatabaseMetaData metadata, ConnectionProfile profile, String name)
+            throws SQLException {
+        List<String> columns = new ArrayList<>();
+        Map<String, Integer> types = new LinkedHashMap<>();
+        boolean integralKey = false;
+        boolean hasLobs = false;
+        try (ResultSet rs = metadata.getColumns(profile.getCatalog(), profile.getSchema(), name, null)) {
+            while (rs.next()) {
+                String column = rs.getString("COLUMN_NAME");
+                int type = rs.getInt("DATA_TYPE");
+                columns.add(column);
+                types.put(column, type);
+                hasLobs |= type == Types.BLOB || type == Types.CLOB || type == Types.NCLOB ||
+                        type == Types.LONGVARBINARY;
+            }
+        }
+        if (columns.isEmpty()) {
+            throw new SQLException("Table " + name + " was not found in the source database");
+        }
+        List<String> keyColumns = new ArrayList<>();
+        try (ResultSet rs = metadata.getPrimaryKeys(profile.getCatalog(), profile.getSchema(), name)) {
+            while (rs.next()) {
+                keyColumns.add(rs.getString("COLUMN_NAME"));
+            }
+        }
+        String keyColumn = keyColumns.size() == 1 ? keyColumns.get(0) : null;
+        if (keyColumn != null) {
+            switch (types.get(keyColumn)) {
+                case Types.BIGINT:
+                case Types.INTEGER:
+                case Types.SMALLINT:
+                case Types.TINYINT:
+                    integralKey = true;
+                    break;
+                default:
+                    break;
+            }
+        }
+        return new TablePlan(name, columns, keyColumn, integralKey, hasLobs ? LOB_PAGE_SIZE : pageSize);
+    }
+
+    /**
+     * Ranges are [from, to), from a multiple of the range size, the last one open ended if its end would overflow.
+     * Each range after the first starts at the one holding the next key, looked up with the primary key index.
+     */
+    private List<KeyRange> splitRanges(TablePlan plan) throws SQLException {
+        if (!plan.integralKey) {
+            return Collections.singletonList(new KeyRange(WHOLE_TABLE, null, null));
+        }
+        List<KeyRange> ranges = DbUtils.withConnection(source, conn -> {
+            List<KeyRange> split = new ArrayList<>();
+            try (PreparedStatement first = conn.prepareStatement(
+                    "SELECT MIN(" + plan.keyColumn + ") FROM " + plan.name);
+                 PreparedStatement next = conn.prepareStatement(
+                         "SELECT MIN(" + plan.keyColumn + ") FROM " + plan.name + " WHERE " + plan.keyColumn +
+                                 " >= ?")) {
+                Long key = minKey(first);
+                while (key != null) {
+                    long from = Math.floorDiv(key, rangeSize) * rangeSize;
+                    Long to = from > Long.MAX_VALUE - rangeSize ? null : from + rangeSize;
+                    split.add(new KeyRange(from + ".." + (to != null ? to : ""), from, to));
+                    if (to == null) {
+                        break;
+                    }
+                    next.setLong(1, to);
+                    key = minKey(next);
+                }
+            }
+            return split;
+        });
+        if (ranges.isEmpty()) {
+            return Collections.singletonList(new KeyRange(WHOLE_TABLE, null, null));
+        }
+        log.debug("Split {} into {} ranges", plan.name, ranges.size());
+        return ranges;
+    }
+
+    @Nullable
+    private static Long minKey(PreparedStatement stmt) throws SQLException {
+        try (ResultSet rs = stmt.executeQuery()) {
+            rs.next();
+            long key = rs.getLong(1);
+            return rs.wasNull() ? null : key;
+        }
+    }
+
+    private void copyRange(TablePlan plan, KeyRange range, TableResult result) throws SQLException {
+        long start = System.nanoTime();
+        BulkWriter writer = BulkWriter.insert(targetType, plan.name, plan.columns.toArray(new String[0]))
+                .profile(DbUtils.getConnectionProfile(target, targetType));
+        long[] copied = new long[1];
+        try (ResultSetExporter.LobSpool spool = new ResultSetExporter.LobSpool()) {
+            DbUtils.doWithConnection(source, sourceConn -> DbUtils.doWithConnection(target, targetConn -> {
+                clearTarget(targetConn, plan, range);
+                if (plan.keyColumn != null) {
+                    copied[0] = copyPages(sourceConn, targetConn, plan, range, writer, spool);
+                } else {
+                    copied[0] = copyStreaming(sourceConn, targetConn, plan, writer, spool);
+                }
+            }));
+        } catch (IOException e) {
+            throw new SQLException("Failed to delete the spooled LOBs of " + plan.name, e);
+        }
+        result.rowsCopied.add(copied[0]);
+        checkpoints.markDone(plan.name, range.id);
+        log.debug("Copied {} rows of {} range {} in {}ms", copied[0], plan.name, range.id,
+                TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+    }
+
+    /**
+     * Removes what a previous, interrupted copy of the range may have left.
+     */
+    private void clearTarget(Connection targetConn, TablePlan plan, KeyRange range) throws SQLException {
+        String sql = "DELETE FROM " + plan.name;
+        if (range.from != null) {
+            sql += " WHERE " + plan.keyColumn + " >= ?" + (range.to != null ? " AND " + plan.keyColumn + " < ?" : "");
+        }
+        try (PreparedStatement stmt = targetConn.prepareStatement(sql)) {
+            if (range.from != null) {
+                stmt.setLong(1, range.from);
+            }
+            if (range.to != null) {
+                stmt.setLong(2, range.to);
+            }
+            stmt.executeUpdate();
+        }
+        commit(targetConn);
+    }
+
+    /**
+     * Keyset pagination: every page starts right after the last key of the previous one, so each page is an index
+     * range scan however deep into the table it is.
+     */
+    private long copyPages(Connection sourceConn, Connection targetConn, TablePlan plan, KeyRange range,
+            BulkWriter writer, ResultSetExporter.LobSpool spool) throws SQLException {
+        String columns = String.join(", ", plan.columns);
+        int keyIndex = plan.columns.indexOf(plan.keyColumn);
+        long copied = 0;
+        Object lastKey = null;
+        while (true) {
+            List<String> conditions = new ArrayList<>();
+            List<Object> params = new ArrayList<>();
+            if (lastKey != null) {
+                conditions.add(plan.keyColumn + " > ?");
+                params.add(lastKey);
+            } else if (range.from != null) {
+                conditions.add(plan.keyColumn + " >= ?");
+                params.add(range.from);
+            }
+            if (range.to != null) {
+                conditions.add(plan.keyColumn + " < ?");
+                params.add(range.to);
+            }
+            String sql = "SELECT " + columns + " FROM " + plan.name +
+                    (conditions.isEmpty() ? "" : " WHERE " + String.join(" AND ", conditions)) +
+                    " ORDER BY " + plan.keyColumn + limit(sourceType, plan.pageSize);
+            List<Object[]> page = new ArrayList<>(plan.pageSize);
+            try (PreparedStatement stmt = sourceConn.prepareStatement(sql)) {
+                // A page is bounded, fetch it in one go
+                stmt.setFetchSize(plan.pageSize);
+                for (int i = 0; i < params.size(); i++) {
+                    stmt.setObject(i + 1, params.get(i));
+                }
+                try (ResultSet rs = stmt.executeQuery()) {
+                    while (rs.next()) {
+                        page.add(readRow(rs, plan.columns.size(), spool));
+                    }
+                }
+            }
+            if (page.isEmpty()) {
+                return copied;
+            }
+            lastKey = page.get(page.size() - 1)[keyIndex];
+            int written = flush(targetConn, writer, page, spool);
+            copied += written;
+            if (written < plan.pageSize) {
+                return copied;
+            }
+        }
+    }
+
+    private long copyStreaming(Connection sourceConn, Connection targetConn, TablePlan plan, BulkWriter writer,
+            ResultSetExporter.LobSpool spool) throws SQLException {
+        long copied = 0;
+        try (StreamingQuery query = StreamingQuery.open(sourceConn, sourceType,
+                "SELECT " + String.join(", ", plan.columns) + " FROM " + plan.name)) {
+            ResultSet rs = query.getResultSet();
+            List<Object[]> page = new ArrayList<>(plan.pageSize);
+            while (rs.next()) {
+                page.add(readRow(rs, plan.columns.size(), spool));
+                if (page.size() >= plan.pageSize) {
+                    copied += flush(targetConn, writer, page, spool);
+                }
+            }
+            copied += flush(targetConn, writer, page, spool);
+        }
+        return copied;
+    }
+
+    private static int flush(Connection targetConn, BulkWriter writer, List<Object[]> page,
+            ResultSetExporter.LobSpool spool) throws SQLException {
+        if (page.isEmpty()) {
+            return 0;
+        }
+        writer.write(targetConn, page);
+        commit(targetConn);
+        int size = page.size();
+        page.clear();
+        try {
+            spool.clear();
+        } catch (IOException e) {
+            throw new SQLException("Failed to delete spooled LOBs", e);
+        }
+        return size;
+    }
+
+    /**
+     * Reads LOBs up to {@value #LOB_SPOOL_THRESHOLD} bytes/characters into memory and spools larger ones to a temp
+     * file, since they are only valid as long as the source cursor and can't be bound to a statement of another
+     * driver.
+     */
+    private static Object[] readRow(ResultSet rs, int columns, ResultSetExporter.LobSpool spool) throws SQLException {
+        Object[] row = new Object[columns];
+        for (int i = 0; i < columns; i++) {
+            Object value = rs.getObject(i + 1);
+            try {
+                if (value instanceof Blob) {
+                    Blob blob = (Blob) value;
+                    long length = blob.length();
+                    value = length <= LOB_SPOOL_THRESHOLD ? blob.getBytes(1, (int) length) :
+                            spoolBlob(blob, length, spool);
+                    blob.free();
+                } else if (value instanceof Clob) {
+                    Clob clob = (Clob) value;
+                    long length = clob.length();
+                    value = length <= LOB_SPOOL_THRESHOLD ? clob.getSubString(1, (int) length) :
+                            spoolClob(clob, length, spool);
+                    clob.free();
+                }
+            } catch (IOException e) {
+                throw new SQLException("Failed to spool column " + (i + 1), e);
+            }
+            row[i] = value;
+        }
+        return row;
+    }
+
+    private static BulkWriter.StreamedValue spoolBlob(Blob blob, long length, ResultSetExporter.LobSpool spool)
+            throws SQLException, IOException {
+        Path file = spool.createFile();
+        try (InputStream in = blob.getBinaryStream()) {
+            Files.copy(in, file, StandardCopyOption.REPLACE_EXISTING);
+        }
+        return (stmt, index) -> stmt.setBinaryStream(index, openSpooled(spool, file), length);
+    }
+
+    /**
+     * Spooled as UTF-8, the length bound is still in characters.
+     */
+    private static BulkWriter.StreamedValue spoolClob(Clob clob, long length, ResultSetExporter.LobSpool spool)
+            throws SQLException, IOException {
+        Path file = spool.createFile();
+        try (Reader in = clob.getCharacterStream();
+             Writer out = new OutputStreamWriter(Files.newOutputStream(file), StandardCharsets.UTF_8)) {
+            copy(in, out);
+        }
+        return (stmt, index) -> stmt.setCharacterStream(index,
+                new InputStreamReader(openSpooled(spool, file), StandardCharsets.UTF_8), length);
+    }
+
+    private static InputStream openSpooled(ResultSetExporter.LobSpool spool, Path file) throws SQLException {
+        try {
+            return spool.open(file);
+        } catch (IOException e) {
+            throw new SQLException("Failed to open spooled LOB " + file, e);
+        }
+    }
+
+    private static void copy(Reader in, Writer out) throws IOException {
+        char[] buffer = new char[COPY_BUFFER_SIZE];
+        int read;
+        while ((read = in.read(buffer)) != -1) {
+            out.write(buffer, 0, read);
+        }
+    }
+
+    private static void commit(Connection conn) throws SQLException {
+        if (!conn.getAutoCommit()) {
+            conn.commit();
+        }
+    }
+
+    /**
+     * Oracle supports {@code FETCH FIRST} from 12c on
+     */
+    static String limit(DbType dbType, int rows) {
+        switch (dbType) {
+            case MYSQL:
+            case MARIADB:
+                return " LIMIT " + rows;
+            case MSSQL:
+                return " OFFSET 0 ROWS FETCH NEXT " + rows + " ROWS ONLY";
+            default:
+                return " FETCH FIRST " + rows + " ROWS ONLY";
+        }
+    }
+
+    private void verify(TablePlan plan, TableResult result) throws SQLException {
+        result.sourceRows = count(source, plan);
+        result.targetRows = count(target, plan);
+        if (verifyChecksums) {
+            result.sourceChecksum = checksum(source, sourceType, plan);
+            result.targetChecksum = checksum(target, targetType, plan);
+        }
+        log.info("{}", result);
+    }
+
+    private static long count(JdbcHelper jdbcHelper, TablePlan plan) throws SQLException {
+        return DbUtils.withConnection(jdbcHelper, conn -> {
+            try (PreparedStatement stmt = conn.prepareStatement("SELECT COUNT(*) FROM " + plan.name);
+                 ResultSet rs = stmt.executeQuery()) {
+                rs.next();
+                return rs.getLong(1);
+            }
+        });
+    }
+
+    /**
+     * Sum of the CRC32 of every row, so it doesn't depend on the order rows are read in. Values are hashed in a form
+     * that doesn't depend on the db type (numbers without trailing zeros, timestamps as epoch nanos...).
+     */
+    private static long checksum(JdbcHelper jdbcHelper, DbType dbType, TablePlan plan) throws SQLException {
+        String sql = "SELECT " + String.join(", ", plan.columns) + " FROM " + plan.name;
+        return DbUtils.withConnection(jdbcHelper, conn -> {
+            long sum = 0;
+            try (StreamingQuery query = StreamingQuery.open(conn, dbType, sql)) {
+                ResultSet rs = query.getResultSet();
+                CRC32 crc = new CRC32();
+                while (rs.next()) {
+                    crc.reset();
+                    for (int i = 1; i <= plan.columns.size(); i++) {
+                        updateChecksum(crc, rs.getObject(i));
+                        crc.update(0);
+                    }
+                    sum += crc.getValue();
+                }
+            }
+            return sum;
+        });
+    }
+
+    /**
+     * LOBs are streamed through the checksum, a CLOB hashing the same as a string of the same characters.
+     */
+    private static void updateChecksum(CRC32 crc, @Nullable Object value) throws SQLException {
+        try {
+            if (value instanceof Blob) {
+                Blob blob = (Blob) value;
+                try (InputStream in = blob.getBinaryStream()) {
+                    byte[] buffer = new byte[COPY_BUFFER_SIZE];
+                    int read;
+                    while ((read = in.read(buffer)) != -1) {
+                        crc.update(buffer, 0, read);
+                    }
+                }
+                blob.free();
+            } else if (value instanceof Clob) {
+                Clob clob = (Clob) value;
+                try (Reader in = clob.getCharacterStream();
+                     Writer out = new OutputStreamWriter(new CheckedOutputStream(new OutputStream() {
+                         @Override
+                         public void write(int b) {
+                         }
+                     }, crc), StandardCharsets.UTF_8)) {
+                    copy(in, out);
+                }
+                clob.free();
+            } else {
+                crc.update(checksumBytes(value));
+            }
+        } catch (IOException e) {
+            throw new SQLException("Failed to read a LOB for the checksum", e);
+        }
+    }
+
+    private static byte[] checksumBytes(@Nullable Object value) {
+        if (value == null) {
+            return new byte[]{1};
+        }
+        if (value instanceof byte[]) {
+            return (byte[]) value;
+        }
+        String text;
+        if (value instanceof Boolean) {
+            text = (Boolean) value ? "1" : "0";
+        } else if (value instanceof Number) {
+            BigDecimal number = new BigDecimal(value.toString());
+            text = number.signum() == 0 ? "0" : number.stripTrailingZeros().toPlainString();
+        } else if (value instanceof Timestamp) {
+            Timestamp timestamp = (Timestamp) value;
+            text = (timestamp.getTime() / 1000) + "." + timestamp.getNanos();
+        } else {
+            text = value.toString();
+        }
+        return text.getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * The outcome of copying one table.
+     */
+    public static class TableResult {
+        private final String table;
+        private final LongAdder rowsCopied = new LongAdder();
+        private volatile long sourceRows = -1;
+        private volatile long targetRows = -1;
+        private volatile Long sourceChecksum;
+        private volatile Long targetChecksum;
+
+        TableResult(String table) {
+            this.table = table;
+        }
+
+        public String getTable() {
+            return table;
+        }
+
+        /**
+         * @return Rows copied by this run, not counting ranges skipped thanks to checkpoints
+         */
+        public long getRowsCopied() {
+            return rowsCopied.sum();
+        }
+
+        public long getSourceRows() {
+            return sourceRows;
+        }
+
+        public long getTargetRows() {
+            return targetRows;
+        }
+
+        /**
+         * @return True if the row counts, and checksums if computed, match
+         */
+        public boolean isVerified() {
+            return sourceRows >= 0 && sourceRows == targetRows &&
+                    (sourceChecksum == null || sourceChecksum.equals(targetChecksum));
+        }
+
+        @Override
+        public String toString() {
+            return table + ": copied=" + getRowsCopied() + ", source rows=" + sourceRows + ", target rows=" +
+                    targetRows + (sourceChecksum == null ? "" :
+                    ", source checksum=" + sourceChecksum + ", target checksum=" + targetChecksum);
+        }
+    }
+
+    private static class TablePlan {
+        final String name;
+        final List<String> columns;
+        @Nullable
+        final String keyColumn;
+        final boolean integralKey;
+        final int pageSize;
+
+        TablePlan(String name, List<String> columns, @Nullable String keyColumn, boolean integralKey,
+                int pageSize) {
+            this.name = name;
+            this.columns = columns;
+            this.keyColumn = keyColumn;
+            this.integralKey = integralKey;
+            this.pageSize = pageSize;
+        }
+    }
+
+    /**
+     * Keys from {@link #from} included to {@link #to} excluded, both null for the whole table.
+     */
+    private static class KeyRange {
+        final String id;
+        @Nullable
+        final Long from;
+        @Nullable
+        final Long to;
+
+        KeyRange(String id, @Nullable Long from, @Nullable Long to) {
+            this.id = id;
+            this.from = from;
+            this.to = to;
+        }
+    }
+
+    private static ThreadFactory migrationThreads() {
+        AtomicInteger count = new AtomicInteger();
+        return r -> {
+            Thread thread = new Thread(r, "db-migration-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+}
@@ -0,0 +1,190 @@
+/*
+ *
+ * Artifactory is a binaries repository manager.
+ * Copyright (C) 2016 JFrog Ltd.
+ *
+ * Artifactory is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ * Artifactory is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with Artifactory.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package org.jfrog.storage.util;
+
+import lombok.AccessLevel;
+import lombok.NoArgsConstructor;
+
+import javax.annotation.Nullable;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import static org.apache.commons.lang.StringUtils.isBlank;
+
+/**
+ * Targeted lookups against the DB2 system catalog. The JCC driver answers {@link java.sql.DatabaseMetaData} calls
+ * through catalog stored procedures that return every index/key of the table, these go straight to the catalog views
+ * and only return the matching rows.
+ * <p>
+ * DB2 LUW exposes the catalog through the SYSCAT views, DB2 for z/OS only has the SYSIBM tables, see
+ * {@link ConnectionProfile#isDb2ForZos()}.
+ */
+@NoArgsConstructor(access = AccessLevel.PRIVATE)
+abstract class Db2Catalog {
+
+    private static final String INDEX_EXISTS_LUW = "SELECT 1 FROM SYSCAT.INDEXES " +
+            "WHERE TABSCHEMA = ? AND TABNAME = ? AND INDNAME = ? FETCH FIRST 1 ROWS ONLY";
+    private static final String INDEX_ON_COLUMN_EXISTS_LUW = "SELECT 1 FROM SYSCAT.INDEXES I " +
+            "JOIN SYSCAT.INDEXCOLUSE C ON C.INDSCHEMA = I.INDSCHEMA AND C.INDNAME = I.INDNAME " +
+            "WHERE I.TABSCHEMA = ? AND I.TABNAME = ? AND I.INDNAME = ? AND C.COLNAME = ? FETCH FIRST 1 ROWS ONLY";
+    private static final String FOREIGN_KEY_EXISTS_LUW = "SELECT 1 FROM SYSCAT.REFERENCES " +
+            "WHERE TABSCHEMA = ? AND TABNAME = ? AND CONSTNAME = ? FETCH FIRST 1 ROWS ONLY";
+    private static final String TABLE_INDEXES_LUW = "SELECT I.INDNAME, C.COLNAME FROM SYSCAT.INDEXES I " +
+            "JOIN SYSCAT.INDEXCOLUSE C ON C.INDSCHEMA = I.INDSCHEMA AND C.INDNAME = I.INDNAME " +
+            "WHERE I.TABSCHEMA = ? AND I.TABNAME = ?";
+    private static final String TABLE_FOREIGN_KEYS_LUW = "SELECT CONSTNAME FROM SYSCAT.REFERENCES " +
+            "WHERE TABSCHEMA = ? AND TABNAME = ?";
+    private static final String TABLE_COLUMNS_LUW = "SELECT COLNAME, TYPESCHEMA, TYPENAME, LENGTH, SCALE, " +
+            "CASE WHEN CODEPAGE = 0 THEN 1 ELSE 0 END FROM SYSCAT.COLUMNS WHERE TABSCHEMA = ? AND TABNAME = ?";
+
+    private static final String INDEX_EXISTS_ZOS = "SELECT 1 FROM SYSIBM.SYSINDEXES " +
+            "WHERE TBCREATOR = ? AND TBNAME = ? AND NAME = ? FETCH FIRST 1 ROWS ONLY";
+    private static final String INDEX_ON_COLUMN_EXISTS_ZOS = "SELECT 1 FROM SYSIBM.SYSINDEXES I " +
+            "JOIN SYSIBM.SYSKEYS K ON K.IXCREATOR = I.CREATOR AND K.IXNAME = I.NAME " +
+            "WHERE I.TBCREATOR = ? AND I.TBNAME = ? AND I.NAME = ? AND K.COLNAME = ? FETCH FIRST 1 ROWS ONLY";
+    private static final String FOREIGN_KEY_EXISTS_ZOS = "SELECT 1 FROM SYSIBM.SYSRELS " +
+            "WHERE CREATOR = ? AND TBNAME = ? AND RELNAME = ? FETCH FIRST 1 ROWS ONLY";
+    private static final String TABLE_INDEXES_ZOS = "SELECT I.NAME, K.COLNAME FROM SYSIBM.SYSINDEXES I " +
+            "JOIN SYSIBM.SYSKEYS K ON K.IXCREATOR = I.CREATOR AND K.IXNAME = I.NAME " +
+            "WHERE I.TBCREATOR = ? AND I.TBNAME = ?";
+    private static final String TABLE_FOREIGN_KEYS_ZOS = "SELECT RELNAME FROM SYSIBM.SYSRELS " +
+            "WHERE CREATOR = ? AND TBNAME = ?";
+    // LENGTH only holds the size of the LOB descriptor, LENGTH2 the LOB's max length
+    private static final String TABLE_COLUMNS_ZOS = "SELECT NAME, TYPESCHEMA, TYPENAME, " +
+            "CASE WHEN COLTYPE IN ('BLOB', 'CLOB', 'DBCLOB') THEN LENGTH2 ELSE LENGTH END, SCALE, " +
+            "CASE WHEN FOREIGNKEY = 'B' THEN 1 ELSE 0 END FROM SYSIBM.SYSCOLUMNS WHERE TBCREATOR = ? AND TBNAME = ?";
+
+    /**
+     * Send me normalized names!
+     *
+     * @param columnName If blank only the index name is matched.
+     */
+    static boolean indexExists(Connection conn, ConnectionProfile profile, String tableName,
+            @Nullable String columnName, String indexName) throws SQLException {
+        boolean zos = profile.isDb2ForZos();
+        if (isBlank(columnName)) {
+            return exists(conn, zos ? INDEX_EXISTS_ZOS : INDEX_EXISTS_LUW, profile.getSchema(), tableName, indexName);
+        }
+        return exists(conn, zos ? INDEX_ON_COLUMN_EXISTS_ZOS : INDEX_ON_COLUMN_EXISTS_LUW, profile.getSchema(),
+                tableName, indexName, columnName);
+    }
+
+    /**
+     * Send me normalized names!
+     */
+    static boolean foreignKeyExists(Connection conn, ConnectionProfile profile, String tableName, String keyName)
+            throws SQLException {
+        return exists(conn, profile.isDb2ForZos() ? FOREIGN_KEY_EXISTS_ZOS : FOREIGN_KEY_EXISTS_LUW,
+                profile.getSchema(), tableName, keyName);
+    }
+
+    /**
+     * @return Index name -> indexed columns of the given (normalized) table, as the catalog stores the names
+     */
+    static Map<String, Set<String>> getIndexes(Connection conn, ConnectionProfile profile, String tableName)
+            throws SQLException {
+        return StatementCache.query(conn, profile.isDb2ForZos() ? TABLE_INDEXES_ZOS : TABLE_INDEXES_LUW, rs -> {
+            Map<String, Set<String>> indexes = new HashMap<>();
+            while (rs.next()) {
+                indexes.computeIfAbsent(rs.getString(1).trim(), i -> new HashSet<>()).add(rs.getString(2).trim());
+            }
+            return indexes;
+        }, profile.getSchema(), tableName);
+    }
+
+    /**
+     * @return The foreign key names of the given (normalized) table, as the catalog stores them
+     */
+    static Set<String> getForeignKeys(Connection conn, ConnectionProfile profile, String tableName)
+            throws SQLException {
+        return StatementCache.query(conn, profile.isDb2ForZos() ? TABLE_FOREIGN_KEYS_ZOS : TABLE_FOREIGN_KEYS_LUW,
+                rs -> {
+                    Set<String> foreignKeys = new HashSet<>();
+                    while (rs.next()) {
+                        foreignKeys.add(rs.getString(1).trim());
+                    }
+                    return foreignKeys;
+                }, profile.getSchema(), tableName);
+    }
+
+    /**
+     * @return Column name -> the column's data type as it would be declared in a {@code CAST}, e.g.
+     * {@code VARCHAR(200) FOR BIT DATA} or {@code TIMESTAMP(12)}, of the given (normalized) table
+     */
+    static Map<String, String> getColumnTypes(Connection conn, ConnectionProfile profile, String tableName)
+            throws SQLException {
+        Map<String, String> types = new HashMap<>();
+        try (PreparedStatement stmt = conn.prepareStatement(
+                profile.isDb2ForZos() ? TABLE_COLUMNS_ZOS : TABLE_COLUMNS_LUW)) {
+            stmt.setString(1, profile.getSchema());
+            stmt.setString(2, tableName);
+            try (ResultSet rs = stmt.executeQuery()) {
+                while (rs.next()) {
+                    types.put(rs.getString(1).trim(), castType(rs.getString(2).trim(), rs.getString(3).trim(),
+                            rs.getLong(4), rs.getInt(5), rs.getInt(6) == 1));
+                }
+            }
+        }
+        return types;
+    }
+
+    private static String castType(String typeSchema, String typeName, long length, int scale, boolean forBitData) {
+        if (!"SYSIBM".equals(typeSchema)) {
+            // A distinct type
+            return "\"" + typeSchema + "\".\"" + typeName + "\"";
+        }
+        switch (typeName) {
+            case "CHAR":
+            case "CHARACTER":
+            case "VARCHAR":
+                return typeName + "(" + length + ")" + (forBitData ? " FOR BIT DATA" : "");
+            case "GRAPHIC":
+            case "VARGRAPHIC":
+            case "BINARY":
+            case "VARBINARY":
+            case "BLOB":
+            case "CLOB":
+            case "DBCLOB":
+                return typeName + "(" + length + ")";
+            case "DECIMAL":
+            case "NUMERIC":
+                return typeName + "(" + length + ", " + scale + ")";
+            case "DECFLOAT":
+                // LENGTH is the storage size in bytes
+                return typeName + "(" + (length == 8 ? 16 : 34) + ")";
+            case "TIMESTAMP":
+                // SCALE is the fractional seconds precision
+                return typeName + "(" + scale + ")";
+            default:
+                return typeName;
+        }
+    }
+
+    private static boolean exists(Connection conn, String sql, String... params) throws SQLException {
+        return StatementCache.query(conn, sql, ResultSet::next, (Object[]) params);
+    }
+}
@@ -0,0 +1,103 @@
+/*
+ *
+ * Artifactory is a binaries repository manager.
+ * Copyright (C) 2016 JFrog Ltd.
+ *
+ * Artifactory is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ * Artifactory is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with Artifactory.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package org.jfrog.storage.util;
+
+import org.jfrog.storage.DbType;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+
+/**
+ * Flight Recorder events for the schema probes and script statements. The events themselves live in
+ * {@value #JFR_RECORDER_CLASS}, which needs the {@code jdk.jfr} API and is compiled and loaded only where it exists;
+ * without it every call here is a no-op.
+ * <p>
+ * Callers begin an event before the work and commit it after. Begin returns null when the event isn't being recorded,
+ * in which case the caller skips gathering the event's fields altogether.
+ */
+final class DbEvents {
+    private static final Logger log = LoggerFactory.getLogger(DbEvents.class);
+
+    static final String JFR_RECORDER_CLASS = "org.jfrog.storage.util.JfrDbEventRecorder";
+
+    private static final Recorder recorder = load();
+
+    private DbEvents() {
+    }
+
+    @Nullable
+    static Object beginProbe() {
+        return recorder.beginProbe();
+    }
+
+    /**
+     * @param probe  The probing method, e.g. {@code tableExists}
+     * @param object The column, index or foreign key probed for, null for tables
+     * @param cached True if the answer came from the schema snapshot without a database call
+     */
+    static void commitProbe(Object event, String probe, DbType dbType, String table, @Nullable String object,
+            @Nullable String schema, @Nullable String catalog, boolean cached, boolean found) {
+        recorder.commitProbe(event, probe, dbType, table, object, schema, catalog, cached, found);
+    }
+
+    @Nullable
+    static Object beginStatement() {
+        return recorder.beginStatement();
+    }
+
+    static void commitStatement(Object event, ScriptStatement statement, int batchSize) {
+        recorder.commitStatement(event, statement, batchSize);
+    }
+
+    private static Recorder load() {
+        try {
+            return (Recorder) Class.forName(JFR_RECORDER_CLASS).getDeclaredConstructor().newInstance();
+        } catch (Exception | LinkageError e) {
+            log.debug("Flight Recorder events are not available: {}", e.toString());
+            return new Recorder() {
+            };
+        }
+    }
+
+    /**
+     * Emits the events, the defaults record nothing.
+     */
+    interface Recorder {
+
+        @Nullable
+        default Object beginProbe() {
+            return null;
+        }
+
+        default void commitProbe(Object event, String probe, DbType dbType, String table, @Nullable String object,
+                @Nullable String schema, @Nullable String catalog, boolean cached, boolean found) {
+        }
+
+        @Nullable
+        default Object beginStatement() {
+            return null;
+        }
+
+        default void commitStatement(Object event, ScriptStatement statement, int batchSize) {
+        }
+    }
+}
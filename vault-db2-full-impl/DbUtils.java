@@ -44,6 +44,16 @@ import java.sql.ResultSet;
 import java.sql.ResultSetMetaData;
 import java.sql.SQLException;
 import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.stream.Stream;
 
 import static org.apache.commons.lang.StringUtils.isBlank;
 import static org.apache.commons.lang.StringUtils.isNotBlank;
@@ -58,8 +68,11 @@ public abstract class DbUtils {
     private static final Logger log = LoggerFactory.getLogger(DbUtils.class);
 
     public static final String VALUES = " VALUES";
+    private static final int STREAMING_FETCH_SIZE = 1000;
     static final String COLUMN_SIZE = "COLUMN_SIZE";
 
+    private static final Map<DataSource, ConnectionProfile> connectionProfiles = new ConcurrentHashMap<>();
+
     /**
      * Closes the given resources. Exceptions are just logged.
      *
@@ -115,12 +128,15 @@ public abstract class DbUtils {
      */
     public static void close(@Nullable Connection con, @Nullable DataSource ds) {
         if (con != null) {
+            StatementCache.close(con);
             try {
                 DataSourceUtils.doReleaseConnection(con, ds);
             } catch (SQLException e) {
                 log.trace("Could not close JDBC connection", e);
+                ConnectionLease.closeFailed(e);
             } catch (Exception e) {
                 log.trace("Unexpected exception when closing JDBC connection", e);
+                ConnectionLease.closeFailed(e);
             }
         }
     }
@@ -151,14 +167,47 @@ public abstract class DbUtils {
         }
     }
 
+    /**
+     * Executes the statements in the given stream, one statement per line ending with {@code ;}, through
+     * {@link DbStatementUtils#executeSqlStream}. Drops all cached schema snapshots if the script contains DDL.
+     */
     public static void executeSqlStream(Connection con, InputStream in) throws IOException, SQLException {
-        DbStatementUtils.executeSqlStream(con, in);
+        SqlScriptExecutor.DdlWatchingInputStream script = new SqlScriptExecutor.DdlWatchingInputStream(in);
+        try {
+            DbStatementUtils.executeSqlStream(con, script);
+        } finally {
+            if (script.sawDdl()) {
+                SchemaSnapshotCache.invalidateAll();
+            }
+        }
+    }
+
+    /**
+     * Executes the statements in the given stream with {@link SqlScriptExecutor}, which batches consecutive DML
+     * statements and understands {@code ;} anywhere in a line and the DB2 terminator directive. Drops all cached
+     * schema snapshots if the script contains DDL.
+     */
+    public static void executeSqlStream(Connection con, InputStream in, SqlScriptExecutor executor)
+            throws IOException, SQLException {
+        AtomicBoolean ddl = new AtomicBoolean();
+        try {
+            executor.execute(con, in, () -> ddl.set(true));
+        } finally {
+            if (ddl.get()) {
+                SchemaSnapshotCache.invalidateAll();
+            }
+        }
     }
 
     public static void closeDataSource(DataSource dataSource) {
         if (dataSource == null) {
             return;
         }
+        SchemaSnapshotCache.remove(dataSource);
+        connectionProfiles.remove(dataSource);
+        ReplicaRouter.register(dataSource, null);
+        PoolWarmer.unregister(dataSource);
+        TableStatistics.unregister(dataSource);
         if (dataSource instanceof Closeable) {
             try {
                 ((Closeable) dataSource).close();
@@ -171,6 +220,7 @@ public abstract class DbUtils {
                 }
             }
         }
+        StatementCache.removeClosed();
     }
 
     /**
@@ -257,14 +307,114 @@ public abstract class DbUtils {
         return name;
     }
 
+    public static String normalizedName(String name, ConnectionProfile profile) {
+        return profile.normalize(name);
+    }
+
+    /**
+     * @return The {@link ConnectionProfile} of the helper's data source, resolved on first use and cached until the
+     * data source is closed through {@link #closeDataSource}.
+     */
+    public static ConnectionProfile getConnectionProfile(JdbcHelper jdbcHelper, DbType dbType) throws SQLException {
+        return getConnectionProfile(jdbcHelper, null, dbType);
+    }
+
+    /**
+     * @param conn Connection to resolve the profile with if it isn't cached yet, if null one is borrowed.
+     */
+    private static ConnectionProfile getConnectionProfile(JdbcHelper jdbcHelper, @Nullable Connection conn,
+            DbType dbType) throws SQLException {
+        DataSource ds = jdbcHelper.getDataSource();
+        ConnectionProfile profile = ds == null ? null : connectionProfiles.get(ds);
+        if (profile == null || profile.getDbType() != dbType) {
+            profile = conn != null ? ConnectionProfile.resolve(conn, dbType) :
+                    withConnection(jdbcHelper, c -> ConnectionProfile.resolve(c, dbType));
+            log.debug("Resolved {}", profile);
+            if (ds != null) {
+                connectionProfiles.put(ds, profile);
+            }
+        }
+        return profile;
+    }
+
+    /**
+     * Drops the cached schema snapshots, call this after running DDL other than through {@link #executeSqlStream}.
+     */
+    public static void invalidateSchemaCache() {
+        SchemaSnapshotCache.invalidateAll();
+    }
+
+    /**
+     * @return Number of schema probes that were answered from the cached schema snapshot
+     */
+    public static long getSchemaCacheHitCount() {
+        return SchemaSnapshotCache.getHitCount();
+    }
+
+    /**
+     * @return Number of schema probes that had to go to the database
+     */
+    public static long getSchemaCacheMissCount() {
+        return SchemaSnapshotCache.getMissCount();
+    }
+
+    /**
+     * @return Number of catalog queries that ran on an already prepared statement
+     */
+    public static long getStatementCacheHitCount() {
+        return StatementCache.getHitCount();
+    }
+
+    /**
+     * @return Number of catalog queries that had to prepare their statement
+     */
+    public static long getStatementCacheMissCount() {
+        return StatementCache.getMissCount();
+    }
+
+    /**
+     * @return Number of prepared statements closed to keep a connection's cache within its size limit
+     */
+    public static long getStatementCacheEvictionCount() {
+        return StatementCache.getEvictionCount();
+    }
+
+    /**
+     * @return Row counts and sizes of the tables in the active schema from the optimizer statistics, cached per data
+     * source for {@value TableStatistics#DEFAULT_TTL_SECONDS} seconds
+     * @see TableStatistics
+     */
+    public static TableStatistics.Report getTableStatistics(JdbcHelper jdbcHelper, DbType dbType)
+            throws SQLException {
+        return TableStatistics.of(jdbcHelper, dbType).getReport();
+    }
+
     public static boolean tableExists(JdbcHelper jdbcHelper, DbType dbType, String tableName) throws SQLException {
-        return withMetadata(jdbcHelper, metadata -> tableExists(metadata, dbType, tableName));
+        return probeSchema(jdbcHelper, null, dbType, "tableExists", tableName, null,
+                (snapshot, metadata) -> snapshot.hasTable(tableName),
+                (conn, profile) -> tableExists(conn.getMetaData(), profile, tableName));
     }
 
     public static boolean tableExists(DatabaseMetaData metadata, DbType dbType, String tableName) throws SQLException {
-        tableName = normalizedName(tableName, metadata);
-        String activeCatalog = getActiveCatalog(metadata.getConnection(), dbType);
-        String activeSchema = getActiveSchema(metadata.getConnection(), dbType);
+        Object event = DbEvents.beginProbe();
+        ConnectionProfile profile = null;
+        boolean found = false;
+        try {
+            profile = ConnectionProfile.resolve(metadata.getConnection(), dbType);
+            found = tableExists(metadata, profile, tableName);
+            return found;
+        } finally {
+            if (event != null) {
+                commitProbeEvent(event, "tableExists", dbType, profile, tableName, null, false, found);
+            }
+        }
+    }
+
+    private static boolean tableExists(DatabaseMetaData metadata, ConnectionProfile profile, String tableName)
+            throws SQLException {
+        tableName = profile.normalize(tableName);
+        String activeCatalog = profile.getCatalog();
+        String activeSchema = profile.getSchema();
         log.debug("Searching for table '{}' under schema '{}' catalog '{}'", tableName, activeSchema, activeCatalog);
         try (ResultSet rs = metadata.getTables(activeCatalog, activeSchema, tableName, new String[]{"TABLE"})) {
             boolean hasNext = rs.next();
@@ -278,15 +428,33 @@ public abstract class DbUtils {
 
     public static boolean columnExists(JdbcHelper jdbcHelper, DbType dbType, String tableName, String columnName)
             throws SQLException {
-        return withMetadata(jdbcHelper, metadata -> columnExists(metadata, dbType, tableName, columnName));
+        return probeSchema(jdbcHelper, null, dbType, "columnExists", tableName, columnName,
+                (snapshot, metadata) -> snapshot.hasColumn(tableName, columnName),
+                (conn, profile) -> columnExists(conn.getMetaData(), profile, tableName, columnName));
     }
 
     public static boolean columnExists(DatabaseMetaData metadata, DbType dbType, String tableName, String columnName)
             throws SQLException {
-        columnName = normalizedName(columnName, metadata);
-        tableName = normalizedName(tableName, metadata);
-        String activeSchema = getActiveSchema(metadata.getConnection(), dbType);
-        String activeCatalog = getActiveCatalog(metadata.getConnection(), dbType);
+        Object event = DbEvents.beginProbe();
+        ConnectionProfile profile = null;
+        boolean found = false;
+        try {
+            profile = ConnectionProfile.resolve(metadata.getConnection(), dbType);
+            found = columnExists(metadata, profile, tableName, columnName);
+            return found;
+        } finally {
+            if (event != null) {
+                commitProbeEvent(event, "columnExists", dbType, profile, tableName, columnName, false, found);
+            }
+        }
+    }
+
+    private static boolean columnExists(DatabaseMetaData metadata, ConnectionProfile profile, String tableName,
+            @Nullable String columnName) throws SQLException {
+        columnName = columnName == null ? null : profile.normalize(columnName);
+        tableName = profile.normalize(tableName);
+        String activeSchema = profile.getSchema();
+        String activeCatalog = profile.getCatalog();
         log.debug("Searching for column '{}' in table '{}' under schema '{}' catalog '{}'", columnName, tableName,
                 activeSchema, activeCatalog);
         try (ResultSet rs = metadata.getColumns(activeCatalog, activeSchema, tableName, columnName)) {
@@ -298,15 +466,76 @@ public abstract class DbUtils {
 
     public static int getColumnSize(JdbcHelper jdbcHelper, DbType dbType, String tableName, String columnName)
             throws SQLException {
-        return withMetadata(jdbcHelper, metadata -> getColumnSize(metadata, dbType, tableName, columnName));
+        Object event = DbEvents.beginProbe();
+        Integer size = null;
+        boolean found = false;
+        try {
+            size = getCachedColumnSize(jdbcHelper.getDataSource(), dbType, tableName, columnName);
+            int result = size != null ? size : loadColumnSize(jdbcHelper, dbType, tableName, columnName);
+            found = true;
+            return result;
+        } finally {
+            if (event != null) {
+                commitProbeEvent(event, "getColumnSize", jdbcHelper, dbType, tableName, columnName, size != null,
+                        found);
+            }
+        }
+    }
+
+    @Nullable
+    private static Integer getCachedColumnSize(@Nullable DataSource ds, DbType dbType, String tableName,
+            String columnName) {
+        if (!SchemaSnapshotCache.isEnabled()) {
+            return null;
+        }
+        SchemaSnapshot snapshot = SchemaSnapshotCache.peek(ds);
+        Integer size = snapshot == null || snapshot.getDbType() != dbType ? null :
+                snapshot.getColumnSize(tableName, columnName);
+        if (size != null) {
+            SchemaSnapshotCache.hit();
+        } else {
+            SchemaSnapshotCache.miss();
+        }
+        return size;
+    }
+
+    private static int loadColumnSize(JdbcHelper jdbcHelper, DbType dbType, String tableName, String columnName)
+            throws SQLException {
+        if (!SchemaSnapshotCache.isEnabled()) {
+            ConnectionProfile profile = getConnectionProfile(jdbcHelper, dbType);
+            return withMetadata(jdbcHelper, metadata -> getColumnSize(metadata, profile, tableName, columnName));
+        }
+        DataSource ds = jdbcHelper.getDataSource();
+        return withMetadata(jdbcHelper, metadata -> {
+            ConnectionProfile profile = getConnectionProfile(jdbcHelper, metadata.getConnection(), dbType);
+            Integer loadedSize = SchemaSnapshotCache.get(ds, metadata, profile).getColumnSize(tableName, columnName);
+            return loadedSize != null ? loadedSize : getColumnSize(metadata, profile, tableName, columnName);
+        });
     }
 
     public static int getColumnSize(DatabaseMetaData metadata, DbType dbType, String tableName, String columnName)
             throws SQLException {
-        String normalizedColumnName = normalizedName(columnName, metadata);
-        String normalizedTableName = normalizedName(tableName, metadata);
-        String activeSchema = getActiveSchema(metadata.getConnection(), dbType);
-        String activeCatalog = getActiveCatalog(metadata.getConnection(), dbType);
+        Object event = DbEvents.beginProbe();
+        ConnectionProfile profile = null;
+        boolean found = false;
+        try {
+            profile = ConnectionProfile.resolve(metadata.getConnection(), dbType);
+            int size = getColumnSize(metadata, profile, tableName, columnName);
+            found = true;
+            return size;
+        } finally {
+            if (event != null) {
+                commitProbeEvent(event, "getColumnSize", dbType, profile, tableName, columnName, false, found);
+            }
+        }
+    }
+
+    private static int getColumnSize(DatabaseMetaData metadata, ConnectionProfile profile, String tableName,
+            String columnName) throws SQLException {
+        String normalizedColumnName = profile.normalize(columnName);
+        String normalizedTableName = profile.normalize(tableName);
+        String activeSchema = profile.getSchema();
+        String activeCatalog = profile.getCatalog();
         log.debug("Searching for column '{}' in table '{}' under schema '{}' catalog '{}'", normalizedColumnName,
                 normalizedTableName, activeSchema, activeCatalog);
         try (ResultSet rs = metadata
@@ -327,49 +556,66 @@ public abstract class DbUtils {
      */
     public static boolean indexExists(JdbcHelper jdbcHelper, String tableName, @Nullable String columnName,
             String indexName, DbType dbType) throws SQLException {
-        return withConnection(jdbcHelper,
-                conn -> indexExists(jdbcHelper, conn, dbType, tableName, columnName, indexName, false));
+        return indexExists(jdbcHelper, null, dbType, tableName, columnName, indexName, false);
+    }
+
+    /**
+     * @param conn Connection to probe with, if null one is borrowed from {@param jdbcHelper} only when needed.
+     */
+    public static boolean indexExists(JdbcHelper jdbcHelper, @Nullable Connection conn, DbType dbType,
+            String tableName, @Nullable String columnName, String indexName, boolean strictDerby) throws SQLException {
+        boolean anyIndexOnColumn = DbType.DERBY.equals(dbType) && !strictDerby;
+        return probeSchema(jdbcHelper, conn, dbType, "indexExists", tableName, indexName,
+                (snapshot, metadata) -> snapshot.hasTable(tableName) && snapshot.hasColumn(tableName, columnName) &&
+                        snapshot.hasIndex(metadata, tableName, columnName, indexName, anyIndexOnColumn),
+                (c, profile) -> indexExistsLive(c, profile, tableName, columnName, indexName,
+                        strictDerby));
     }
 
-    public static boolean indexExists(JdbcHelper jdbcHelper, Connection conn, DbType dbType, String tableName,
+    private static boolean indexExistsLive(Connection conn, ConnectionProfile profile, String tableName,
             @Nullable String columnName, String indexName, boolean strictDerby) throws SQLException {
         DatabaseMetaData metadata = conn.getMetaData();
-        String normalizedTableName = normalizedName(tableName, metadata);
-        String normalizedColName = (isBlank(columnName) ? columnName : normalizedName(columnName, metadata));
-        String normalizedIndexName = normalizedName(indexName, metadata);
-        if (!tableExists(metadata, dbType, tableName) || !columnExists(metadata, dbType, tableName, columnName)) {
+        DbType dbType = profile.getDbType();
+        String normalizedTableName = profile.normalize(tableName);
+        String normalizedColName = (isBlank(columnName) ? columnName : profile.normalize(columnName));
+        String normalizedIndexName = profile.normalize(indexName);
+        if (DbType.DB2.equals(dbType) && profile.getSchema() != null) {
+            // A matching catalog row implies both the table and the column exist
+            return Db2Catalog.indexExists(conn, profile, normalizedTableName, normalizedColName, normalizedIndexName);
+        }
+        if (!tableExists(metadata, profile, tableName) || !columnExists(metadata, profile, tableName, columnName)) {
             return false;
         }
-        String activeCatalog = getActiveCatalog(conn, dbType);
-        String activeSchema = getActiveSchema(conn, dbType);
+        String activeCatalog = profile.getCatalog();
+        String activeSchema = profile.getSchema();
         if (DbType.DERBY.equals(dbType)) {
-            return indexExistsDerby(metadata, activeCatalog, activeSchema, normalizedTableName, normalizedColName,
-                    normalizedIndexName, strictDerby);
+            return indexExistsDerby(metadata, profile, normalizedTableName, normalizedColName, normalizedIndexName,
+                    strictDerby);
         } else if (DbType.ORACLE.equals(dbType)) {
-            return indexExistsOracle(jdbcHelper, activeSchema, normalizedTableName, normalizedColName,
+            return indexExistsOracle(conn, activeSchema, normalizedTableName, normalizedColName,
                     normalizedIndexName);
         } else {
-            return indexExists(metadata, activeCatalog, activeSchema, normalizedTableName, normalizedColName,
+            return indexExists(metadata, profile, activeCatalog, activeSchema, normalizedTableName, normalizedColName,
                     normalizedIndexName);
         }
     }
 
-    private static boolean indexExistsOracle(JdbcHelper jdbcHelper,
+    private static boolean indexExistsOracle(Connection conn,
             String activeSchema,
             String normalizedTableName, String normalizedColName, String normalizedIndexName) throws SQLException {
-        int i = jdbcHelper.executeSelectCount("SELECT COUNT(*) FROM ALL_IND_COLUMNS WHERE " +
+        return StatementCache.query(conn, "SELECT 1 FROM ALL_IND_COLUMNS WHERE " +
                 "INDEX_NAME = ? AND " +
                 "COLUMN_NAME = ? AND " +
                 "TABLE_NAME = ? AND " +
-                "INDEX_OWNER = ? ", normalizedIndexName, normalizedColName, normalizedTableName, activeSchema);
-        return i > 0;
+                "INDEX_OWNER = ? ", ResultSet::next, normalizedIndexName, normalizedColName, normalizedTableName,
+                activeSchema);
     }
 
-    private static boolean indexExists(DatabaseMetaData metadata, String activeCatalog, String activeSchema,
-            String tableName, @Nullable String columnName, String indexName) throws SQLException {
-        String colNameColumn = normalizedName("COLUMN_NAME", metadata);
-        String idxNameColumn = normalizedName("INDEX_NAME", metadata);
-        String tblNameColumn = normalizedName("TABLE_NAME", metadata);
+    private static boolean indexExists(DatabaseMetaData metadata, ConnectionProfile profile, String activeCatalog,
+            String activeSchema, String tableName, @Nullable String columnName, String indexName) throws SQLException {
+        String colNameColumn = profile.normalize("COLUMN_NAME");
+        String idxNameColumn = profile.normalize("INDEX_NAME");
+        String tblNameColumn = profile.normalize("TABLE_NAME");
         try (ResultSet rs = metadata.getIndexInfo(activeCatalog, activeSchema, tableName, false, false)) {
             return indexExists(tableName, columnName, indexName, colNameColumn, idxNameColumn, tblNameColumn, rs);
         }
@@ -400,16 +646,18 @@ public abstract class DbUtils {
      * @param strict - Strictness means we only search indices by name or use the partial-logic that just matches the
      *               column
      */
-    private static boolean indexExistsDerby(DatabaseMetaData metadata, String activeCatalog, String activeSchema,
-            String tableName, String columnName, String indexName, boolean strict) throws SQLException {
-        if (indexExists(metadata, activeCatalog, activeSchema, tableName, columnName, indexName)) {
+    private static boolean indexExistsDerby(DatabaseMetaData metadata, ConnectionProfile profile, String tableName,
+            String columnName, String indexName, boolean strict) throws SQLException {
+        String activeCatalog = profile.getCatalog();
+        String activeSchema = profile.getSchema();
+        if (indexExists(metadata, profile, activeCatalog, activeSchema, tableName, columnName, indexName)) {
             return true;
         } else if (!strict) {
             if (isBlank(columnName)) {
                 log.warn("Can't search for an index on Derby without column name");
                 return false;
             }
-            return indexExistsDerby(metadata, activeCatalog, activeSchema, tableName, columnName);
+            return indexExistsDerby(metadata, profile, activeCatalog, activeSchema, tableName, columnName);
         }
         return false;
     }
@@ -423,9 +671,9 @@ public abstract class DbUtils {
      * *any* index, then that's good enough.
      * In reality of course This is a very problematic assumption since a column can be a member in several indices.
      */
-    private static boolean indexExistsDerby(DatabaseMetaData metadata, String activeCatalog, String activeSchema,
-            String tableName, String columnName) throws SQLException {
-        String colNameColumn = normalizedName("COLUMN_NAME", metadata);
+    private static boolean indexExistsDerby(DatabaseMetaData metadata, ConnectionProfile profile,
+            String activeCatalog, String activeSchema, String tableName, String columnName) throws SQLException {
+        String colNameColumn = profile.normalize("COLUMN_NAME");
         try (ResultSet rs = metadata.getIndexInfo(activeCatalog, activeSchema, tableName, false, false)) {
             while (rs.next()) {
                 if (rs.getString(colNameColumn).equals(columnName)) {
@@ -443,31 +691,36 @@ public abstract class DbUtils {
      */
     public static boolean foreignKeyExists(JdbcHelper jdbcHelper, DbType dbType, String tableName,
             String foreignKeyName) throws SQLException {
-        return withConnection(jdbcHelper, conn -> foreignKeyExists(conn, dbType, tableName, foreignKeyName));
-    }
-
-    private static boolean foreignKeyExists(Connection conn, DbType dbType, String tableName, String foreignKeyName)
-            throws SQLException {
-        DatabaseMetaData metadata = conn.getMetaData();
-        tableName = normalizedName(tableName, metadata);
-        foreignKeyName = normalizedName(foreignKeyName, metadata);
         if (isBlank(tableName) || isBlank(foreignKeyName)) {
             throw new IllegalStateException("Could not resolve db-specific identifier names");
         }
-        if (!tableExists(metadata, dbType, tableName)) {
+        return probeSchema(jdbcHelper, null, dbType, "foreignKeyExists", tableName, foreignKeyName,
+                (snapshot, metadata) -> snapshot.hasTable(tableName) &&
+                        snapshot.hasForeignKey(metadata, tableName, foreignKeyName),
+                (conn, profile) -> foreignKeyExists(conn.getMetaData(), profile, tableName, foreignKeyName));
+    }
+
+    private static boolean foreignKeyExists(DatabaseMetaData metadata, ConnectionProfile profile, String tableName,
+            String foreignKeyName) throws SQLException {
+        tableName = profile.normalize(tableName);
+        foreignKeyName = profile.normalize(foreignKeyName);
+        if (DbType.DB2.equals(profile.getDbType()) && profile.getSchema() != null) {
+            return Db2Catalog.foreignKeyExists(metadata.getConnection(), profile, tableName, foreignKeyName);
+        }
+        if (!tableExists(metadata, profile, tableName)) {
             return false;
         }
-        return foreignKeyExists(metadata, getActiveCatalog(conn, dbType), getActiveSchema(conn, dbType), tableName,
+        return foreignKeyExists(metadata, profile, profile.getCatalog(), profile.getSchema(), tableName,
                 foreignKeyName);
     }
 
     /**
      * Send me normalized names!
      */
-    private static boolean foreignKeyExists(DatabaseMetaData metadata, String activeCatalog, String activeSchema,
-            String tableName, String keyName) throws SQLException {
-        String fkNameColumn = normalizedName("FK_NAME", metadata);
-        String fkTableColumn = normalizedName("FKTABLE_NAME", metadata);
+    private static boolean foreignKeyExists(DatabaseMetaData metadata, ConnectionProfile profile,
+            String activeCatalog, String activeSchema, String tableName, String keyName) throws SQLException {
+        String fkNameColumn = profile.normalize("FK_NAME");
+        String fkTableColumn = profile.normalize("FKTABLE_NAME");
         try (ResultSet rs = metadata.getImportedKeys(activeCatalog, activeSchema, tableName)) {
             while (rs.next()) {
                 if (rs.getString(fkNameColumn).equals(keyName) && rs.getString(fkTableColumn).equals(tableName)) {
@@ -478,6 +731,224 @@ public abstract class DbUtils {
         return false;
     }
 
+    /**
+     * Checks all of the given expectations over a single connection. Tables and columns are answered from one bulk
+     * load of the schema and indexes/foreign keys are loaded once per table, however many expectations refer to it.
+     * Missing objects are checked again on a fresh snapshot only if the cached one is older than the schema cache
+     * reload interval, a snapshot loaded since the last DDL is trusted.
+     *
+     * @return Each expectation mapped to whether it exists, in the iteration order of {@param expectations}
+     */
+    public static Map<SchemaExpectation, Boolean> verifySchema(JdbcHelper jdbcHelper, DbType dbType,
+            Collection<SchemaExpectation> expectations) throws SQLException {
+        if (expectations.isEmpty()) {
+            return Collections.emptyMap();
+        }
+        return withConnection(jdbcHelper, conn -> {
+            DatabaseMetaData metadata = conn.getMetaData();
+            ConnectionProfile profile = getConnectionProfile(jdbcHelper, conn, dbType);
+            DataSource ds = jdbcHelper.getDataSource();
+            if (!SchemaSnapshotCache.isEnabled() || ds == null) {
+                return verifySchema(SchemaSnapshot.load(metadata, profile), metadata, expectations);
+            }
+            boolean wasCached = SchemaSnapshotCache.peek(ds) != null;
+            SchemaSnapshot snapshot = SchemaSnapshotCache.get(ds, metadata, profile);
+            Map<SchemaExpectation, Boolean> results = verifySchema(snapshot, metadata, expectations);
+            if (wasCached && results.containsValue(Boolean.FALSE) && SchemaSnapshotCache.isReloadDue(snapshot)) {
+                // Objects may have been created behind the cached snapshot's back, a fresh one settles it
+                SchemaSnapshotCache.invalidate(ds);
+                results = verifySchema(SchemaSnapshotCache.get(ds, metadata, profile), metadata, expectations);
+            }
+            return results;
+        });
+    }
+
+    /**
+     * Preflight check of the schema against the one created by the db type's bundled DDL script, in one comparison
+     * instead of a probe per object. Register conversion scripts on a {@link SchemaDiff} directly to have the needed
+     * conversions reported too.
+     */
+    public static SchemaDiff.Report diffSchema(JdbcHelper jdbcHelper, DbType dbType)
+            throws SQLException, IOException {
+        return SchemaDiff.forDbType(dbType).compare(jdbcHelper);
+    }
+
+    static Map<SchemaExpectation, Boolean> verifySchema(SchemaSnapshot snapshot, DatabaseMetaData metadata,
+            Collection<SchemaExpectation> expectations) throws SQLException {
+        Map<String, List<SchemaExpectation>> byTable = new LinkedHashMap<>();
+        for (SchemaExpectation expectation : expectations) {
+            byTable.computeIfAbsent(snapshot.key(expectation.getTableName()), t -> new ArrayList<>())
+                    .add(expectation);
+        }
+        boolean derby = DbType.DERBY.equals(snapshot.getDbType());
+        Map<SchemaExpectation, Boolean> found = new HashMap<>();
+        for (List<SchemaExpectation> tableExpectations : byTable.values()) {
+            for (SchemaExpectation expectation : tableExpectations) {
+                String table = expectation.getTableName();
+                boolean exists = snapshot.hasTable(table);
+                switch (expectation.getKind()) {
+                    case TABLE:
+                        break;
+                    case COLUMN:
+                        exists = exists && snapshot.hasColumn(table, expectation.getColumnName());
+                        break;
+                    case INDEX:
+                        exists = exists && snapshot.hasColumn(table, expectation.getColumnName()) &&
+                                snapshot.hasIndex(metadata, table, expectation.getColumnName(),
+                                        expectation.getObjectName(), derby);
+                        break;
+                    case FOREIGN_KEY:
+                        exists = exists && snapshot.hasForeignKey(metadata, table, expectation.getObjectName());
+                        break;
+                    default:
+                        throw new IllegalArgumentException("Unrecognized expectation: " + expectation.getKind());
+                }
+                found.put(expectation, exists);
+            }
+        }
+        Map<SchemaExpectation, Boolean> results = new LinkedHashMap<>();
+        for (SchemaExpectation expectation : expectations) {
+            results.put(expectation, found.get(expectation));
+        }
+        log.debug("Verified {} schema expectations on {} tables", results.size(), byTable.size());
+        return results;
+    }
+
+    /**
+     * Answers a schema probe from the cached {@link SchemaSnapshot} of the helper's data source when possible.
+     * Positive answers found in an already loaded snapshot are served without borrowing a connection, anything else
+     * loads what's missing into the snapshot and is then verified with the {@param live} probe, so objects created
+     * behind the snapshot's back are still found (and invalidate it).
+     *
+     * Each probe is recorded as a {@link DbEvents} schema probe event.
+     *
+     * @param conn       Connection to use, if null one is borrowed from the helper only when needed.
+     * @param probeName  The public method probing, for the event
+     * @param objectName The column, index or foreign key probed for, null for tables
+     */
+    private static boolean probeSchema(JdbcHelper jdbcHelper, @Nullable Connection conn, DbType dbType,
+            String probeName, String tableName, @Nullable String objectName, SnapshotProbe cached, LiveProbe live)
+            throws SQLException {
+        Object event = DbEvents.beginProbe();
+        boolean fromCache = false;
+        boolean found = false;
+        try {
+            fromCache = isSnapshotHit(jdbcHelper.getDataSource(), dbType, cached);
+            found = fromCache || probeDatabase(jdbcHelper, conn, dbType, cached, live);
+            return found;
+        } finally {
+            if (event != null) {
+                commitProbeEvent(event, probeName, jdbcHelper, dbType, tableName, objectName, fromCache, found);
+            }
+        }
+    }
+
+    /**
+     * @return True if the already loaded snapshot answers the probe positively, counted as a cache hit (or miss)
+     */
+    private static boolean isSnapshotHit(@Nullable DataSource ds, DbType dbType, SnapshotProbe cached)
+            throws SQLException {
+        if (!SchemaSnapshotCache.isEnabled()) {
+            return false;
+        }
+        SchemaSnapshot snapshot = SchemaSnapshotCache.peek(ds);
+        if (snapshot != null && snapshot.getDbType() == dbType && cached.test(snapshot, null)) {
+            SchemaSnapshotCache.hit();
+            return true;
+        }
+        SchemaSnapshotCache.miss();
+        return false;
+    }
+
+    private static boolean probeDatabase(JdbcHelper jdbcHelper, @Nullable Connection conn, DbType dbType,
+            SnapshotProbe cached, LiveProbe live) throws SQLException {
+        if (!SchemaSnapshotCache.isEnabled()) {
+            SQLThrowingFunction<Connection, Boolean, SQLException> probe =
+                    c -> live.test(c, getConnectionProfile(jdbcHelper, c, dbType));
+            return conn != null ? probe.apply(conn) : withConnection(jdbcHelper, probe);
+        }
+        DataSource ds = jdbcHelper.getDataSource();
+        SQLThrowingFunction<Connection, Boolean, SQLException> probe = c -> {
+            DatabaseMetaData metadata = c.getMetaData();
+            ConnectionProfile profile = getConnectionProfile(jdbcHelper, c, dbType);
+            if (cached.test(SchemaSnapshotCache.get(ds, metadata, profile), metadata)) {
+                return true;
+            }
+            boolean found = live.test(c, profile);
+            if (found) {
+                log.debug("Schema snapshot is stale, found an object it doesn't know about");
+                SchemaSnapshotCache.invalidate(ds);
+            }
+            return found;
+        };
+        // Not on a replica: a lagging one would miss fresh DDL, and the snapshot is cached for the primary
+        return conn != null ? probe.apply(conn) : withConnection(jdbcHelper, probe);
+    }
+
+    /**
+     * Names are normalized, and schema and catalog filled in, only from an already resolved profile: recording must
+     * not cost a connection.
+     */
+    private static void commitProbeEvent(Object event, String probeName, JdbcHelper jdbcHelper, DbType dbType,
+            String tableName, @Nullable String objectName, boolean fromCache, boolean found) {
+        DataSource ds = jdbcHelper.getDataSource();
+        commitProbeEvent(event, probeName, dbType, ds == null ? null : connectionProfiles.get(ds), tableName,
+                objectName, fromCache, found);
+    }
+
+    /**
+     * @param profile Null if it wasn't resolved, the names are then recorded as given
+     */
+    private static void commitProbeEvent(Object event, String probeName, DbType dbType,
+            @Nullable ConnectionProfile profile, String tableName, @Nullable String objectName, boolean fromCache,
+            boolean found) {
+        if (profile == null || profile.getDbType() != dbType) {
+            DbEvents.commitProbe(event, probeName, dbType, tableName, objectName, null, null, fromCache, found);
+        } else {
+            DbEvents.commitProbe(event, probeName, dbType, profile.normalize(tableName),
+                    objectName == null ? null : profile.normalize(objectName), profile.getSchema(),
+                    profile.getCatalog(), fromCache, found);
+        }
+    }
+
+    @FunctionalInterface
+    private interface SnapshotProbe {
+        /**
+         * @param metadata Null when the snapshot must be queried as is, without loading anything.
+         */
+        boolean test(SchemaSnapshot snapshot, @Nullable DatabaseMetaData metadata) throws SQLException;
+    }
+
+    @FunctionalInterface
+    private interface LiveProbe {
+        boolean test(Connection conn, ConnectionProfile profile) throws SQLException;
+    }
+
+    /**
+     * @return The cheapest query the db type accepts, to check a connection is usable
+     */
+    public static String getValidationQuery(DbType dbType) {
+        switch (dbType) {
+            case DB2:
+                return "SELECT 1 FROM SYSIBM.SYSDUMMY1";
+            case ORACLE:
+                return "SELECT 1 FROM DUAL";
+            case DERBY:
+                return "VALUES 1";
+            default:
+                return "SELECT 1";
+        }
+    }
+
+    /**
+     * Opens and validates the pool's min idle connections in parallel, and re-warms the pool after a failover.
+     *
+     * @see PoolWarmer
+     */
+    public static PoolWarmer.Result warmUpPool(JdbcHelper jdbcHelper, DbType dbType) {
+        return new PoolWarmer(jdbcHelper, dbType).register().warm();
+    }
+
     public static String getDbTypeNameForSqlResources(DbType dbType) {
         String dbTypeName = dbType.name();
         if (dbTypeName.equals(DbType.MARIADB.name())) {
@@ -490,54 +961,203 @@ public abstract class DbUtils {
 
     public static void doWithConnection(JdbcHelper jdbcHelper, SQLThrowingConsumer<Connection, SQLException> whatToDo)
             throws SQLException {
-        DataSource ds = null;
-        Connection conn = null;
+        ConnectionLease lease = null;
         try {
-            ds = jdbcHelper.getDataSource();
-            conn = ds.getConnection();
-            whatToDo.accept(conn);
+            lease = ConnectionLease.acquire(jdbcHelper.getDataSource(), whatToDo);
+            whatToDo.accept(lease.getConnection());
         } finally {
-            DbUtils.close(conn, ds);
+            release(lease);
         }
     }
 
     public static void doStreamWithConnection(JdbcHelper jdbcHelper,
             IOSQLThrowingConsumer<Connection, SQLException, IOException> whatToDo) throws IOException, SQLException {
-        DataSource ds = null;
-        Connection conn = null;
+        ConnectionLease lease = null;
         try {
-            ds = jdbcHelper.getDataSource();
-            conn = ds.getConnection();
-            whatToDo.accept(conn);
+            lease = ConnectionLease.acquire(jdbcHelper.getDataSource(), whatToDo);
+            whatToDo.accept(lease.getConnection());
         } finally {
-            DbUtils.close(conn, ds);
+            release(lease);
         }
     }
 
     public static <T> T withConnection(JdbcHelper jdbcHelper, SQLThrowingFunction<Connection, T, SQLException> whatToDo)
             throws SQLException {
-        DataSource ds = null;
-        Connection conn = null;
+        ConnectionLease lease = null;
         try {
-            ds = jdbcHelper.getDataSource();
-            conn = ds.getConnection();
-            return whatToDo.apply(conn);
+            lease = ConnectionLease.acquire(jdbcHelper.getDataSource(), whatToDo);
+            return whatToDo.apply(lease.getConnection());
         } finally {
-            DbUtils.close(conn, ds);
+            release(lease);
+        }
+    }
+
+    /**
+     * Like {@link #withConnection}, running {@param whatToDo} again on a new connection when it fails with a transient
+     * error (deadlock, lock timeout, lost connection... see {@link SqlErrorClass}) as long as the policy allows it.
+     * The work must be safe to repeat, a failed attempt is rolled back if the connection isn't in auto-commit mode.
+     * Inside a {@link ConnectionScope} the scope's connection can't be replaced, so nothing is retried.
+     */
+    public static <T> T withConnection(JdbcHelper jdbcHelper, DbType dbType, RetryPolicy retryPolicy,
+            SQLThrowingFunction<Connection, T, SQLException> whatToDo) throws SQLException {
+        DataSource ds = jdbcHelper.getDataSource();
+        if (ConnectionScope.current(ds) != null) {
+            return withConnection(jdbcHelper, whatToDo);
+        }
+        return retryPolicy.execute(dbType, () -> {
+            ConnectionLease lease = null;
+            try {
+                lease = ConnectionLease.acquire(ds, whatToDo);
+                return whatToDo.apply(lease.getConnection());
+            } catch (SQLException e) {
+                if (lease != null) {
+                    rollback(lease.getConnection());
+                }
+                throw e;
+            } finally {
+                release(lease);
+            }
+        });
+    }
+
+    /**
+     * Like {@link #doWithConnection}, retrying transient failures as {@link #withConnection(JdbcHelper, DbType,
+     * RetryPolicy, SQLThrowingFunction)} does.
+     */
+    public static void doWithConnection(JdbcHelper jdbcHelper, DbType dbType, RetryPolicy retryPolicy,
+            SQLThrowingConsumer<Connection, SQLException> whatToDo) throws SQLException {
+        withConnection(jdbcHelper, dbType, retryPolicy, conn -> {
+            whatToDo.accept(conn);
+            return null;
+        });
+    }
+
+    private static void rollback(Connection conn) {
+        try {
+            if (!conn.isClosed() && !conn.getAutoCommit()) {
+                conn.rollback();
+            }
+        } catch (SQLException e) {
+            log.trace("Could not roll back failed attempt", e);
         }
     }
 
     public static <T> T withMetadata(JdbcHelper jdbcHelper,
             SQLThrowingFunction<DatabaseMetaData, T, SQLException> whatToDo) throws SQLException {
-        DataSource ds = null;
-        Connection conn = null;
+        ConnectionLease lease = null;
         try {
-            ds = jdbcHelper.getDataSource();
-            conn = ds.getConnection();
-            return whatToDo.apply(conn.getMetaData());
+            lease = ConnectionLease.acquire(jdbcHelper.getDataSource(), whatToDo);
+            return whatToDo.apply(lease.getConnection().getMetaData());
         } finally {
-            DbUtils.close(conn, ds);
+            release(lease);
+        }
+    }
+
+    /**
+     * Like {@link #withConnection} for work that only reads: runs on a replica when a {@link ReplicaRouter} is set for
+     * the helper's data source, on the primary otherwise.
+     */
+    public static <T> T withReadOnlyConnection(JdbcHelper jdbcHelper,
+            SQLThrowingFunction<Connection, T, SQLException> whatToDo) throws SQLException {
+        ConnectionLease lease = null;
+        try {
+            lease = ConnectionLease.acquireReadOnly(jdbcHelper.getDataSource(), whatToDo);
+            return whatToDo.apply(lease.getConnection());
+        } finally {
+            release(lease);
+        }
+    }
+
+    /**
+     * Like {@link #withMetadata}, on a replica when a {@link ReplicaRouter} is set for the helper's data source.
+     */
+    public static <T> T withReadOnlyMetadata(JdbcHelper jdbcHelper,
+            SQLThrowingFunction<DatabaseMetaData, T, SQLException> whatToDo) throws SQLException {
+        ConnectionLease lease = null;
+        try {
+            lease = ConnectionLease.acquireReadOnly(jdbcHelper.getDataSource(), whatToDo);
+            return whatToDo.apply(lease.getConnection().getMetaData());
+        } finally {
+            release(lease);
+        }
+    }
+
+    /**
+     * Routes the read-only work done through the helper's data source ({@link #withReadOnlyConnection} and
+     * {@link #withReadOnlyMetadata}) to the router's replicas. Null stops routing. Schema probes stay on the primary,
+     * whose schema is the one cached.
+     */
+    public static void setReplicaRouter(JdbcHelper jdbcHelper, @Nullable ReplicaRouter router) {
+        ReplicaRouter.register(jdbcHelper.getDataSource(), router);
+    }
+
+    /**
+     * Opens a scope in which the connection helpers called by the current thread for the helper's data source share a
+     * single connection, instead of borrowing one each. Nested scopes share the connection of the outermost one, which
+     * releases it when closed, so always open it in a try-with-resources block.
+     */
+    public static ConnectionScope openConnectionScope(JdbcHelper jdbcHelper) {
+        return ConnectionScope.open(jdbcHelper.getDataSource());
+    }
+
+    /**
+     * Runs the query and returns its rows lazily, mapped one at a time by {@param rowMapper} as the stream is consumed,
+     * so whole tables can be walked without materializing them. The rows are read through a streaming cursor (see
+     * {@link #getStreamingFetchSize}) on a connection borrowed until the stream is closed, so it must always be used
+     * in a try-with-resources block. Database errors while reading surface as {@link RuntimeException}s.
+     */
+    public static <T> Stream<T> queryForStream(JdbcHelper jdbcHelper, DbType dbType,
+            SQLThrowingFunction<ResultSet, T, SQLException> rowMapper, String sql, Object... params)
+            throws SQLException {
+        ConnectionLease lease = ConnectionLease.acquire(jdbcHelper.getDataSource(), rowMapper);
+        try {
+            StreamingQuery query = StreamingQuery.open(lease.getConnection(), dbType, sql, params);
+            return query.stream(rowMapper).onClose(lease::release);
+        } catch (SQLException | RuntimeException e) {
+            lease.release();
+            throw e;
+        }
+    }
+
+    private static void release(@Nullable ConnectionLease lease) {
+        if (lease != null) {
+            lease.release();
+        }
+    }
+
+    /**
+     * Sets the metrics the connection helpers report acquire and hold times, borrowed connections and swallowed close
+     * failures to. Null restores the default no-op metrics.
+     */
+    public static void setConnectionMetrics(@Nullable ConnectionMetrics metrics) {
+        ConnectionLease.setMetrics(metrics);
+    }
+
+    /**
+     * Connections held by the helpers for longer than {@param millis} are logged along with the stack that borrowed
+     * them, 0 turns this off. Defaults to the {@value ConnectionLease#SLOW_HOLD_THRESHOLD_PROPERTY} system property.
+     */
+    public static void setSlowConnectionHoldThreshold(long millis) {
+        ConnectionLease.setSlowHoldThreshold(millis);
+    }
+
+    /**
+     * @return Number of connections currently borrowed through the helpers
+     */
+    public static int getBorrowedConnectionCount() {
+        return ConnectionLease.getBorrowedCount();
+    }
+
+    /**
+     * The fetch size for reading large results through a streaming cursor: big enough to save round trips (DB2 block
+     * fetch, Oracle and MSSQL default to only 10-32 rows), small enough to keep the driver buffer bounded.
+     * MySQL only streams with {@link Integer#MIN_VALUE}, row by row.
+     */
+    public static int getStreamingFetchSize(DbType dbType) {
+        if (DbType.MYSQL.equals(dbType)) {
+            return Integer.MIN_VALUE;
         }
+        return STREAMING_FETCH_SIZE;
     }
 
     /**
@@ -0,0 +1,135 @@
+/*
+ *
+ * Artifactory is a binaries repository manager.
+ * Copyright (C) 2016 JFrog Ltd.
+ *
+ * Artifactory is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ * Artifactory is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with Artifactory.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package org.jfrog.storage.util;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * {@link ConnectionMetrics} that keeps lock-free power-of-two histograms in memory: connection acquire time, hold
+ * time per call site and concurrently borrowed connections, plus a count of swallowed close failures.
+ */
+public class HistogramConnectionMetrics implements ConnectionMetrics {
+
+    private final Histogram acquireNanos = new Histogram();
+    private final Map<String, Histogram> holdNanos = new ConcurrentHashMap<>();
+    private final Histogram borrowed = new Histogram();
+    private final LongAdder closeFailures = new LongAdder();
+
+    @Override
+    public void connectionAcquired(long nanos) {
+        acquireNanos.record(nanos);
+    }
+
+    @Override
+    public void connectionReleased(String callSite, long nanos) {
+        holdNanos.computeIfAbsent(callSite, s -> new Histogram()).record(nanos);
+    }
+
+    @Override
+    public void connectionsBorrowed(int borrowed) {
+        this.borrowed.record(borrowed);
+    }
+
+    @Override
+    public void closeFailed(Exception e) {
+        closeFailures.increment();
+    }
+
+    public Histogram getAcquireNanos() {
+        return acquireNanos;
+    }
+
+    /**
+     * @return Call site -> hold time histogram
+     */
+    public Map<String, Histogram> getHoldNanos() {
+        return Collections.unmodifiableMap(holdNanos);
+    }
+
+    public Histogram getBorrowed() {
+        return borrowed;
+    }
+
+    public long getCloseFailures() {
+        return closeFailures.sum();
+    }
+
+    /**
+     * Counts values into buckets of [2^(i-1), 2^i), percentiles are reported as the upper bound of their bucket.
+     */
+    public static class Histogram {
+        private final AtomicLongArray buckets = new AtomicLongArray(Long.SIZE);
+        private final LongAdder count = new LongAdder();
+        private final LongAdder sum = new LongAdder();
+        private final AtomicLong max = new AtomicLong();
+
+        public void record(long value) {
+            long v = Math.max(value, 0);
+            buckets.incrementAndGet(Long.SIZE - Long.numberOfLeadingZeros(v));
+            count.increment();
+            sum.add(v);
+            max.accumulateAndGet(v, Math::max);
+        }
+
+        public long getCount() {
+            return count.sum();
+        }
+
+        public long getMax() {
+            return max.get();
+        }
+
+        public double getMean() {
+            long n = count.sum();
+            return n == 0 ? 0 : (double) sum.sum() / n;
+        }
+
+        /**
+         * @param percentile Between 0 and 100
+         */
+        public long getPercentile(double percentile) {
+            long n = count.sum();
+            if (n == 0) {
+                return 0;
+            }
+            long rank = (long) Math.ceil(n * percentile / 100);
+            long seen = 0;
+            for (int i = 0; i < buckets.length(); i++) {
+                seen += buckets.get(i);
+                if (seen >= rank) {
+                    return i == 0 ? 0 : Math.min((1L << i) - 1, max.get());
+                }
+            }
+            return max.get();
+        }
+
+        @Override
+        public String toString() {
+            return "count=" + getCount() + ", mean=" + (long) getMean() + ", p50=" + getPercentile(50) + ", p99=" +
+                    getPercentile(99) + ", max=" + getMax();
+        }
+    }
+}
@@ -0,0 +1,147 @@
+/*
+ *
+ * Artifactory is a binaries repository manager.
+ * Copyright (C) 2016 JFrog Ltd.
+ *
+ * Artifactory is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ * Artifactory is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with Artifactory.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package org.jfrog.storage.util;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import org.jfrog.storage.DbType;
+
+import javax.annotation.Nullable;
+
+/**
+ * The {@link DbEvents} recorder emitting Flight Recorder events, loaded by name so the rest of the package doesn't
+ * depend on {@code jdk.jfr}.
+ */
+class JfrDbEventRecorder implements DbEvents.Recorder {
+
+    private static final int MAX_SQL_LENGTH = 4096;
+
+    @Override
+    @Nullable
+    public Object beginProbe() {
+        SchemaProbeEvent event = new SchemaProbeEvent();
+        if (!event.isEnabled()) {
+            return null;
+        }
+        event.begin();
+        return event;
+    }
+
+    @Override
+    public void commitProbe(Object event, String probe, DbType dbType, String table, @Nullable String object,
+            @Nullable String schema, @Nullable String catalog, boolean cached, boolean found) {
+        SchemaProbeEvent probeEvent = (SchemaProbeEvent) event;
+        probeEvent.end();
+        if (probeEvent.shouldCommit()) {
+            probeEvent.probe = probe;
+            probeEvent.dbType = dbType.name();
+            probeEvent.table = table;
+            probeEvent.object = object;
+            probeEvent.schema = schema;
+            probeEvent.catalog = catalog;
+            probeEvent.cached = cached;
+            probeEvent.found = found;
+            probeEvent.commit();
+        }
+    }
+
+    @Override
+    @Nullable
+    public Object beginStatement() {
+        ScriptStatementEvent event = new ScriptStatementEvent();
+        if (!event.isEnabled()) {
+            return null;
+        }
+        event.begin();
+        return event;
+    }
+
+    @Override
+    public void commitStatement(Object event, ScriptStatement statement, int batchSize) {
+        ScriptStatementEvent statementEvent = (ScriptStatementEvent) event;
+        statementEvent.end();
+        if (statementEvent.shouldCommit()) {
+            String sql = statement.getSql();
+            statementEvent.sql = sql.length() > MAX_SQL_LENGTH ? sql.substring(0, MAX_SQL_LENGTH) : sql;
+            statementEvent.line = statement.getLine();
+            statementEvent.index = statement.getIndex();
+            statementEvent.batchSize = batchSize;
+            statementEvent.commit();
+        }
+    }
+
+    @Name("org.jfrog.storage.SchemaProbe")
+    @Label("Schema Probe")
+    @Category({"JFrog", "Database"})
+    @Description("A DbUtils check for a table, column, index or foreign key")
+    @StackTrace(false)
+    static class SchemaProbeEvent extends Event {
+        @Label("Probe")
+        String probe;
+
+        @Label("Database Type")
+        String dbType;
+
+        @Label("Table")
+        String table;
+
+        @Label("Object")
+        @Description("The column, index or foreign key probed for")
+        String object;
+
+        @Label("Schema")
+        String schema;
+
+        @Label("Catalog")
+        String catalog;
+
+        @Label("From Cache")
+        @Description("Answered by the schema snapshot without a database call")
+        boolean cached;
+
+        @Label("Found")
+        boolean found;
+    }
+
+    @Name("org.jfrog.storage.ScriptStatement")
+    @Label("Script Statement")
+    @Category({"JFrog", "Database"})
+    @Description("A statement of a SQL script run through DbUtils.executeSqlStream, batched statements share the " +
+            "duration of their batch")
+    @StackTrace(false)
+    static class ScriptStatementEvent extends Event {
+        @Label("SQL")
+        String sql;
+
+        @Label("Script Line")
+        int line;
+
+        @Label("Statement Index")
+        int index;
+
+        @Label("Batch Size")
+        int batchSize;
+    }
+}
@@ -0,0 +1,96 @@
+/*
+ *
+ * Artifactory is a binaries repository manager.
+ * Copyright (C) 2016 JFrog Ltd.
+ *
+ * Artifactory is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ * Artifactory is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with Artifactory.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package org.jfrog.storage.util;
+
+import javax.annotation.Nullable;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The table ranges a {@link DataMigrator} already copied, so a failed or interrupted migration can be resumed without
+ * copying them again. Kept in memory, and appended to a file (one {@code table<TAB>range} line per copied range) when
+ * created with one.
+ */
+public class MigrationCheckpoints implements Closeable {
+
+    private final Set<String> done = ConcurrentHashMap.newKeySet();
+    @Nullable
+    private final BufferedWriter writer;
+
+    /**
+     * In memory checkpoints, only useful to retry within the same process.
+     */
+    public MigrationCheckpoints() {
+        writer = null;
+    }
+
+    /**
+     * Checkpoints loaded from and recorded to {@param file}, which is created if missing.
+     */
+    public MigrationCheckpoints(Path file) throws IOException {
+        if (Files.exists(file)) {
+            done.addAll(Files.readAllLines(file, StandardCharsets.UTF_8));
+        }
+        writer = Files.newBufferedWriter(file, StandardCharsets.UTF_8, StandardOpenOption.CREATE,
+                StandardOpenOption.APPEND);
+    }
+
+    public boolean isDone(String table, String range) {
+        return done.contains(key(table, range));
+    }
+
+    /**
+     * Records the range as copied, persisted before returning when backed by a file.
+     */
+    public void markDone(String table, String range) {
+        String key = key(table, range);
+        if (done.add(key) && writer != null) {
+            synchronized (writer) {
+                try {
+                    writer.write(key);
+                    writer.newLine();
+                    writer.flush();
+                } catch (IOException e) {
+                    throw new UncheckedIOException("Could not record migration checkpoint " + key, e);
+                }
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (writer != null) {
+            writer.close();
+        }
+    }
+
+    private static String key(String table, String range) {
+        return table + "\t" + range;
+    }
+}
@@ -0,0 +1,422 @@
+/*
+ *
+ * Artifactory is a binaries repository manager.
+ * Copyright (C) 2016 JFrog Ltd.
+ *
+ * Artifactory is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ * Artifactory is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with Artifactory.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package org.jfrog.storage.util;
+
+import org.jfrog.storage.DbType;
+import org.jfrog.storage.JdbcHelper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.SQLTransientConnectionException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Opens and validates the pool's minimum number of connections in parallel, so the connection setup cost (on DB2 the
+ * TLS handshake, authentication and JCC package loading) is paid before the application serves traffic rather than
+ * serially by its first requests.
+ * <p>
+ * All connections are held until every one of them is open, forcing the pool to create them rather than hand the
+ * same one out again, and each is validated with the db type's {@link DbUtils#getValidationQuery}. The connect and
+ * validation time of each connection is reported in the {@link Result}.
+ * <p>
+ * A {@link #register registered} warmer warms the pool again in the background when borrowing a connection fails
+ * because the database can't be reached ({@link SqlErrorClass#CONNECTION}, e.g. after a database failover, not an
+ * exhausted pool), retrying with backoff until the database accepts connections again. A re-warm gives each connection
+ * back as soon as it is validated, so it never takes more than one connection per warming thread from the
+ * application.
+ */
+public class PoolWarmer {
+    private static final Logger log = LoggerFactory.getLogger(PoolWarmer.class);
+
+    public static final int DEFAULT_CONNECTIONS = 4;
+    public static final int DEFAULT_TIMEOUT_SECONDS = 60;
+    public static final long DEFAULT_MIN_REWARM_INTERVAL_MILLIS = 10_000;
+    private static final int REWARM_ATTEMPTS = 10;
+    private static final long MAX_REWARM_BACKOFF_MILLIS = 30_000;
+    private static final String[] MIN_POOL_SIZE_GETTERS = {"getMinIdle", "getMinimumIdle", "getInitialSize"};
+
+    private static final Map<DataSource, PoolWarmer> warmers = new ConcurrentHashMap<>();
+
+    private final DataSource dataSource;
+    private final DbType dbType;
+    private int connections;
+    private int timeoutSeconds = DEFAULT_TIMEOUT_SECONDS;
+    private long minRewarmIntervalNanos = TimeUnit.MILLISECONDS.toNanos(DEFAULT_MIN_REWARM_INTERVAL_MILLIS);
+    private volatile long lastRewarmAt;
+    private volatile boolean rewarmed;
+    private CompletableFuture<Result> rewarm;
+
+    /**
+     * Warms as many connections as the pool's min idle (or initial size) when the data source tells it (tomcat, dbcp
+     * and Hikari pools do), {@value #DEFAULT_CONNECTIONS} otherwise.
+     */
+    public PoolWarmer(JdbcHelper jdbcHelper, DbType dbType) {
+        this.dataSource = jdbcHelper.getDataSource();
+        this.dbType = dbType;
+        this.connections = getMinPoolSize(dataSource);
+    }
+
+    public PoolWarmer connections(int connections) {
+        if (connections < 1) {
+            throw new IllegalArgumentException("Connections must be positive: " + connections);
+        }
+        this.connections = connections;
+        return this;
+    }
+
+    /**
+     * @param seconds Max time to open all the connections, also the validation query timeout
+     */
+    public PoolWarmer timeout(int seconds) {
+        if (seconds < 1) {
+            throw new IllegalArgumentException("Timeout must be positive: " + seconds);
+        }
+        this.timeoutSeconds = seconds;
+        return this;
+    }
+
+    /**
+     * @param millis Min time between the starts of two background re-warms
+     */
+    public PoolWarmer minRewarmInterval(long millis) {
+        this.minRewarmIntervalNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(millis, 0));
+        return this;
+    }
+
+    /**
+     * Re-warm the pool in the background whenever borrowing one of its connections fails, until the data source is
+     * closed through {@link DbUtils#closeDataSource}.
+     */
+    public PoolWarmer register() {
+        warmers.put(dataSource, this);
+        return this;
+    }
+
+    static void unregister(DataSource dataSource) {
+        warmers.remove(dataSource);
+    }
+
+    /**
+     * Called when borrowing a connection from the data source failed.
+     */
+    static void connectionFailed(DataSource dataSource, SQLException failure) {
+        PoolWarmer warmer = warmers.isEmpty() ? null : warmers.get(dataSource);
+        if (warmer != null && warmer.isConnectionFailure(failure)) {
+            warmer.rewarm();
+        }
+    }
+
+    /**
+     * @return True if the failure says the database can't be reached. Hikari reports a borrow that timed out on an
+     * exhausted pool as a {@link SQLTransientConnectionException} of its own, with the last connection failure, if
+     * there was one, as its cause: only that cause counts.
+     */
+    private boolean isConnectionFailure(SQLException failure) {
+        String state = failure.getSQLState();
+        if (failure instanceof SQLTransientConnectionException && (state == null || !state.startsWith("08"))) {
+            return failure.getCause() instanceof SQLException &&
+                    SqlErrorClass.of((SQLException) failure.getCause(), dbType) == SqlErrorClass.CONNECTION;
+        }
+        return SqlErrorClass.of(failure, dbType) == SqlErrorClass.CONNECTION;
+    }
+
+    /**
+     * Opens and validates the connections, blocking until all are done or the timeout passed.
+     */
+    public Result warm() {
+        return warm(true);
+    }
+
+    /**
+     * @param hold Keep every connection until all are open, so each is a connection of its own
+     */
+    private Result warm(boolean hold) {
+        long start = System.nanoTime();
+        int count = Math.min(connections, AsyncDbHelper.getMaxPoolSize(dataSource));
+        String validationQuery = DbUtils.getValidationQuery(dbType);
+        CountDownLatch opened = hold ? new CountDownLatch(count) : null;
+        ExecutorService executor = Executors.newFixedThreadPool(count, warmerThreads());
+        List<Future<ConnectionTiming>> futures = new ArrayList<>();
+        try {
+            for (int i = 0; i < count; i++) {
+                int index = i;
+                futures.add(executor.submit(() -> warmConnection(index, validationQuery, opened)));
+            }
+            List<ConnectionTiming> timings = new ArrayList<>();
+            long deadline = start + TimeUnit.SECONDS.toNanos(timeoutSeconds);
+            for (int i = 0; i < count; i++) {
+                timings.add(getTiming(i, futures.get(i), deadline));
+            }
+            Result result = new Result(timings, System.nanoTime() - start);
+            log.info("Warmed {} of {} connections in {}ms", result.getValidatedCount(), count,
+                    TimeUnit.NANOSECONDS.toMillis(result.getNanos()));
+            for (ConnectionTiming timing : timings) {
+                log.debug("{}", timing);
+            }
+            return result;
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Warms the pool in the background, retrying with backoff while no connection can be validated.
+     *
+     * @return The running re-warm if there is one, otherwise a new one unless the last started less than the min
+     * re-warm interval ago, in which case its result
+     */
+    public synchronized CompletableFuture<Result> rewarm() {
+        long now = System.nanoTime();
+        if (rewarm != null && (!rewarm.isDone() || (rewarmed && now - lastRewarmAt < minRewarmIntervalNanos))) {
+            return rewarm;
+        }
+        lastRewarmAt = now;
+        rewarmed = true;
+        log.info("Re-warming the connection pool of {}", dataSource);
+        ExecutorService executor = Executors.newSingleThreadExecutor(warmerThreads());
+        rewarm = CompletableFuture.supplyAsync(this::warmUntilValidated, executor);
+        executor.shutdown();
+        return rewarm;
+    }
+
+    private Result warmUntilValidated() {
+        long backoff = 1000;
+        Result result = null;
+        for (int attempt = 1; attempt <= REWARM_ATTEMPTS; attempt++) {
+            // The application is running, don't hold connections it may be waiting for
+            result = warm(false);
+            if (result.getValidatedCount() > 0) {
+                break;
+            }
+            try {
+                Thread.sleep(backoff);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+            backoff = Math.min(backoff * 2, MAX_REWARM_BACKOFF_MILLIS);
+        }
+        return result;
+    }
+
+    /**
+     * @param opened Counted down once the connection is open, and awaited before releasing it. Null to release it
+     *               right away.
+     */
+    private ConnectionTiming warmConnection(int index, String validationQuery, @Nullable CountDownLatch opened) {
+        long start = System.nanoTime();
+        ConnectionLease lease = null;
+        try {
+            lease = ConnectionLease.borrow(dataSource, this);
+            long connectNanos = System.nanoTime() - start;
+            long validateStart = System.nanoTime();
+            try (Statement stmt = lease.getConnection().createStatement()) {
+                stmt.setQueryTimeout(timeoutSeconds);
+                stmt.execute(validationQuery);
+            } catch (SQLException e) {
+                evict(lease.getConnection());
+                return new ConnectionTiming(index, connectNanos, System.nanoTime() - validateStart, e);
+            }
+            return new ConnectionTiming(index, connectNanos, System.nanoTime() - validateStart, null);
+        } catch (SQLException e) {
+            return new ConnectionTiming(index, System.nanoTime() - start, 0, e);
+        } finally {
+            if (opened != null) {
+                opened.countDown();
+                try {
+                    // Keep the connection until all are open, so each warms a connection of its own
+                    opened.await(timeoutSeconds, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            if (lease != null) {
+                lease.release();
+            }
+        }
+    }
+
+    private static ConnectionTiming getTiming(int index, Future<ConnectionTiming> future, long deadline) {
+        try {
+            return future.get(Math.max(deadline - System.nanoTime(), 0), TimeUnit.NANOSECONDS);
+        } catch (TimeoutException e) {
+            future.cancel(true);
+            return new ConnectionTiming(index, 0, 0, new SQLException("Timed out opening connection " + index, e));
+        } catch (ExecutionException e) {
+            return new ConnectionTiming(index, 0, 0, new SQLException(e.getCause()));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return new ConnectionTiming(index, 0, 0, new SQLException("Interrupted opening connection " + index, e));
+        }
+    }
+
+    /**
+     * Asks the pool to discard a connection that failed validation, if it can (Hikari can).
+     */
+    private void evict(Connection connection) {
+        try {
+            dataSource.getClass().getMethod("evictConnection", Connection.class).invoke(dataSource, connection);
+        } catch (NoSuchMethodException e) {
+            // The pool's own validation has to catch it
+        } catch (Exception e) {
+            log.debug("Could not evict connection that failed validation: {}", e.getMessage());
+        }
+    }
+
+    private static int getMinPoolSize(DataSource dataSource) {
+        for (String getter : MIN_POOL_SIZE_GETTERS) {
+            try {
+                Object size = dataSource.getClass().getMethod(getter).invoke(dataSource);
+                if (size instanceof Integer && (Integer) size > 0) {
+                    return (Integer) size;
+                }
+            } catch (NoSuchMethodException e) {
+                // Not this kind of pool
+            } catch (Exception e) {
+                log.debug("Could not read min pool size with {}: {}", getter, e.getMessage());
+            }
+        }
+        return DEFAULT_CONNECTIONS;
+    }
+
+    private static ThreadFactory warmerThreads() {
+        AtomicInteger count = new AtomicInteger();
+        return r -> {
+            Thread thread = new Thread(r, "db-pool-warmer-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+
+    /**
+     * How long opening and validating one connection took.
+     */
+    public static final class ConnectionTiming {
+        private final int index;
+        private final long connectNanos;
+        private final long validateNanos;
+        private final SQLException failure;
+
+        ConnectionTiming(int index, long connectNanos, long validateNanos, @Nullable SQLException failure) {
+            this.index = index;
+            this.connectNanos = connectNanos;
+            this.validateNanos = validateNanos;
+            this.failure = failure;
+        }
+
+        public int getIndex() {
+            return index;
+        }
+
+        /**
+         * @return Time spent in {@link DataSource#getConnection()}
+         */
+        public long getConnectNanos() {
+            return connectNanos;
+        }
+
+        /**
+         * @return Time the validation query took
+         */
+        public long getValidateNanos() {
+            return validateNanos;
+        }
+
+        public boolean isValidated() {
+            return failure == null;
+        }
+
+        /**
+         * @return Why the connection couldn't be opened or validated, null if it was
+         */
+        @Nullable
+        public SQLException getFailure() {
+            return failure;
+        }
+
+        @Override
+        public String toString() {
+            return "connection #" + index + ": connect " + TimeUnit.NANOSECONDS.toMillis(connectNanos) +
+                    "ms, validate " + TimeUnit.NANOSECONDS.toMillis(validateNanos) + "ms" +
+                    (failure == null ? "" : ", failed: " + failure.getMessage());
+        }
+    }
+
+    /**
+     * The timings of all the connections warmed.
+     */
+    public static final class Result {
+        private final List<ConnectionTiming> timings;
+        private final long nanos;
+
+        Result(List<ConnectionTiming> timings, long nanos) {
+            this.timings = Collections.unmodifiableList(timings);
+            this.nanos = nanos;
+        }
+
+        public List<ConnectionTiming> getTimings() {
+            return timings;
+        }
+
+        /**
+         * @return Total time warming took
+         */
+        public long getNanos() {
+            return nanos;
+        }
+
+        public int getValidatedCount() {
+            int validated = 0;
+            for (ConnectionTiming timing : timings) {
+                if (timing.isValidated()) {
+                    validated++;
+                }
+            }
+            return validated;
+        }
+
+        /**
+         * @return True if every connection was opened and validated
+         */
+        public boolean isReady() {
+            return getValidatedCount() == timings.size();
+        }
+    }
+}
@@ -0,0 +1,283 @@
+/*
+ *
+ * Artifactory is a binaries repository manager.
+ * Copyright (C) 2016 JFrog Ltd.
+ *
+ * Artifactory is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ * Artifactory is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with Artifactory.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package org.jfrog.storage.util;
+
+import org.jfrog.storage.DbType;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Sends the read-only work of the {@link DbUtils} helpers ({@link DbUtils#withReadOnlyConnection},
+ * {@link DbUtils#withReadOnlyMetadata}) for a primary data source to its replicas, e.g. a DB2 HADR standby with reads
+ * on standby or a Postgres hot standby.
+ * <p>
+ * The replica with the least outstanding borrows is picked, skipping replicas that failed recently or lag behind the
+ * primary by more than {@link #maxLag}, and the primary is used when no replica qualifies. Lag is measured with the
+ * db type's replication views at most once per {@link #lagCheckInterval} per replica.
+ *
+ * @see DbUtils#setReplicaRouter
+ */
+public class ReplicaRouter {
+    private static final Logger log = LoggerFactory.getLogger(ReplicaRouter.class);
+
+    public static final long DEFAULT_LAG_CHECK_INTERVAL_MILLIS = 5000;
+    public static final long DEFAULT_FAILURE_BACKOFF_MILLIS = 30_000;
+
+    private static final Map<DataSource, ReplicaRouter> routers = new ConcurrentHashMap<>();
+
+    private final DataSource primary;
+    private final DbType dbType;
+    private final List<Replica> replicas = new ArrayList<>();
+    private volatile long maxLagNanos;
+    private volatile long lagCheckIntervalNanos = TimeUnit.MILLISECONDS.toNanos(DEFAULT_LAG_CHECK_INTERVAL_MILLIS);
+    private volatile long failureBackoffNanos = TimeUnit.MILLISECONDS.toNanos(DEFAULT_FAILURE_BACKOFF_MILLIS);
+
+    public ReplicaRouter(DataSource primary, DbType dbType, List<DataSource> replicas) {
+        this.primary = primary;
+        this.dbType = dbType;
+        for (DataSource replica : replicas) {
+            this.replicas.add(new Replica(replica));
+        }
+    }
+
+    /**
+     * @param millis Replication lag above which a replica isn't used, 0 (the default) doesn't check lag
+     */
+    public ReplicaRouter maxLag(long millis) {
+        this.maxLagNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(millis, 0));
+        return this;
+    }
+
+    public ReplicaRouter lagCheckInterval(long millis) {
+        this.lagCheckIntervalNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(millis, 0));
+        return this;
+    }
+
+    /**
+     * @param millis How long a replica that failed to give a connection or to report its lag is left out
+     */
+    public ReplicaRouter failureBackoff(long millis) {
+        this.failureBackoffNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(millis, 0));
+        return this;
+    }
+
+    public DataSource getPrimary() {
+        return primary;
+    }
+
+    /**
+     * @return Number of connections currently borrowed from each replica, in the order they were given
+     */
+    public List<Integer> getOutstandingBorrows() {
+        List<Integer> outstanding = new ArrayList<>();
+        for (Replica replica : replicas) {
+            outstanding.add(replica.outstanding.get());
+        }
+        return outstanding;
+    }
+
+    static void register(DataSource primary, @Nullable ReplicaRouter router) {
+        if (router == null) {
+            routers.remove(primary);
+        } else {
+            routers.put(primary, router);
+        }
+    }
+
+    @Nullable
+    static ReplicaRouter forPrimary(DataSource dataSource) {
+        return routers.isEmpty() ? null : routers.get(dataSource);
+    }
+
+    ConnectionLease borrow(Object caller) throws SQLException {
+        List<Replica> candidates = new ArrayList<>(replicas);
+        Collections.sort(candidates, Comparator.comparingInt(replica -> replica.outstanding.get()));
+        long now = System.nanoTime();
+        for (Replica replica : candidates) {
+            if (replica.down && now - replica.downSince < failureBackoffNanos) {
+                continue;
+            }
+            replica.outstanding.incrementAndGet();
+            ConnectionLease lease = null;
+            try {
+                lease = ConnectionLease.borrow(replica.dataSource, caller);
+                if (isLagging(replica, lease.getConnection(), now)) {
+                    replica.outstanding.decrementAndGet();
+                    lease.release();
+                    continue;
+                }
+                replica.down = false;
+                lease.onRelease(replica.outstanding::decrementAndGet);
+                return lease;
+            } catch (SQLException | RuntimeException e) {
+                replica.outstanding.decrementAndGet();
+                if (lease != null) {
+                    lease.release();
+                }
+                replica.down = true;
+                replica.downSince = now;
+                log.warn("Replica {} failed, using other replicas or the primary for {}s: {}", replica.dataSource,
+                        TimeUnit.NANOSECONDS.toSeconds(failureBackoffNanos), e.getMessage());
+            }
+        }
+        return ConnectionLease.borrow(primary, caller);
+    }
+
+    private boolean isLagging(Replica replica, Connection conn, long now) throws SQLException {
+        long maxLag = maxLagNanos;
+        if (maxLag <= 0) {
+            return false;
+        }
+        if (!replica.lagChecked || now - replica.lagCheckedAt > lagCheckIntervalNanos) {
+            replica.lagMillis = measureLagMillis(conn);
+            replica.lagCheckedAt = now;
+            replica.lagChecked = true;
+        }
+        boolean lagging = TimeUnit.MILLISECONDS.toNanos(replica.lagMillis) > maxLag;
+        if (lagging) {
+            log.debug("Replica {} is {}ms behind, skipping it", replica.dataSource, replica.lagMillis);
+        }
+        return lagging;
+    }
+
+    /**
+     * Override to measure the lag of replicas the db type's views don't tell about.
+     *
+     * @return How far the replica is behind its primary, 0 when the db type can't tell or it isn't a replica. A replica
+     * that replayed everything it received is 0 however long ago the primary last wrote.
+     */
+    protected long measureLagMillis(Connection conn) throws SQLException {
+        String sql;
+        switch (dbType) {
+            case POSTGRESQL:
+                // The last replayed transaction gets older while the primary is idle, only count it when WAL is left
+                sql = "SELECT CASE WHEN NOT pg_is_in_recovery() THEN 0 " +
+                        "WHEN pg_last_wal_receive_lsn() = pg_last_wal_replay_lsn() THEN 0 " +
+                        "ELSE EXTRACT(EPOCH FROM (now() - pg_last_xact_replay_timestamp())) * 1000 END";
+                break;
+            case DB2:
+                // Only meaningful on an HADR standby with reads on standby
+                sql = "SELECT (DAYS(PRIMARY_LOG_TIME) - DAYS(STANDBY_REPLAY_LOG_TIME)) * 86400000 + " +
+                        "(MIDNIGHT_SECONDS(PRIMARY_LOG_TIME) - MIDNIGHT_SECONDS(STANDBY_REPLAY_LOG_TIME)) * 1000 " +
+                        "FROM TABLE(MON_GET_HADR(NULL)) FETCH FIRST 1 ROWS ONLY";
+                break;
+            case MYSQL:
+            case MARIADB:
+                return mysqlLagMillis(conn);
+            case MSSQL:
+                return mssqlLagMillis(conn);
+            case ORACLE:
+                return oracleLagMillis(conn);
+            default:
+                return 0;
+        }
+        try (PreparedStatement stmt = conn.prepareStatement(sql);
+             ResultSet rs = stmt.executeQuery()) {
+            return rs.next() ? Math.max(rs.getLong(1), 0) : 0;
+        }
+    }
+
+    private static long mysqlLagMillis(Connection conn) throws SQLException {
+        try (PreparedStatement stmt = conn.prepareStatement("SHOW SLAVE STATUS");
+             ResultSet rs = stmt.executeQuery()) {
+            if (!rs.next()) {
+                return 0;
+            }
+            long seconds = rs.getLong("Seconds_Behind_Master");
+            // Null while replication is stopped, the data can be arbitrarily old
+            return rs.wasNull() ? Long.MAX_VALUE : seconds * 1000;
+        }
+    }
+
+    /**
+     * secondary_lag_seconds (SQL Server 2016 on) when the replica reports it, otherwise the time to redo the log it
+     * received at the current redo rate. A redo queue that isn't being redone counts as too far behind.
+     */
+    private static long mssqlLagMillis(Connection conn) throws SQLException {
+        try (PreparedStatement stmt = conn.prepareStatement("SELECT secondary_lag_seconds, redo_queue_size, " +
+                "redo_rate FROM sys.dm_hadr_database_replica_states WHERE is_local = 1 AND database_id = DB_ID()");
+             ResultSet rs = stmt.executeQuery()) {
+            if (!rs.next()) {
+                return 0;
+            }
+            long lagSeconds = rs.getLong(1);
+            if (!rs.wasNull()) {
+                return lagSeconds * 1000;
+            }
+            long redoQueueKb = rs.getLong(2);
+            if (rs.wasNull() || redoQueueKb == 0) {
+                return 0;
+            }
+            long redoRateKbPerSecond = rs.getLong(3);
+            return redoRateKbPerSecond > 0 ? redoQueueKb * 1000 / redoRateKbPerSecond : Long.MAX_VALUE;
+        }
+    }
+
+    /**
+     * Active Data Guard reports the apply lag as a day to second interval string, e.g. {@code +00 00:00:05}.
+     */
+    private static long oracleLagMillis(Connection conn) throws SQLException {
+        try (PreparedStatement stmt = conn.prepareStatement(
+                "SELECT VALUE FROM V$DATAGUARD_STATS WHERE NAME = 'apply lag'");
+             ResultSet rs = stmt.executeQuery()) {
+            String value = rs.next() ? rs.getString(1) : null;
+            if (value == null) {
+                return 0;
+            }
+            String[] parts = value.trim().replace("+", "").split("[ :]");
+            if (parts.length != 4) {
+                return 0;
+            }
+            return TimeUnit.DAYS.toMillis(Long.parseLong(parts[0])) + TimeUnit.HOURS.toMillis(Long.parseLong(parts[1]))
+                    + TimeUnit.MINUTES.toMillis(Long.parseLong(parts[2])) +
+                    (long) (Double.parseDouble(parts[3]) * 1000);
+        }
+    }
+
+    private static class Replica {
+        private final DataSource dataSource;
+        private final AtomicInteger outstanding = new AtomicInteger();
+        private volatile boolean down;
+        private volatile long downSince;
+        private volatile boolean lagChecked;
+        private volatile long lagCheckedAt;
+        private volatile long lagMillis;
+
+        Replica(DataSource dataSource) {
+            this.dataSource = dataSource;
+        }
+    }
+}
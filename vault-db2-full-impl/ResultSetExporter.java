@@ -0,0 +1,693 @@
+/*
+ *
+ * Artifactory is a binaries repository manager.
+ * Copyright (C) 2016 JFrog Ltd.
+ *
+ * Artifactory is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ * Artifactory is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with Artifactory.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package org.jfrog.storage.util;
+
+import lombok.AccessLevel;
+import lombok.NoArgsConstructor;
+import org.jfrog.storage.DbType;
+import org.jfrog.storage.JdbcHelper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.Date;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Time;
+import java.sql.Timestamp;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Streams query results out of the database without holding them in memory, the production grade sibling of
+ * {@link DbUtils#printResultSet}. Rows are written as they are fetched (see {@link StreamingQuery} for the per db
+ * type cursor settings) through a fixed size buffer, either as RFC 4180 CSV or in a compact binary format that
+ * {@link #importBinary} loads back into a table.
+ */
+@NoArgsConstructor(access = AccessLevel.PRIVATE)
+public abstract class ResultSetExporter {
+    private static final Logger log = LoggerFactory.getLogger(ResultSetExporter.class);
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final int BINARY_MAGIC = 0x4A465253; // JFRS
+    private static final int BINARY_VERSION = 1;
+    private static final int CHUNK_SIZE = 8 * 1024;
+    // Binary values larger than this are spooled to a temp file on import
+    private static final int SPOOL_THRESHOLD = 1024 * 1024;
+    private static final byte ROW = 1;
+    private static final byte END = 0;
+
+    /**
+     * Runs the query and writes its result as CSV to {@param out}, which is flushed but not closed.
+     *
+     * @return Number of exported rows
+     */
+    public static long exportCsv(JdbcHelper jdbcHelper, DbType dbType, Writer out, String sql, Object... params)
+            throws SQLException, IOException {
+        return export(jdbcHelper, dbType, sql, params, rs -> exportCsv(rs, out));
+    }
+
+    /**
+     * Runs the query and writes its result in the binary row format to {@param out}, which is flushed but not closed.
+     *
+     * @return Number of exported rows
+     */
+    public static long exportBinary(JdbcHelper jdbcHelper, DbType dbType, OutputStream out, String sql,
+            Object... params) throws SQLException, IOException {
+        return export(jdbcHelper, dbType, sql, params, rs -> exportBinary(rs, out));
+    }
+
+    /**
+     * Writes the remaining rows of {@param rs} as CSV, header line first. Nulls are written as empty fields. Character
+     * LOBs and long character columns are streamed from the result set and always quoted.
+     *
+     * @return Number of exported rows
+     */
+    public static long exportCsv(ResultSet rs, Writer out) throws SQLException, IOException {
+        BufferedWriter writer = new BufferedWriter(out, BUFFER_SIZE);
+        ResultSetMetaData rsmd = rs.getMetaData();
+        int columns = rsmd.getColumnCount();
+        boolean[] streamed = new boolean[columns + 1];
+        for (int i = 1; i <= columns; i++) {
+            if (i > 1) {
+                writer.write(',');
+            }
+            writeCsvField(writer, rsmd.getColumnLabel(i));
+            streamed[i] = ValueKind.of(rsmd.getColumnType(i)) == ValueKind.TEXT;
+        }
+        writer.write("\r\n");
+        long rows = 0;
+        while (rs.next()) {
+            for (int i = 1; i <= columns; i++) {
+                if (i > 1) {
+                    writer.write(',');
+                }
+                if (streamed[i]) {
+                    try (Reader value = rs.getCharacterStream(i)) {
+                        if (value != null) {
+                            writeCsvField(writer, value);
+                        }
+                    }
+                    continue;
+                }
+                String value = rs.getString(i);
+                if (value != null) {
+                    writeCsvField(writer, value);
+                }
+            }
+            writer.write("\r\n");
+            rows++;
+        }
+        writer.flush();
+        return rows;
+    }
+
+    private static void writeCsvField(Writer writer, String value) throws IOException {
+        boolean quote = false;
+        for (int i = 0; i < value.length() && !quote; i++) {
+            char c = value.charAt(i);
+            quote = c == ',' || c == '"' || c == '\r' || c == '\n';
+        }
+        if (!quote) {
+            writer.write(value);
+            return;
+        }
+        writer.write('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"') {
+                writer.write('"');
+            }
+            writer.write(c);
+        }
+        writer.write('"');
+    }
+
+    /**
+     * Writes a quoted field from a stream of unknown content.
+     */
+    private static void writeCsvField(Writer writer, Reader value) throws IOException {
+        writer.write('"');
+        char[] chunk = new char[CHUNK_SIZE];
+        int read;
+        while ((read = value.read(chunk)) != -1) {
+            for (int i = 0; i < read; i++) {
+                if (chunk[i] == '"') {
+                    writer.write('"');
+                }
+                writer.write(chunk[i]);
+            }
+        }
+        writer.write('"');
+    }
+
+    /**
+     * Writes the remaining rows of {@param rs} in the binary row format: a header with the column names and types
+     * followed by one record per row, each value typed and null flagged. Binary values, character LOBs and long
+     * character columns are streamed from the result set in length prefixed chunks ending with an empty one, so a LOB
+     * is never held in memory whole.
+     *
+     * @return Number of exported rows
+     */
+    public static long exportBinary(ResultSet rs, OutputStream out) throws SQLException, IOException {
+        DataOutputStream data = new DataOutputStream(new BufferedOutputStream(out, BUFFER_SIZE));
+        ResultSetMetaData rsmd = rs.getMetaData();
+        int columns = rsmd.getColumnCount();
+        ValueKind[] kinds = new ValueKind[columns];
+        data.writeInt(BINARY_MAGIC);
+        data.writeInt(BINARY_VERSION);
+        data.writeInt(columns);
+        for (int i = 0; i < columns; i++) {
+            kinds[i] = ValueKind.of(rsmd.getColumnType(i + 1));
+            writeString(data, rsmd.getColumnLabel(i + 1));
+            data.writeInt(rsmd.getColumnType(i + 1));
+        }
+        long rows = 0;
+        while (rs.next()) {
+            data.writeByte(ROW);
+            for (int i = 0; i < columns; i++) {
+                kinds[i].writeValue(rs, i + 1, data);
+            }
+            rows++;
+        }
+        data.writeByte(END);
+        data.flush();
+        return rows;
+    }
+
+    /**
+     * Inserts the rows of a binary export into {@param tableName}, which must have the exported columns. Binary values
+     * over {@value #SPOOL_THRESHOLD} bytes and character LOBs over as many chars are spooled to temp files until their
+     * batch is executed.
+     *
+     * @param batchSize Number of rows per insert batch
+     * @return Number of imported rows
+     */
+    public static long importBinary(Connection conn, String tableName, InputStream in, int batchSize)
+            throws SQLException, IOException {
+        DataInputStream data = new DataInputStream(new BufferedInputStream(in, BUFFER_SIZE));
+        if (data.readInt() != BINARY_MAGIC) {
+            throw new IOException("Not a binary result set export");
+        }
+        int version = data.readInt();
+        if (version != BINARY_VERSION) {
+            throw new IOException("Unsupported binary export version: " + version);
+        }
+        int columns = data.readInt();
+        String[] names = new String[columns];
+        int[] sqlTypes = new int[columns];
+        ValueKind[] kinds = new ValueKind[columns];
+        for (int i = 0; i < columns; i++) {
+            names[i] = readString(data);
+            sqlTypes[i] = data.readInt();
+            kinds[i] = ValueKind.of(sqlTypes[i]);
+        }
+        String sql = "INSERT INTO " + tableName + " (" + String.join(", ", names) + ")" + DbUtils.VALUES + " (" +
+                String.join(", ", Collections.nCopies(columns, "?")) + ")";
+        long rows = 0;
+        try (PreparedStatement stmt = conn.prepareStatement(sql); LobSpool spool = new LobSpool()) {
+            int batched = 0;
+            while (data.readByte() == ROW) {
+                for (int i = 0; i < columns; i++) {
+                    kinds[i].bind(stmt, i + 1, sqlTypes[i], data, spool);
+                }
+                stmt.addBatch();
+                rows++;
+                if (++batched >= batchSize) {
+                    stmt.executeBatch();
+                    spool.clear();
+                    batched = 0;
+                }
+            }
+            if (batched > 0) {
+                stmt.executeBatch();
+            }
+        }
+        log.debug("Imported {} rows into {}", rows, tableName);
+        return rows;
+    }
+
+    private static long export(JdbcHelper jdbcHelper, DbType dbType, String sql, Object[] params,
+            ResultSetWriter writer) throws SQLException, IOException {
+        long[] rows = new long[1];
+        DbUtils.doStreamWithConnection(jdbcHelper, conn -> {
+            try (StreamingQuery query = StreamingQuery.open(conn, dbType, sql, params)) {
+                rows[0] = writer.write(query.getResultSet());
+            }
+        });
+        log.debug("Exported {} rows of: {}", rows[0], sql);
+        return rows[0];
+    }
+
+    private static void writeString(DataOutputStream data, String value) throws IOException {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        data.writeInt(bytes.length);
+        data.write(bytes);
+    }
+
+    private static String readString(DataInputStream data) throws IOException {
+        byte[] bytes = new byte[data.readInt()];
+        data.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    @FunctionalInterface
+    private interface ResultSetWriter {
+        long write(ResultSet rs) throws SQLException, IOException;
+    }
+
+    /**
+     * Temp files holding the large LOB values of the batch being built, deleted once it was executed. Also used by
+     * {@link DataMigrator} for the LOBs of the page being copied.
+     */
+    static class LobSpool implements Closeable {
+        private final List<Path> files = new ArrayList<>();
+        private final List<InputStream> streams = new ArrayList<>();
+
+        Path createFile() throws IOException {
+            Path file = Files.createTempFile("lob-spool", ".lob");
+            files.add(file);
+            return file;
+        }
+
+        InputStream open(Path file) throws IOException {
+            InputStream in = new BufferedInputStream(Files.newInputStream(file), BUFFER_SIZE);
+            streams.add(in);
+            return in;
+        }
+
+        @Override
+        public void close() throws IOException {
+            clear();
+        }
+
+        void clear() throws IOException {
+            for (InputStream in : streams) {
+                in.close();
+            }
+            streams.clear();
+            for (Path file : files) {
+                Files.deleteIfExists(file);
+            }
+            files.clear();
+        }
+    }
+
+    /**
+     * How a value is written to and read from the binary format. Every value starts with a null flag byte.
+     */
+    private enum ValueKind {
+        LONG {
+            @Override
+            void writeValue(ResultSet rs, int column, DataOutputStream data) throws SQLException, IOException {
+                long value = rs.getLong(column);
+                if (writeNull(rs, data)) {
+                    data.writeLong(value);
+                }
+            }
+
+            @Override
+            void bind(PreparedStatement stmt, int index, int sqlType, DataInputStream data, LobSpool spool)
+                    throws SQLException, IOException {
+                bindValue(stmt, index, sqlType, data, DataInputStream::readLong);
+            }
+        },
+        DOUBLE {
+            @Override
+            void writeValue(ResultSet rs, int column, DataOutputStream data) throws SQLException, IOException {
+                double value = rs.getDouble(column);
+                if (writeNull(rs, data)) {
+                    data.writeDouble(value);
+                }
+            }
+
+            @Override
+            void bind(PreparedStatement stmt, int index, int sqlType, DataInputStream data, LobSpool spool)
+                    throws SQLException, IOException {
+                bindValue(stmt, index, sqlType, data, DataInputStream::readDouble);
+            }
+        },
+        BOOLEAN {
+            @Override
+            void writeValue(ResultSet rs, int column, DataOutputStream data) throws SQLException, IOException {
+                boolean value = rs.getBoolean(column);
+                if (writeNull(rs, data)) {
+                    data.writeBoolean(value);
+                }
+            }
+
+            @Override
+            void bind(PreparedStatement stmt, int index, int sqlType, DataInputStream data, LobSpool spool)
+                    throws SQLException, IOException {
+                bindValue(stmt, index, sqlType, data, DataInputStream::readBoolean);
+            }
+        },
+        DECIMAL {
+            @Override
+            void writeValue(ResultSet rs, int column, DataOutputStream data) throws SQLException, IOException {
+                BigDecimal value = rs.getBigDecimal(column);
+                if (writeNull(rs, data)) {
+                    writeString(data, value.toString());
+                }
+            }
+
+            @Override
+            void bind(PreparedStatement stmt, int index, int sqlType, DataInputStream data, LobSpool spool)
+                    throws SQLException, IOException {
+                bindValue(stmt, index, sqlType, data, in -> new BigDecimal(readString(in)));
+            }
+        },
+        TIMESTAMP {
+            @Override
+            void writeValue(ResultSet rs, int column, DataOutputStream data) throws SQLException, IOException {
+                Timestamp value = rs.getTimestamp(column);
+                if (writeNull(rs, data)) {
+                    data.writeLong(value.getTime());
+                    data.writeInt(value.getNanos());
+                }
+            }
+
+            @Override
+            void bind(PreparedStatement stmt, int index, int sqlType, DataInputStream data, LobSpool spool)
+                    throws SQLException, IOException {
+                bindValue(stmt, index, sqlType, data, in -> {
+                    Timestamp value = new Timestamp(in.readLong());
+                    value.setNanos(in.readInt());
+                    return value;
+                });
+            }
+        },
+        DATE {
+            @Override
+            void writeValue(ResultSet rs, int column, DataOutputStream data) throws SQLException, IOException {
+                Date value = rs.getDate(column);
+                if (writeNull(rs, data)) {
+                    data.writeLong(value.getTime());
+                }
+            }
+
+            @Override
+            void bind(PreparedStatement stmt, int index, int sqlType, DataInputStream data, LobSpool spool)
+                    throws SQLException, IOException {
+                bindValue(stmt, index, sqlType, data, in -> new Date(in.readLong()));
+            }
+        },
+        TIME {
+            @Override
+            void writeValue(ResultSet rs, int column, DataOutputStream data) throws SQLException, IOException {
+                Time value = rs.getTime(column);
+                if (writeNull(rs, data)) {
+                    data.writeLong(value.getTime());
+                }
+            }
+
+            @Override
+            void bind(PreparedStatement stmt, int index, int sqlType, DataInputStream data, LobSpool spool)
+                    throws SQLException, IOException {
+                bindValue(stmt, index, sqlType, data, in -> new Time(in.readLong()));
+            }
+        },
+        BYTES {
+            @Override
+            void writeValue(ResultSet rs, int column, DataOutputStream data) throws SQLException, IOException {
+                try (InputStream value = rs.getBinaryStream(column)) {
+                    data.writeBoolean(value != null);
+                    if (value == null) {
+                        return;
+                    }
+                    byte[] chunk = new byte[CHUNK_SIZE];
+                    int read;
+                    while ((read = value.read(chunk)) != -1) {
+                        if (read > 0) {
+                            data.writeInt(read);
+                            data.write(chunk, 0, read);
+                        }
+                    }
+                    data.writeInt(0);
+                }
+            }
+
+            /**
+             * Values up to {@value #SPOOL_THRESHOLD} bytes are bound as a byte array, larger ones as a stream over
+             * their spooled copy.
+             */
+            @Override
+            void bind(PreparedStatement stmt, int index, int sqlType, DataInputStream data, LobSpool spool)
+                    throws SQLException, IOException {
+                if (!data.readBoolean()) {
+                    stmt.setNull(index, sqlType);
+                    return;
+                }
+                ByteArrayOutputStream memory = new ByteArrayOutputStream();
+                OutputStream out = memory;
+                Path file = null;
+                long length = 0;
+                byte[] buffer = new byte[CHUNK_SIZE];
+                try {
+                    int chunk;
+                    while ((chunk = data.readInt()) > 0) {
+                        if (file == null && length + chunk > SPOOL_THRESHOLD) {
+                            file = spool.createFile();
+                            out = new BufferedOutputStream(Files.newOutputStream(file), BUFFER_SIZE);
+                            memory.writeTo(out);
+                            memory.reset();
+                        }
+                        for (int remaining = chunk; remaining > 0; ) {
+                            int read = Math.min(remaining, buffer.length);
+                            data.readFully(buffer, 0, read);
+                            out.write(buffer, 0, read);
+                            remaining -= read;
+                        }
+                        length += chunk;
+                    }
+                } finally {
+                    out.close();
+                }
+                if (file == null) {
+                    stmt.setBytes(index, memory.toByteArray());
+                } else {
+                    stmt.setBinaryStream(index, spool.open(file), length);
+                }
+            }
+        },
+        TEXT {
+            /**
+             * Streams the value from the result set as UTF-8 chunks of up to {@value #CHUNK_SIZE} chars ending with
+             * an empty one, a surrogate pair is never split between two chunks.
+             */
+            @Override
+            void writeValue(ResultSet rs, int column, DataOutputStream data) throws SQLException, IOException {
+                try (Reader value = rs.getCharacterStream(column)) {
+                    data.writeBoolean(value != null);
+                    if (value == null) {
+                        return;
+                    }
+                    char[] chunk = new char[CHUNK_SIZE];
+                    int pending = 0;
+                    int read;
+                    while ((read = value.read(chunk, pending, CHUNK_SIZE - pending)) != -1) {
+                        int length = pending + read;
+                        // A high surrogate at the end waits for its low surrogate in the next chunk
+                        pending = length > 0 && Character.isHighSurrogate(chunk[length - 1]) ? 1 : 0;
+                        if (length > pending) {
+                            byte[] bytes = new String(chunk, 0, length - pending).getBytes(StandardCharsets.UTF_8);
+                            data.writeInt(bytes.length);
+                            data.write(bytes);
+                        }
+                        if (pending > 0) {
+                            chunk[0] = chunk[length - 1];
+                        }
+                    }
+                    if (pending > 0) {
+                        byte[] bytes = new String(chunk, 0, pending).getBytes(StandardCharsets.UTF_8);
+                        data.writeInt(bytes.length);
+                        data.write(bytes);
+                    }
+                    data.writeInt(0);
+                }
+            }
+
+            /**
+             * Values up to {@value #SPOOL_THRESHOLD} chars are bound as a string, larger ones as a reader over their
+             * spooled copy.
+             */
+            @Override
+            void bind(PreparedStatement stmt, int index, int sqlType, DataInputStream data, LobSpool spool)
+                    throws SQLException, IOException {
+                if (!data.readBoolean()) {
+                    stmt.setNull(index, sqlType);
+                    return;
+                }
+                StringBuilder memory = new StringBuilder();
+                Writer out = null;
+                Path file = null;
+                long length = 0;
+                try {
+                    int chunk;
+                    while ((chunk = data.readInt()) > 0) {
+                        byte[] bytes = new byte[chunk];
+                        data.readFully(bytes);
+                        String text = new String(bytes, StandardCharsets.UTF_8);
+                        if (file == null && length + text.length() > SPOOL_THRESHOLD) {
+                            file = spool.createFile();
+                            out = new BufferedWriter(new OutputStreamWriter(Files.newOutputStream(file),
+                                    StandardCharsets.UTF_8), BUFFER_SIZE);
+                            out.write(memory.toString());
+                            memory.setLength(0);
+                        }
+                        if (out != null) {
+                            out.write(text);
+                        } else {
+                            memory.append(text);
+                        }
+                        length += text.length();
+                    }
+                } finally {
+                    if (out != null) {
+                        out.close();
+                    }
+                }
+                if (file == null) {
+                    stmt.setString(index, memory.toString());
+                } else {
+                    stmt.setCharacterStream(index, new InputStreamReader(spool.open(file), StandardCharsets.UTF_8),
+                            length);
+                }
+            }
+        },
+        STRING {
+            @Override
+            void writeValue(ResultSet rs, int column, DataOutputStream data) throws SQLException, IOException {
+                String value = rs.getString(column);
+                if (writeNull(rs, data)) {
+                    writeString(data, value);
+                }
+            }
+
+            @Override
+            void bind(PreparedStatement stmt, int index, int sqlType, DataInputStream data, LobSpool spool)
+                    throws SQLException, IOException {
+                bindValue(stmt, index, sqlType, data, ResultSetExporter::readString);
+            }
+        };
+
+        abstract void writeValue(ResultSet rs, int column, DataOutputStream data) throws SQLException, IOException;
+
+        /**
+         * Reads the next value of the binary format and binds it to the parameter.
+         */
+        abstract void bind(PreparedStatement stmt, int index, int sqlType, DataInputStream data, LobSpool spool)
+                throws SQLException, IOException;
+
+        /**
+         * Binds a value read whole by {@param reader}, or null as flagged.
+         */
+        private static void bindValue(PreparedStatement stmt, int index, int sqlType, DataInputStream data,
+                ValueReader reader) throws SQLException, IOException {
+            if (data.readBoolean()) {
+                stmt.setObject(index, reader.read(data), sqlType);
+            } else {
+                stmt.setNull(index, sqlType);
+            }
+        }
+
+        /**
+         * Writes the null flag of the value just read, must be called after the getter.
+         *
+         * @return True if the value isn't null and should be written
+         */
+        private static boolean writeNull(ResultSet rs, DataOutputStream data) throws SQLException, IOException {
+            boolean present = !rs.wasNull();
+            data.writeBoolean(present);
+            return present;
+        }
+
+        static ValueKind of(int sqlType) {
+            switch (sqlType) {
+                case Types.BIGINT:
+                case Types.INTEGER:
+                case Types.SMALLINT:
+                case Types.TINYINT:
+                    return LONG;
+                case Types.DOUBLE:
+                case Types.FLOAT:
+                case Types.REAL:
+                    return DOUBLE;
+                case Types.BIT:
+                case Types.BOOLEAN:
+                    return BOOLEAN;
+                case Types.DECIMAL:
+                case Types.NUMERIC:
+                    return DECIMAL;
+                case Types.TIMESTAMP:
+                case Types.TIMESTAMP_WITH_TIMEZONE:
+                    return TIMESTAMP;
+                case Types.DATE:
+                    return DATE;
+                case Types.TIME:
+                case Types.TIME_WITH_TIMEZONE:
+                    return TIME;
+                case Types.BINARY:
+                case Types.VARBINARY:
+                case Types.LONGVARBINARY:
+                case Types.BLOB:
+                    return BYTES;
+                case Types.CLOB:
+                case Types.NCLOB:
+                case Types.LONGVARCHAR:
+                case Types.LONGNVARCHAR:
+                    return TEXT;
+                default:
+                    return STRING;
+            }
+        }
+    }
+
+    /**
+     * Reads one value of the binary format, after its null flag.
+     */
+    @FunctionalInterface
+    private interface ValueReader {
+        Object read(DataInputStream data) throws IOException;
+    }
+}
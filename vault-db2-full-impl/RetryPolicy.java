@@ -0,0 +1,168 @@
+/*
+ *
+ * Artifactory is a binaries repository manager.
+ * Copyright (C) 2016 JFrog Ltd.
+ *
+ * Artifactory is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ * Artifactory is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with Artifactory.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package org.jfrog.storage.util;
+
+import org.jfrog.storage.DbType;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.sql.SQLException;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * When and how long to wait before running work that failed with a transient {@link SqlErrorClass} again, for the
+ * retrying {@link DbUtils} connection helpers.
+ * <p>
+ * Waits grow exponentially with full jitter, so clients that failed together don't retry together. Retries are also
+ * limited by a budget that every call adds {@link #budgetRatio} of a retry to, so when the database is struggling
+ * retries can add at most that fraction of load on top of the calls themselves. Retries and given up calls are counted
+ * per error class.
+ */
+public class RetryPolicy {
+    private static final Logger log = LoggerFactory.getLogger(RetryPolicy.class);
+
+    public static final int DEFAULT_MAX_ATTEMPTS = 3;
+    public static final long DEFAULT_INITIAL_BACKOFF_MILLIS = 50;
+    public static final long DEFAULT_MAX_BACKOFF_MILLIS = 2000;
+    public static final double DEFAULT_BUDGET_RATIO = 0.1;
+    public static final int DEFAULT_MIN_BUDGET = 10;
+
+    private int maxAttempts = DEFAULT_MAX_ATTEMPTS;
+    private long initialBackoffMillis = DEFAULT_INITIAL_BACKOFF_MILLIS;
+    private long maxBackoffMillis = DEFAULT_MAX_BACKOFF_MILLIS;
+    private double budgetRatio = DEFAULT_BUDGET_RATIO;
+    private int minBudget = DEFAULT_MIN_BUDGET;
+    private double budget = DEFAULT_MIN_BUDGET;
+    private final Map<SqlErrorClass, LongAdder> retries = new EnumMap<>(SqlErrorClass.class);
+    private final Map<SqlErrorClass, LongAdder> givenUp = new EnumMap<>(SqlErrorClass.class);
+
+    public RetryPolicy() {
+        for (SqlErrorClass errorClass : SqlErrorClass.values()) {
+            retries.put(errorClass, new LongAdder());
+            givenUp.put(errorClass, new LongAdder());
+        }
+    }
+
+    /**
+     * @param maxAttempts Total attempts including the first, 1 never retries
+     */
+    public RetryPolicy maxAttempts(int maxAttempts) {
+        if (maxAttempts < 1) {
+            throw new IllegalArgumentException("Max attempts must be positive: " + maxAttempts);
+        }
+        this.maxAttempts = maxAttempts;
+        return this;
+    }
+
+    public RetryPolicy backoff(long initialMillis, long maxMillis) {
+        if (initialMillis < 0 || maxMillis < initialMillis) {
+            throw new IllegalArgumentException("Invalid backoff: " + initialMillis + "-" + maxMillis);
+        }
+        this.initialBackoffMillis = initialMillis;
+        this.maxBackoffMillis = maxMillis;
+        return this;
+    }
+
+    /**
+     * @param ratio     Retries each call adds to the budget, e.g. 0.1 allows one retry per 10 calls
+     * @param minBudget Retries the budget starts with, it can also always save up at least that many
+     */
+    public synchronized RetryPolicy budget(double ratio, int minBudget) {
+        if (ratio < 0 || minBudget < 0) {
+            throw new IllegalArgumentException("Invalid retry budget: " + ratio + ", " + minBudget);
+        }
+        this.budgetRatio = ratio;
+        this.minBudget = minBudget;
+        this.budget = Math.max(budget, minBudget);
+        return this;
+    }
+
+    /**
+     * @return Retries made so far for the error class
+     */
+    public long getRetryCount(SqlErrorClass errorClass) {
+        return retries.get(errorClass).sum();
+    }
+
+    /**
+     * @return Calls that failed with a transient error of the class but weren't retried, out of attempts or budget
+     */
+    public long getGivenUpCount(SqlErrorClass errorClass) {
+        return givenUp.get(errorClass).sum();
+    }
+
+    <T> T execute(DbType dbType, Attempt<T> attempt) throws SQLException {
+        deposit();
+        for (int attemptNumber = 1; ; attemptNumber++) {
+            try {
+                return attempt.run();
+            } catch (SQLException e) {
+                SqlErrorClass errorClass = SqlErrorClass.of(e, dbType);
+                if (!errorClass.isTransient()) {
+                    throw e;
+                }
+                if (attemptNumber >= maxAttempts || !withdraw()) {
+                    givenUp.get(errorClass).increment();
+                    throw e;
+                }
+                retries.get(errorClass).increment();
+                long backoff = getBackoffMillis(attemptNumber);
+                log.debug("Retrying after {} failure in {}ms (attempt {}): {}", errorClass, backoff,
+                        attemptNumber + 1, e.getMessage());
+                try {
+                    Thread.sleep(backoff);
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    throw e;
+                }
+            }
+        }
+    }
+
+    /**
+     * Full jitter: uniformly random between 0 and the exponential backoff of the attempt.
+     */
+    long getBackoffMillis(int attemptNumber) {
+        long cap = Math.min(initialBackoffMillis << Math.min(attemptNumber - 1, 20), maxBackoffMillis);
+        return cap <= 0 ? 0 : ThreadLocalRandom.current().nextLong(cap + 1);
+    }
+
+    private synchronized void deposit() {
+        // Saved up retries are capped, so a long quiet period can't be followed by a retry storm
+        budget = Math.min(budget + budgetRatio, Math.max(minBudget, budgetRatio * 1000));
+    }
+
+    private synchronized boolean withdraw() {
+        if (budget < 1) {
+            return false;
+        }
+        budget--;
+        return true;
+    }
+
+    @FunctionalInterface
+    interface Attempt<T> {
+        T run() throws SQLException;
+    }
+}
@@ -0,0 +1,468 @@
+/*
+ *
+ * Artifactory is a binaries repository manager.
+ * Copyright (C) 2016 JFrog Ltd.
+ *
+ * Artifactory is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ * Artifactory is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with Artifactory.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package org.jfrog.storage.util;
+
+import org.jfrog.storage.DbType;
+import org.jfrog.storage.JdbcHelper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.sql.DatabaseMetaData;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Compares the schema a db type is expected to have, as created by its bundled DDL script, with the live database in
+ * one pass: a single bulk {@link SchemaSnapshot} plus one index and foreign key load per table, instead of a
+ * {@link DbUtils#tableExists} style probe per object.
+ * <p>
+ * Conversion scripts can be registered too. A conversion is needed when an object it creates is missing or, for
+ * character columns, has a different size than the conversion sets. The resulting {@link Report} is the preflight
+ * report of an upgrade.
+ * <p>
+ * Only what can be checked through {@link SchemaExpectation}s is compared: tables, columns (and the size of character
+ * columns), named indexes and named foreign keys. Dropped objects, types other than the character size, and
+ * constraints other than foreign keys are not.
+ */
+public final class SchemaDiff {
+    private static final Logger log = LoggerFactory.getLogger(SchemaDiff.class);
+
+    private static final String IDENTIFIER = "((?:[\"`\\[]?[\\w$#]+[\"`\\]]?\\.)?[\"`\\[]?[\\w$#]+[\"`\\]]?)";
+    private static final Pattern CREATE_TABLE = Pattern.compile(
+            "^CREATE\\s+(?:(?:GLOBAL\\s+)?TEMPORARY\\s+)?TABLE\\s+(?:IF\\s+NOT\\s+EXISTS\\s+)?" + IDENTIFIER +
+                    "\\s*\\(", Pattern.CASE_INSENSITIVE);
+    private static final Pattern CREATE_INDEX = Pattern.compile(
+            "^CREATE\\s+(?:UNIQUE\\s+)?(?:(?:NON)?CLUSTERED\\s+)?INDEX\\s+(?:IF\\s+NOT\\s+EXISTS\\s+)?" + IDENTIFIER +
+                    "\\s+ON\\s+" + IDENTIFIER + "\\s*\\(", Pattern.CASE_INSENSITIVE);
+    private static final Pattern ALTER_TABLE = Pattern.compile(
+            "^ALTER\\s+TABLE\\s+(?:IF\\s+EXISTS\\s+)?(?:ONLY\\s+)?" + IDENTIFIER + "\\s+", Pattern.CASE_INSENSITIVE);
+    private static final Pattern CONSTRAINT = Pattern.compile(
+            "^CONSTRAINT\\s+" + IDENTIFIER + "\\s+FOREIGN\\s+KEY\\b", Pattern.CASE_INSENSITIVE);
+    private static final Pattern KEY_INDEX = Pattern.compile(
+            "^(?:UNIQUE\\s+)?(?:KEY|INDEX)\\s+" + IDENTIFIER + "\\s*\\(", Pattern.CASE_INSENSITIVE);
+    private static final Pattern ALTER_COLUMN_SIZE = Pattern.compile(
+            "^(?:ALTER\\s+(?:COLUMN\\s+)?|MODIFY\\s+(?:COLUMN\\s+)?)" + IDENTIFIER +
+                    "\\s+(?:SET\\s+DATA\\s+TYPE\\s+|TYPE\\s+)?(\\w+(?:\\s+VARYING)?)\\s*\\(\\s*(\\d+)",
+            Pattern.CASE_INSENSITIVE);
+    private static final Pattern CHARACTER_TYPE = Pattern.compile(
+            "^(\\w+(?:\\s+VARYING)?)\\s*\\(\\s*(\\d+)", Pattern.CASE_INSENSITIVE);
+    private static final Pattern TABLE_CONSTRAINT_START = Pattern.compile(
+            "^(?:CONSTRAINT|PRIMARY|UNIQUE|FOREIGN|CHECK|KEY|INDEX|FULLTEXT|SPATIAL)\\b", Pattern.CASE_INSENSITIVE);
+
+    private final DbType dbType;
+    private final Map<SchemaExpectation, Integer> expected;
+    private final Map<String, Map<SchemaExpectation, Integer>> conversions = new LinkedHashMap<>();
+
+    private SchemaDiff(DbType dbType, Map<SchemaExpectation, Integer> expected) {
+        this.dbType = dbType;
+        this.expected = expected;
+    }
+
+    /**
+     * The expected schema of the db type, from its {@code /<db type>/<db type>.sql} script (see
+     * {@link DbUtils#getDbTypeNameForSqlResources}) found on the class path.
+     */
+    public static SchemaDiff forDbType(DbType dbType) throws IOException {
+        String dbTypeName = DbUtils.getDbTypeNameForSqlResources(dbType);
+        return forScript(dbType, "/" + dbTypeName + "/" + dbTypeName + ".sql");
+    }
+
+    /**
+     * @param resource Class path resource of the DDL script creating the expected schema
+     */
+    public static SchemaDiff forScript(DbType dbType, String resource) throws IOException {
+        return new SchemaDiff(dbType, parseResource(resource));
+    }
+
+    /**
+     * Registers a conversion script, conversions are reported in the order they were registered.
+     *
+     * @param name     Name the conversion is reported by, e.g. its version
+     * @param resource Class path resource of the conversion script
+     */
+    public SchemaDiff conversion(String name, String resource) throws IOException {
+        conversions.put(name, parseResource(resource));
+        return this;
+    }
+
+    /**
+     * @return The objects of the expected schema, each mapped to its expected size for character columns, otherwise
+     * null
+     */
+    public Map<SchemaExpectation, Integer> getExpected() {
+        return Collections.unmodifiableMap(expected);
+    }
+
+    /**
+     * Compares the expected schema and the registered conversions with a fresh snapshot of the helper's database,
+     * over a single connection.
+     */
+    public Report compare(JdbcHelper jdbcHelper) throws SQLException {
+        long start = System.nanoTime();
+        Set<SchemaExpectation> all = new LinkedHashSet<>(expected.keySet());
+        for (Map<SchemaExpectation, Integer> objects : conversions.values()) {
+            all.addAll(objects.keySet());
+        }
+        ConnectionProfile profile = DbUtils.getConnectionProfile(jdbcHelper, dbType);
+        // Not routed to a replica, an upgrade must be decided on the primary's schema
+        Report report = DbUtils.withMetadata(jdbcHelper, metadata -> {
+            SchemaSnapshot snapshot = SchemaSnapshot.load(metadata, profile);
+            return compare(snapshot, metadata, all);
+        });
+        log.debug("Compared {} expected schema objects in {}ms: {} missing, {} different, {} conversions needed",
+                all.size(), (System.nanoTime() - start) / 1_000_000, report.missing.size(),
+                report.different.size(), report.conversions.size());
+        return report;
+    }
+
+    private Report compare(SchemaSnapshot snapshot, DatabaseMetaData metadata,
+            Set<SchemaExpectation> all) throws SQLException {
+        Map<SchemaExpectation, Boolean> found = DbUtils.verifySchema(snapshot, metadata, all);
+        List<SchemaExpectation> missing = new ArrayList<>();
+        List<ColumnDifference> different = new ArrayList<>();
+        for (Map.Entry<SchemaExpectation, Integer> object : expected.entrySet()) {
+            SchemaExpectation expectation = object.getKey();
+            if (!found.get(expectation)) {
+                missing.add(expectation);
+            } else if (isResized(snapshot, expectation, object.getValue())) {
+                different.add(new ColumnDifference(expectation.getTableName(), expectation.getColumnName(),
+                        object.getValue(), snapshot.getColumnSize(expectation.getTableName(),
+                        expectation.getColumnName())));
+            }
+        }
+        List<String> needed = new ArrayList<>();
+        List<String> unverifiable = new ArrayList<>();
+        for (Map.Entry<String, Map<SchemaExpectation, Integer>> conversion : conversions.entrySet()) {
+            Map<SchemaExpectation, Integer> objects = conversion.getValue();
+            if (objects.isEmpty()) {
+                unverifiable.add(conversion.getKey());
+                continue;
+            }
+            for (Map.Entry<SchemaExpectation, Integer> object : objects.entrySet()) {
+                if (!found.get(object.getKey()) || isResized(snapshot, object.getKey(), object.getValue())) {
+                    needed.add(conversion.getKey());
+                    break;
+                }
+            }
+        }
+        return new Report(dbType, snapshot.getSchema(), snapshot.getCatalog(), missing, different, needed,
+                unverifiable);
+    }
+
+    /**
+     * @param expectedSize Null if the size isn't compared
+     */
+    private static boolean isResized(SchemaSnapshot snapshot, SchemaExpectation expectation,
+            @Nullable Integer expectedSize) {
+        if (expectedSize == null || expectation.getKind() != SchemaExpectation.Kind.COLUMN) {
+            return false;
+        }
+        Integer actualSize = snapshot.getColumnSize(expectation.getTableName(), expectation.getColumnName());
+        return actualSize != null && !actualSize.equals(expectedSize);
+    }
+
+    private static Map<SchemaExpectation, Integer> parseResource(String resource) throws IOException {
+        try (InputStream in = SchemaDiff.class.getResourceAsStream(resource)) {
+            if (in == null) {
+                throw new IOException("Schema script " + resource + " was not found on the class path");
+            }
+            Map<SchemaExpectation, Integer> objects = parse(new SqlScriptReader(
+                    new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8)), ';'));
+            log.debug("Parsed {} schema objects from {}", objects.size(), resource);
+            return objects;
+        }
+    }
+
+    /**
+     * @return The objects the script creates or resizes, in script order
+     */
+    static Map<SchemaExpectation, Integer> parse(SqlScriptReader reader) throws IOException {
+        Map<SchemaExpectation, Integer> objects = new LinkedHashMap<>();
+        ScriptStatement statement;
+        while ((statement = reader.next()) != null) {
+            String sql = statement.getSql().trim();
+            Matcher matcher;
+            if ((matcher = CREATE_TABLE.matcher(sql)).find()) {
+                String table = name(matcher.group(1));
+                objects.put(SchemaExpectation.table(table), null);
+                for (String element : splitList(sql, matcher.end() - 1)) {
+                    parseTableElement(table, element, objects);
+                }
+            } else if ((matcher = CREATE_INDEX.matcher(sql)).find()) {
+                List<String> columns = splitList(sql, matcher.end() - 1);
+                String column = columns.isEmpty() ? null : firstToken(columns.get(0));
+                objects.put(SchemaExpectation.index(name(matcher.group(2)), column, name(matcher.group(1))), null);
+            } else if ((matcher = ALTER_TABLE.matcher(sql)).find()) {
+                parseAlterTable(name(matcher.group(1)), sql.substring(matcher.end()).trim(), objects);
+            }
+        }
+        return objects;
+    }
+
+    private static void parseAlterTable(String table, String action, Map<SchemaExpectation, Integer> objects) {
+        String upper = action.toUpperCase(Locale.ENGLISH);
+        if (upper.startsWith("ADD")) {
+            String added = action.substring(3).trim();
+            if (added.startsWith("(")) {
+                // Oracle adds several columns at once
+                for (String element : splitList(added, 0)) {
+                    parseTableElement(table, element, objects);
+                }
+            } else {
+                if (added.toUpperCase(Locale.ENGLISH).startsWith("COLUMN ")) {
+                    added = added.substring("COLUMN ".length()).trim();
+                }
+                parseTableElement(table, added, objects);
+            }
+            return;
+        }
+        Matcher matcher = ALTER_COLUMN_SIZE.matcher(action);
+        if (matcher.find() && isCharacterType(matcher.group(2))) {
+            objects.put(SchemaExpectation.column(table, name(matcher.group(1))), Integer.valueOf(matcher.group(3)));
+        }
+    }
+
+    private static void parseTableElement(String table, String element, Map<SchemaExpectation, Integer> objects) {
+        Matcher matcher;
+        if ((matcher = CONSTRAINT.matcher(element)).find()) {
+            objects.put(SchemaExpectation.foreignKey(table, name(matcher.group(1))), null);
+        } else if ((matcher = KEY_INDEX.matcher(element)).find()) {
+            // MySQL declares indexes along with the table
+            List<String> columns = splitList(element, matcher.end() - 1);
+            String column = columns.isEmpty() ? null : firstToken(columns.get(0));
+            objects.put(SchemaExpectation.index(table, column, name(matcher.group(1))), null);
+        } else if (!TABLE_CONSTRAINT_START.matcher(element).find()) {
+            String column = firstToken(element);
+            if (column.isEmpty()) {
+                return;
+            }
+            Matcher type = CHARACTER_TYPE.matcher(element.substring(column.length()).trim());
+            Integer size = type.find() && isCharacterType(type.group(1)) ? Integer.valueOf(type.group(2)) : null;
+            objects.put(SchemaExpectation.column(table, name(column)), size);
+        }
+    }
+
+    private static boolean isCharacterType(String type) {
+        switch (type.toUpperCase(Locale.ENGLISH).replaceAll("\\s+", " ")) {
+            case "CHAR":
+            case "CHARACTER":
+            case "CHARACTER VARYING":
+            case "VARCHAR":
+            case "VARCHAR2":
+            case "NCHAR":
+            case "NVARCHAR":
+            case "NVARCHAR2":
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Splits the parenthesized, comma separated list starting at {@param open} into its top level elements.
+     */
+    private static List<String> splitList(String sql, int open) {
+        List<String> elements = new ArrayList<>();
+        int depth = 0;
+        int start = open + 1;
+        char quote = 0;
+        for (int i = open; i < sql.length(); i++) {
+            char c = sql.charAt(i);
+            if (quote != 0) {
+                if (c == quote) {
+                    quote = 0;
+                }
+            } else if (c == '\'' || c == '"' || c == '`') {
+                quote = c;
+            } else if (c == '(') {
+                depth++;
+            } else if (c == ')') {
+                depth--;
+                if (depth == 0) {
+                    addElement(elements, sql.substring(start, i));
+                    break;
+                }
+            } else if (c == ',' && depth == 1) {
+                addElement(elements, sql.substring(start, i));
+                start = i + 1;
+            }
+        }
+        return elements;
+    }
+
+    private static void addElement(List<String> elements, String element) {
+        String trimmed = element.trim();
+        if (!trimmed.isEmpty()) {
+            elements.add(trimmed);
+        }
+    }
+
+    private static String firstToken(String element) {
+        int end = 0;
+        while (end < element.length() && !Character.isWhitespace(element.charAt(end)) &&
+                element.charAt(end) != '(') {
+            end++;
+        }
+        return element.substring(0, end);
+    }
+
+    /**
+     * Drops the schema qualifier and identifier quotes.
+     */
+    private static String name(String identifier) {
+        String name = identifier.substring(identifier.lastIndexOf('.') + 1);
+        return name.replaceAll("[\"`\\[\\]]", "");
+    }
+
+    /**
+     * A character column that exists with another size than expected.
+     */
+    public static final class ColumnDifference {
+        private final String tableName;
+        private final String columnName;
+        private final int expectedSize;
+        private final int actualSize;
+
+        ColumnDifference(String tableName, String columnName, int expectedSize, int actualSize) {
+            this.tableName = tableName;
+            this.columnName = columnName;
+            this.expectedSize = expectedSize;
+            this.actualSize = actualSize;
+        }
+
+        public String getTableName() {
+            return tableName;
+        }
+
+        public String getColumnName() {
+            return columnName;
+        }
+
+        public int getExpectedSize() {
+            return expectedSize;
+        }
+
+        public int getActualSize() {
+            return actualSize;
+        }
+
+        @Override
+        public String toString() {
+            return "column " + tableName + "." + columnName + " size " + actualSize + ", expected " + expectedSize;
+        }
+    }
+
+    /**
+     * What the live schema lacks compared to the expected one, and the conversions that would add it.
+     */
+    public static final class Report {
+        private final DbType dbType;
+        private final String schema;
+        private final String catalog;
+        private final List<SchemaExpectation> missing;
+        private final List<ColumnDifference> different;
+        private final List<String> conversions;
+        private final List<String> unverifiable;
+
+        Report(DbType dbType, @Nullable String schema, @Nullable String catalog, List<SchemaExpectation> missing,
+                List<ColumnDifference> different, List<String> conversions, List<String> unverifiable) {
+            this.dbType = dbType;
+            this.schema = schema;
+            this.catalog = catalog;
+            this.missing = Collections.unmodifiableList(missing);
+            this.different = Collections.unmodifiableList(different);
+            this.conversions = Collections.unmodifiableList(conversions);
+            this.unverifiable = Collections.unmodifiableList(unverifiable);
+        }
+
+        /**
+         * @return Objects of the expected schema that don't exist, in script order
+         */
+        public List<SchemaExpectation> getMissing() {
+            return missing;
+        }
+
+        /**
+         * @return Character columns of the expected schema that exist with another size
+         */
+        public List<ColumnDifference> getDifferent() {
+            return different;
+        }
+
+        /**
+         * @return Names of the conversions whose objects are missing or different, in registration order
+         */
+        public List<String> getConversions() {
+            return conversions;
+        }
+
+        /**
+         * @return Names of the conversions that create nothing comparable (e.g. only drop or update data), whether
+         * they are needed can't be told from the schema
+         */
+        public List<String> getUnverifiable() {
+            return unverifiable;
+        }
+
+        public boolean isUpToDate() {
+            return missing.isEmpty() && different.isEmpty() && conversions.isEmpty();
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder sb = new StringBuilder("Schema preflight of ").append(dbType)
+                    .append(" schema '").append(schema).append("' catalog '").append(catalog).append("': ");
+            if (isUpToDate()) {
+                sb.append("up to date");
+            } else {
+                sb.append(missing.size()).append(" missing, ").append(different.size()).append(" different");
+                for (SchemaExpectation expectation : missing) {
+                    sb.append("\n  missing ").append(expectation);
+                }
+                for (ColumnDifference difference : different) {
+                    sb.append("\n  different ").append(difference);
+                }
+                if (!conversions.isEmpty()) {
+                    sb.append("\n  conversions needed: ").append(String.join(", ", conversions));
+                }
+            }
+            if (!unverifiable.isEmpty()) {
+                sb.append("\n  conversions that can't be verified: ").append(String.join(", ", unverifiable));
+            }
+            return sb.toString();
+        }
+    }
+}
@@ -0,0 +1,127 @@
+/*
+ *
+ * Artifactory is a binaries repository manager.
+ * Copyright (C) 2016 JFrog Ltd.
+ *
+ * Artifactory is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ * Artifactory is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with Artifactory.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package org.jfrog.storage.util;
+
+import javax.annotation.Nullable;
+import java.util.Objects;
+
+/**
+ * A schema object that is expected to exist, checked in bulk by {@link DbUtils#verifySchema}.
+ * Each kind has the same semantics as the matching single probe in {@link DbUtils}.
+ */
+public final class SchemaExpectation {
+
+    public enum Kind {
+        TABLE, COLUMN, INDEX, FOREIGN_KEY
+    }
+
+    private final Kind kind;
+    private final String tableName;
+    private final String columnName;
+    private final String objectName;
+
+    private SchemaExpectation(Kind kind, String tableName, @Nullable String columnName, @Nullable String objectName) {
+        this.kind = Objects.requireNonNull(kind);
+        this.tableName = Objects.requireNonNull(tableName, "Table name is required");
+        this.columnName = columnName;
+        this.objectName = objectName;
+    }
+
+    /**
+     * @see DbUtils#tableExists(org.jfrog.storage.JdbcHelper, org.jfrog.storage.DbType, String)
+     */
+    public static SchemaExpectation table(String tableName) {
+        return new SchemaExpectation(Kind.TABLE, tableName, null, null);
+    }
+
+    /**
+     * @see DbUtils#columnExists(org.jfrog.storage.JdbcHelper, org.jfrog.storage.DbType, String, String)
+     */
+    public static SchemaExpectation column(String tableName, String columnName) {
+        return new SchemaExpectation(Kind.COLUMN, tableName, Objects.requireNonNull(columnName), null);
+    }
+
+    /**
+     * @param columnName May be null for complex indices, see
+     *                   {@link DbUtils#indexExists(org.jfrog.storage.JdbcHelper, String, String, String, org.jfrog.storage.DbType)}
+     */
+    public static SchemaExpectation index(String tableName, @Nullable String columnName, String indexName) {
+        return new SchemaExpectation(Kind.INDEX, tableName, columnName, Objects.requireNonNull(indexName));
+    }
+
+    /**
+     * @see DbUtils#foreignKeyExists(org.jfrog.storage.JdbcHelper, org.jfrog.storage.DbType, String, String)
+     */
+    public static SchemaExpectation foreignKey(String tableName, String foreignKeyName) {
+        return new SchemaExpectation(Kind.FOREIGN_KEY, tableName, null, Objects.requireNonNull(foreignKeyName));
+    }
+
+    public Kind getKind() {
+        return kind;
+    }
+
+    public String getTableName() {
+        return tableName;
+    }
+
+    @Nullable
+    public String getColumnName() {
+        return columnName;
+    }
+
+    /**
+     * @return The index or foreign key name, null for tables and columns.
+     */
+    @Nullable
+    public String getObjectName() {
+        return objectName;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (o == null || getClass() != o.getClass()) {
+            return false;
+        }
+        SchemaExpectation that = (SchemaExpectation) o;
+        return kind == that.kind && tableName.equals(that.tableName) && Objects.equals(columnName, that.columnName) &&
+                Objects.equals(objectName, that.objectName);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(kind, tableName, columnName, objectName);
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder(kind.name().toLowerCase()).append(' ').append(tableName);
+        if (columnName != null) {
+            sb.append('.').append(columnName);
+        }
+        if (objectName != null) {
+            sb.append(" '").append(objectName).append('\'');
+        }
+        return sb.toString();
+    }
+}
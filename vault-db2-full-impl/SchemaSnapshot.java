@@ -0,0 +1,260 @@
+/*
+ *
+ * Artifactory is a binaries repository manager.
+ * Copyright (C) 2016 JFrog Ltd.
+ *
+ * Artifactory is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ * Artifactory is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with Artifactory.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package org.jfrog.storage.util;
+
+import org.jfrog.storage.DbType;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import java.sql.DatabaseMetaData;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import static org.apache.commons.lang.StringUtils.isBlank;
+
+/**
+ * An in-memory picture of the tables, columns, indexes and foreign keys of the active schema/catalog.
+ * Tables and columns are bulk loaded when the snapshot is created, indexes and foreign keys are loaded per table the
+ * first time they are asked for (the JDBC metadata api can't return them for a whole schema in one call).
+ * <p>
+ * Identifiers are kept as the database returns them and looked up normalized to the case it stores unquoted
+ * identifiers in (see {@link ConnectionProfile#normalize}), so a name matches exactly when the metadata probe with the
+ * normalized name would, quoted and mixed-case names included.
+ *
+ * @see SchemaSnapshotCache
+ */
+class SchemaSnapshot {
+    private static final Logger log = LoggerFactory.getLogger(SchemaSnapshot.class);
+
+    // Positional columns of the DatabaseMetaData result sets, as defined by the JDBC spec
+    private static final int TABLES_TABLE_NAME = 3;
+    private static final int COLUMNS_TABLE_NAME = 3;
+    private static final int COLUMNS_COLUMN_NAME = 4;
+    private static final int COLUMNS_COLUMN_SIZE = 7;
+    private static final int INDEX_INFO_INDEX_NAME = 6;
+    private static final int INDEX_INFO_COLUMN_NAME = 9;
+    private static final int IMPORTED_KEYS_FK_NAME = 12;
+
+    private final ConnectionProfile profile;
+    private final String catalog;
+    private final String schema;
+    private final Set<String> tables;
+    private final Map<String, Map<String, Integer>> columnsByTable;
+    // table -> (index name -> indexed columns), filled lazily
+    private final Map<String, Map<String, Set<String>>> indexesByTable = new ConcurrentHashMap<>();
+    // table -> foreign key names, filled lazily
+    private final Map<String, Set<String>> foreignKeysByTable = new ConcurrentHashMap<>();
+    private final long loadedAt = System.nanoTime();
+
+    private SchemaSnapshot(ConnectionProfile profile, String catalog, String schema, Set<String> tables,
+            Map<String, Map<String, Integer>> columnsByTable) {
+        this.profile = profile;
+        this.catalog = catalog;
+        this.schema = schema;
+        this.tables = tables;
+        this.columnsByTable = columnsByTable;
+    }
+
+    /**
+     * Bulk loads the tables and columns of the active schema/catalog of the connection behind {@param metadata}.
+     */
+    static SchemaSnapshot load(DatabaseMetaData metadata, ConnectionProfile profile) throws SQLException {
+        long start = System.nanoTime();
+        String catalog = profile.getCatalog();
+        String schema = profile.getSchema();
+        Set<String> tables = new HashSet<>();
+        try (ResultSet rs = metadata.getTables(catalog, schema, null, new String[]{"TABLE"})) {
+            while (rs.next()) {
+                tables.add(rs.getString(TABLES_TABLE_NAME));
+            }
+        }
+        Map<String, Map<String, Integer>> columnsByTable = new HashMap<>();
+        try (ResultSet rs = metadata.getColumns(catalog, schema, null, null)) {
+            while (rs.next()) {
+                columnsByTable.computeIfAbsent(rs.getString(COLUMNS_TABLE_NAME), t -> new HashMap<>())
+                        .put(rs.getString(COLUMNS_COLUMN_NAME), rs.getInt(COLUMNS_COLUMN_SIZE));
+            }
+        }
+        log.debug("Loaded schema snapshot of {} tables under schema '{}' catalog '{}' in {}ms", tables.size(), schema,
+                catalog, (System.nanoTime() - start) / 1_000_000);
+        return new SchemaSnapshot(profile, catalog, schema, Collections.unmodifiableSet(tables),
+                Collections.unmodifiableMap(columnsByTable));
+    }
+
+    DbType getDbType() {
+        return profile.getDbType();
+    }
+
+    String getCatalog() {
+        return catalog;
+    }
+
+    String getSchema() {
+        return schema;
+    }
+
+    Set<String> getTables() {
+        return tables;
+    }
+
+    long getAgeMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - loadedAt);
+    }
+
+    boolean hasTable(String tableName) {
+        return tables.contains(key(tableName));
+    }
+
+    /**
+     * A blank {@param columnName} matches any column of the table, same as a null pattern in
+     * {@link DatabaseMetaData#getColumns}.
+     */
+    boolean hasColumn(String tableName, @Nullable String columnName) {
+        Map<String, Integer> columns = columnsByTable.get(key(tableName));
+        if (columns == null) {
+            return false;
+        }
+        return isBlank(columnName) ? !columns.isEmpty() : columns.containsKey(key(columnName));
+    }
+
+    /**
+     * @return The size of the column or null if the snapshot doesn't know this column.
+     */
+    @Nullable
+    Integer getColumnSize(String tableName, String columnName) {
+        Map<String, Integer> columns = columnsByTable.get(key(tableName));
+        return columns == null ? null : columns.get(key(columnName));
+    }
+
+    /**
+     * @param metadata         Used to load the table's indexes if not loaded yet, if null an unloaded table simply
+     *                         has no indexes.
+     * @param anyIndexOnColumn Derby's non-strict mode: any index on {@param columnName} is good enough (see
+     *                         DbUtils#indexExistsDerby)
+     */
+    boolean hasIndex(@Nullable DatabaseMetaData metadata, String tableName, @Nullable String columnName,
+            String indexName, boolean anyIndexOnColumn) throws SQLException {
+        Map<String, Set<String>> indexes = getIndexes(metadata, tableName);
+        if (indexes == null) {
+            return false;
+        }
+        Set<String> indexColumns = indexes.get(key(indexName));
+        if (indexColumns != null && (isBlank(columnName) || indexColumns.contains(key(columnName)))) {
+            return true;
+        }
+        if (anyIndexOnColumn && !isBlank(columnName)) {
+            String column = key(columnName);
+            return indexes.values().stream().anyMatch(columns -> columns.contains(column));
+        }
+        return false;
+    }
+
+    /**
+     * @param metadata Used to load the table's foreign keys if not loaded yet, if null an unloaded table simply has no
+     *                 foreign keys.
+     */
+    boolean hasForeignKey(@Nullable DatabaseMetaData metadata, String tableName, String foreignKeyName)
+            throws SQLException {
+        Set<String> foreignKeys = getForeignKeys(metadata, tableName);
+        return foreignKeys != null && foreignKeys.contains(key(foreignKeyName));
+    }
+
+    @Nullable
+    Map<String, Set<String>> getIndexes(@Nullable DatabaseMetaData metadata, String tableName) throws SQLException {
+        String table = key(tableName);
+        Map<String, Set<String>> indexes = indexesByTable.get(table);
+        if (indexes == null && metadata != null && tables.contains(table)) {
+            indexes = loadIndexes(metadata, tableName);
+            indexesByTable.put(table, indexes);
+        }
+        return indexes;
+    }
+
+    @Nullable
+    Set<String> getForeignKeys(@Nullable DatabaseMetaData metadata, String tableName) throws SQLException {
+        String table = key(tableName);
+        Set<String> foreignKeys = foreignKeysByTable.get(table);
+        if (foreignKeys == null && metadata != null && tables.contains(table)) {
+            foreignKeys = loadForeignKeys(metadata, tableName);
+            foreignKeysByTable.put(table, foreignKeys);
+        }
+        return foreignKeys;
+    }
+
+    private Map<String, Set<String>> loadIndexes(DatabaseMetaData metadata, String tableName) throws SQLException {
+        String table = profile.normalize(tableName);
+        if (isDb2CatalogAvailable()) {
+            return Collections.unmodifiableMap(Db2Catalog.getIndexes(metadata.getConnection(), profile, table));
+        }
+        Map<String, Set<String>> indexes = new HashMap<>();
+        try (ResultSet rs = metadata.getIndexInfo(catalog, schema, table, false, false)) {
+            while (rs.next()) {
+                String indexName = rs.getString(INDEX_INFO_INDEX_NAME);
+                if (indexName == null) {
+                    // Table statistics row
+                    continue;
+                }
+                Set<String> columns = indexes.computeIfAbsent(indexName, i -> new HashSet<>());
+                String columnName = rs.getString(INDEX_INFO_COLUMN_NAME);
+                if (columnName != null) {
+                    columns.add(columnName);
+                }
+            }
+        }
+        return Collections.unmodifiableMap(indexes);
+    }
+
+    private Set<String> loadForeignKeys(DatabaseMetaData metadata, String tableName) throws SQLException {
+        String table = profile.normalize(tableName);
+        if (isDb2CatalogAvailable()) {
+            return Collections.unmodifiableSet(Db2Catalog.getForeignKeys(metadata.getConnection(), profile, table));
+        }
+        Set<String> foreignKeys = new HashSet<>();
+        try (ResultSet rs = metadata.getImportedKeys(catalog, schema, table)) {
+            while (rs.next()) {
+                String keyName = rs.getString(IMPORTED_KEYS_FK_NAME);
+                if (keyName != null) {
+                    foreignKeys.add(keyName);
+                }
+            }
+        }
+        return Collections.unmodifiableSet(foreignKeys);
+    }
+
+    private boolean isDb2CatalogAvailable() {
+        return DbType.DB2.equals(profile.getDbType()) && profile.getSchema() != null;
+    }
+
+    /**
+     * @return The name the snapshot knows {@param identifier} by
+     */
+    String key(String identifier) {
+        return profile.normalize(identifier);
+    }
+}
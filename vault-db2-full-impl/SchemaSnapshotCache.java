@@ -0,0 +1,163 @@
+/*
+ *
+ * Artifactory is a binaries repository manager.
+ * Copyright (C) 2016 JFrog Ltd.
+ *
+ * Artifactory is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ * Artifactory is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with Artifactory.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package org.jfrog.storage.util;
+
+import lombok.AccessLevel;
+import lombok.NoArgsConstructor;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import javax.sql.DataSource;
+import java.sql.DatabaseMetaData;
+import java.sql.SQLException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Holds one {@link SchemaSnapshot} per {@link DataSource} so the existence probes in {@link DbUtils} can be answered
+ * without a metadata round trip.
+ * <p>
+ * The snapshots are dropped whenever a script run through {@link DbUtils#executeSqlStream} contains DDL (CREATE,
+ * ALTER, DROP or RENAME). DDL executed any other way
+ * should be followed by {@link DbUtils#invalidateSchemaCache()}; negative answers are always verified against the
+ * database anyway, so a stale snapshot can only hide objects that were dropped behind its back.
+ * Concurrent misses on the same data source wait for a single bulk load rather than each running their own.
+ * {@link DbUtils#verifySchema} reloads a snapshot that misses expected objects at most once per
+ * {@value #DEFAULT_RELOAD_INTERVAL_SECONDS} seconds (or as set by the system property
+ * {@value #RELOAD_INTERVAL_PROPERTY}).
+ * Set the system property {@value #ENABLED_PROPERTY} to false to bypass the cache altogether.
+ */
+@NoArgsConstructor(access = AccessLevel.PRIVATE)
+abstract class SchemaSnapshotCache {
+    private static final Logger log = LoggerFactory.getLogger(SchemaSnapshotCache.class);
+
+    static final String ENABLED_PROPERTY = "jfrog.storage.schemaCache.enabled";
+    static final String RELOAD_INTERVAL_PROPERTY = "jfrog.storage.schemaCache.reloadIntervalSeconds";
+    static final int DEFAULT_RELOAD_INTERVAL_SECONDS = 30;
+
+    private static final Map<DataSource, SchemaSnapshot> snapshots = new ConcurrentHashMap<>();
+    private static final Map<DataSource, Object> loadLocks = new ConcurrentHashMap<>();
+    // Bumped by every invalidation of the data source, a snapshot whose load overlapped one is returned but not kept
+    private static final Map<DataSource, AtomicLong> generations = new ConcurrentHashMap<>();
+    private static final AtomicLong hits = new AtomicLong();
+    private static final AtomicLong misses = new AtomicLong();
+
+    static boolean isEnabled() {
+        return !"false".equalsIgnoreCase(System.getProperty(ENABLED_PROPERTY));
+    }
+
+    /**
+     * @return The current snapshot of {@param dataSource} or null if none was loaded yet.
+     */
+    @Nullable
+    static SchemaSnapshot peek(@Nullable DataSource dataSource) {
+        return dataSource == null ? null : snapshots.get(dataSource);
+    }
+
+    /**
+     * @return The current snapshot of {@param dataSource}, loaded using {@param metadata} if there is none yet.
+     */
+    static SchemaSnapshot get(DataSource dataSource, DatabaseMetaData metadata, ConnectionProfile profile)
+            throws SQLException {
+        SchemaSnapshot snapshot = snapshots.get(dataSource);
+        if (isCurrent(snapshot, profile)) {
+            return snapshot;
+        }
+        synchronized (loadLocks.computeIfAbsent(dataSource, ds -> new Object())) {
+            snapshot = snapshots.get(dataSource);
+            if (isCurrent(snapshot, profile)) {
+                return snapshot;
+            }
+            AtomicLong generation = generations.computeIfAbsent(dataSource, ds -> new AtomicLong());
+            long loadedGeneration = generation.get();
+            snapshot = SchemaSnapshot.load(metadata, profile);
+            snapshots.put(dataSource, snapshot);
+            if (generation.get() != loadedGeneration) {
+                snapshots.remove(dataSource, snapshot);
+            }
+            return snapshot;
+        }
+    }
+
+    /**
+     * @return True if the snapshot is old enough to be reloaded when it misses objects that should exist
+     */
+    static boolean isReloadDue(SchemaSnapshot snapshot) {
+        long interval = TimeUnit.SECONDS.toMillis(
+                Integer.getInteger(RELOAD_INTERVAL_PROPERTY, DEFAULT_RELOAD_INTERVAL_SECONDS));
+        return snapshot.getAgeMillis() >= interval;
+    }
+
+    private static boolean isCurrent(@Nullable SchemaSnapshot snapshot, ConnectionProfile profile) {
+        return snapshot != null && snapshot.getDbType() == profile.getDbType();
+    }
+
+    /**
+     * Drops everything held for the data source, called when it is closed.
+     */
+    static void remove(@Nullable DataSource dataSource) {
+        invalidate(dataSource);
+        if (dataSource != null) {
+            loadLocks.remove(dataSource);
+            generations.remove(dataSource);
+        }
+    }
+
+    static void invalidate(@Nullable DataSource dataSource) {
+        if (dataSource == null) {
+            return;
+        }
+        AtomicLong generation = generations.get(dataSource);
+        if (generation != null) {
+            generation.incrementAndGet();
+        }
+        if (snapshots.remove(dataSource) != null) {
+            log.debug("Schema snapshot of {} invalidated", dataSource);
+        }
+    }
+
+    static void invalidateAll() {
+        generations.values().forEach(AtomicLong::incrementAndGet);
+        if (!snapshots.isEmpty()) {
+            snapshots.clear();
+            log.debug("All schema snapshots invalidated");
+        }
+    }
+
+    static void hit() {
+        hits.incrementAndGet();
+    }
+
+    static void miss() {
+        misses.incrementAndGet();
+    }
+
+    static long getHitCount() {
+        return hits.get();
+    }
+
+    static long getMissCount() {
+        return misses.get();
+    }
+}
@@ -0,0 +1,62 @@
+/*
+ *
+ * Artifactory is a binaries repository manager.
+ * Copyright (C) 2016 JFrog Ltd.
+ *
+ * Artifactory is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ * Artifactory is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with Artifactory.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package org.jfrog.storage.util;
+
+/**
+ * A statement of a SQL script along with where it was found in the script.
+ */
+public final class ScriptStatement {
+    private final String sql;
+    private final int line;
+    private final int index;
+
+    ScriptStatement(String sql, int line, int index) {
+        this.sql = sql;
+        this.line = line;
+        this.index = index;
+    }
+
+    /**
+     * @return The statement text, without its terminator
+     */
+    public String getSql() {
+        return sql;
+    }
+
+    /**
+     * @return The script line the statement starts at
+     */
+    public int getLine() {
+        return line;
+    }
+
+    /**
+     * @return 1-based position of the statement in the script
+     */
+    public int getIndex() {
+        return index;
+    }
+
+    @Override
+    public String toString() {
+        return "statement #" + index + " (line " + line + "): " + sql;
+    }
+}
@@ -0,0 +1,191 @@
+/*
+ *
+ * Artifactory is a binaries repository manager.
+ * Copyright (C) 2016 JFrog Ltd.
+ *
+ * Artifactory is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ * Artifactory is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with Artifactory.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package org.jfrog.storage.util;
+
+import org.jfrog.storage.DbType;
+
+import javax.annotation.Nullable;
+import java.sql.SQLException;
+import java.sql.SQLRecoverableException;
+import java.sql.SQLTransactionRollbackException;
+import java.sql.SQLTransientConnectionException;
+import java.util.regex.Pattern;
+
+/**
+ * What kind of failure a {@link SQLException} reports, from its SQLState and the db type's vendor code. All but
+ * {@link #OTHER} are transient: running the same work again, on a new connection, can succeed.
+ */
+public enum SqlErrorClass {
+    /**
+     * The transaction was chosen as a deadlock victim and rolled back
+     */
+    DEADLOCK,
+    /**
+     * A lock wait timed out
+     */
+    LOCK_TIMEOUT,
+    /**
+     * A serializable transaction conflicted with a concurrent one
+     */
+    SERIALIZATION,
+    /**
+     * The connection was lost or couldn't be established
+     */
+    CONNECTION,
+    OTHER;
+
+    private static final Pattern DB2_LUW_LOCK_TIMEOUT = Pattern.compile("SQLERRMC=68\\b");
+
+    public boolean isTransient() {
+        return this != OTHER;
+    }
+
+    /**
+     * Classifies the first transient failure found in the exception, its chained exceptions and its causes.
+     */
+    public static SqlErrorClass of(SQLException e, DbType dbType) {
+        Throwable current = e;
+        for (int depth = 0; current != null && depth < 10; depth++) {
+            if (current instanceof SQLException) {
+                SQLException sqlException = (SQLException) current;
+                SqlErrorClass errorClass = classify(sqlException, dbType);
+                if (errorClass != OTHER) {
+                    return errorClass;
+                }
+                current = sqlException.getNextException() != null ? sqlException.getNextException() :
+                        sqlException.getCause();
+            } else {
+                current = current.getCause();
+            }
+        }
+        return OTHER;
+    }
+
+    private static SqlErrorClass classify(SQLException e, DbType dbType) {
+        String state = e.getSQLState() == null ? "" : e.getSQLState();
+        int code = e.getErrorCode();
+        SqlErrorClass vendor = classifyVendor(dbType, state, code, e.getMessage());
+        if (vendor != null) {
+            return vendor;
+        }
+        if (state.startsWith("08") || e instanceof SQLTransientConnectionException ||
+                e instanceof SQLRecoverableException) {
+            return CONNECTION;
+        }
+        if ("40001".equals(state) || e instanceof SQLTransactionRollbackException) {
+            return SERIALIZATION;
+        }
+        return OTHER;
+    }
+
+    /**
+     * DB2 tells a deadlock from a lock timeout by the reason code in the message tokens: 2 and 68 on LUW, 00C90088
+     * and 00C9008E on z/OS.
+     */
+    private static boolean isDb2LockTimeout(@Nullable String message) {
+        return message != null && (DB2_LUW_LOCK_TIMEOUT.matcher(message).find() || message.contains("00C9008E"));
+    }
+
+    @Nullable
+    private static SqlErrorClass classifyVendor(DbType dbType, String state, int code, @Nullable String message) {
+        switch (dbType) {
+            case DB2:
+                switch (code) {
+                    case -911:
+                    case -913:
+                        return isDb2LockTimeout(message) ? LOCK_TIMEOUT : DEADLOCK;
+                    // Not -904 (resource unavailable): its reason codes range from a full lock list to a stopped
+                    // table space or an exhausted resource limit, which retrying mostly doesn't fix
+                    case -4499:
+                    case -30080:
+                    case -30081:
+                    case -30108:
+                        return CONNECTION;
+                    default:
+                        return null;
+                }
+            case POSTGRESQL:
+                switch (state) {
+                    case "40P01":
+                        return DEADLOCK;
+                    case "55P03":
+                        return LOCK_TIMEOUT;
+                    case "57P01":
+                    case "57P02":
+                    case "57P03":
+                        return CONNECTION;
+                    default:
+                        return null;
+                }
+            case MYSQL:
+            case MARIADB:
+                switch (code) {
+                    case 1213:
+                        return DEADLOCK;
+                    case 1205:
+                        return LOCK_TIMEOUT;
+                    case 2006:
+                    case 2013:
+                        return CONNECTION;
+                    default:
+                        return null;
+                }
+            case ORACLE:
+                switch (code) {
+                    case 60:
+                        return DEADLOCK;
+                    case 54:
+                    case 30006:
+                        return LOCK_TIMEOUT;
+                    case 8177:
+                        return SERIALIZATION;
+                    case 3113:
+                    case 3114:
+                    case 17002:
+                    case 17008:
+                        return CONNECTION;
+                    default:
+                        return null;
+                }
+            case MSSQL:
+                switch (code) {
+                    case 1205:
+                        return DEADLOCK;
+                    case 1222:
+                        return LOCK_TIMEOUT;
+                    default:
+                        return null;
+                }
+            case DERBY:
+                switch (state) {
+                    case "40001":
+                        return DEADLOCK;
+                    case "40XL1":
+                    case "40XL2":
+                        return LOCK_TIMEOUT;
+                    default:
+                        return null;
+                }
+            default:
+                return null;
+        }
+    }
+}
@@ -0,0 +1,386 @@
+/*
+ *
+ * Artifactory is a binaries repository manager.
+ * Copyright (C) 2016 JFrog Ltd.
+ *
+ * Artifactory is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ * Artifactory is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with Artifactory.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package org.jfrog.storage.util;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import java.io.BufferedReader;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.sql.BatchUpdateException;
+import java.sql.Connection;
+import java.sql.DatabaseMetaData;
+import java.sql.SQLException;
+import java.sql.Savepoint;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Executes SQL scripts as they are read: statements are parsed one at a time by {@link SqlScriptReader} and runs of
+ * consecutive DML statements are sent to the database as JDBC batches, which saves a round trip per statement on
+ * remote databases.
+ * <p>
+ * A script stops at its first failing statement, batched or not. Some drivers (JCC among them) go on executing a
+ * batch past a failed statement, so every batch runs in a transaction of its own: a failed batch is rolled back and
+ * replayed one statement at a time, which fails on the same statement (reported with its script line) without
+ * anything after it having run. In auto-commit mode, the mode Artifactory runs its conversion scripts in, auto-commit
+ * is switched off for the time of each batch, which is committed as a whole; otherwise the batch is rolled back to a
+ * savepoint taken before it, on drivers with savepoints.
+ * <p>
+ * Unlike {@link DbStatementUtils#executeSqlStream}, which only ends a statement at a line ending with {@code ;},
+ * a terminator ends a statement anywhere outside quotes and comments. Opt in with
+ * {@link DbUtils#executeSqlStream(Connection, InputStream, SqlScriptExecutor)}.
+ *
+ * @see DbUtils#executeSqlStream
+ */
+public class SqlScriptExecutor {
+    private static final Logger log = LoggerFactory.getLogger(SqlScriptExecutor.class);
+
+    public static final int DEFAULT_BATCH_SIZE = 100;
+
+    private int batchSize = DEFAULT_BATCH_SIZE;
+    private char terminator = ';';
+    private StatementListener listener = StatementListener.NOOP;
+
+    /**
+     * @param batchSize Max DML statements per batch, 1 executes every statement on its own
+     */
+    public SqlScriptExecutor batchSize(int batchSize) {
+        if (batchSize < 1) {
+            throw new IllegalArgumentException("Batch size must be positive: " + batchSize);
+        }
+        this.batchSize = batchSize;
+        return this;
+    }
+
+    /**
+     * @param terminator The statement terminator the script starts with, it can be changed by the script itself with
+     *                   the DB2 {@code --#SET TERMINATOR x} directive
+     */
+    public SqlScriptExecutor terminator(char terminator) {
+        this.terminator = terminator;
+        return this;
+    }
+
+    public SqlScriptExecutor listener(StatementListener listener) {
+        this.listener = listener == null ? StatementListener.NOOP : listener;
+        return this;
+    }
+
+    /**
+     * Executes all statements of the UTF-8 encoded script, committing at the end if the connection isn't in
+     * auto-commit mode.
+     */
+    public void execute(Connection con, InputStream in) throws IOException, SQLException {
+        execute(con, in, null);
+    }
+
+    /**
+     * @param ddlListener Run before each DDL statement of the script executes
+     */
+    void execute(Connection con, InputStream in, @Nullable Runnable ddlListener) throws IOException, SQLException {
+        SqlScriptReader reader = new SqlScriptReader(
+                new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8)), terminator);
+        DatabaseMetaData metadata = con.getMetaData();
+        boolean autoCommit = con.getAutoCommit();
+        boolean batching = batchSize > 1 && metadata.supportsBatchUpdates() &&
+                (autoCommit || metadata.supportsSavepoints());
+        List<ScriptStatement> batch = new ArrayList<>();
+        try (Statement stmt = con.createStatement()) {
+            ScriptStatement statement;
+            while ((statement = reader.next()) != null) {
+                if (batching && isDml(statement.getSql())) {
+                    stmt.addBatch(statement.getSql());
+                    batch.add(statement);
+                    if (batch.size() >= batchSize) {
+                        executeBatch(con, stmt, batch, autoCommit);
+                    }
+                } else {
+                    executeBatch(con, stmt, batch, autoCommit);
+                    if (ddlListener != null && isDdl(statement.getSql())) {
+                        ddlListener.run();
+                    }
+                    execute(stmt, statement);
+                }
+            }
+            executeBatch(con, stmt, batch, autoCommit);
+        }
+        if (!autoCommit) {
+            con.commit();
+        }
+    }
+
+    private void execute(Statement stmt, ScriptStatement statement) throws SQLException {
+        log.debug("Executing {}", statement);
+        Object event = DbEvents.beginStatement();
+        long start = System.nanoTime();
+        try {
+            stmt.execute(statement.getSql());
+        } catch (SQLException e) {
+            log.error("Failed executing {}: {}", statement, e.getMessage());
+            throw e;
+        }
+        listener.statementExecuted(statement, System.nanoTime() - start, 1);
+        if (event != null) {
+            DbEvents.commitStatement(event, statement, 1);
+        }
+    }
+
+    /**
+     * @param autoCommit True if the connection is in auto-commit mode, the batch is then committed as a whole
+     */
+    private void executeBatch(Connection con, Statement stmt, List<ScriptStatement> batch, boolean autoCommit)
+            throws SQLException {
+        if (batch.isEmpty()) {
+            return;
+        }
+        log.debug("Executing batch of {} statements starting at {}", batch.size(), batch.get(0));
+        // One event per statement, all spanning the batch
+        Object[] events = null;
+        Object first = DbEvents.beginStatement();
+        if (first != null) {
+            events = new Object[batch.size()];
+            events[0] = first;
+            for (int i = 1; i < events.length; i++) {
+                events[i] = DbEvents.beginStatement();
+            }
+        }
+        Savepoint savepoint = null;
+        if (autoCommit) {
+            con.setAutoCommit(false);
+        } else {
+            savepoint = con.setSavepoint();
+        }
+        long start = System.nanoTime();
+        try {
+            stmt.executeBatch();
+            if (autoCommit) {
+                con.commit();
+            }
+        } catch (BatchUpdateException e) {
+            log.debug("Batch starting at {} failed, replaying it one statement at a time: {}", batch.get(0),
+                    e.getMessage());
+            stmt.clearBatch();
+            if (autoCommit) {
+                con.rollback();
+                con.setAutoCommit(true);
+            } else {
+                con.rollback(savepoint);
+            }
+            replay(stmt, batch);
+            return;
+        } catch (SQLException | RuntimeException e) {
+            if (autoCommit) {
+                rollbackQuietly(con);
+            }
+            throw e;
+        } finally {
+            if (autoCommit && !con.getAutoCommit()) {
+                con.setAutoCommit(true);
+            }
+        }
+        if (savepoint != null) {
+            releaseSavepoint(con, savepoint);
+        }
+        long perStatement = (System.nanoTime() - start) / batch.size();
+        for (int i = 0; i < batch.size(); i++) {
+            listener.statementExecuted(batch.get(i), perStatement, batch.size());
+            if (events != null && events[i] != null) {
+                DbEvents.commitStatement(events[i], batch.get(i), batch.size());
+            }
+        }
+        stmt.clearBatch();
+        batch.clear();
+    }
+
+    /**
+     * Executes the statements of a rolled back batch one at a time, up to the first failing one.
+     */
+    private void replay(Statement stmt, List<ScriptStatement> batch) throws SQLException {
+        List<ScriptStatement> statements = new ArrayList<>(batch);
+        batch.clear();
+        for (ScriptStatement statement : statements) {
+            execute(stmt, statement);
+        }
+    }
+
+    private static void rollbackQuietly(Connection con) {
+        try {
+            con.rollback();
+        } catch (SQLException e) {
+            log.trace("Could not roll back the failed batch: {}", e.getMessage());
+        }
+    }
+
+    private static void releaseSavepoint(Connection con, Savepoint savepoint) {
+        try {
+            con.releaseSavepoint(savepoint);
+        } catch (SQLException e) {
+            // Oracle can't release savepoints, they go away with the transaction
+            log.trace("Could not release savepoint: {}", e.getMessage());
+        }
+    }
+
+    private static boolean isDml(String sql) {
+        switch (firstKeyword(sql)) {
+            case "INSERT":
+            case "UPDATE":
+            case "DELETE":
+            case "MERGE":
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * @return True if the statement can change the tables, columns or indexes of the schema
+     */
+    static boolean isDdl(String sql) {
+        switch (firstKeyword(sql)) {
+            case "CREATE":
+            case "ALTER":
+            case "DROP":
+            case "RENAME":
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    private static String firstKeyword(String sql) {
+        int start = 0;
+        while (start < sql.length() && (Character.isWhitespace(sql.charAt(start)) || sql.charAt(start) == '(')) {
+            start++;
+        }
+        int end = start;
+        while (end < sql.length() && Character.isLetter(sql.charAt(end))) {
+            end++;
+        }
+        return sql.substring(start, end).toUpperCase(Locale.ENGLISH);
+    }
+
+    /**
+     * Watches a script read by {@link DbStatementUtils#executeSqlStream} for DDL, splitting it the same way: a
+     * statement starts on the first line after one ending with {@code ;}, lines starting with {@code --} or {@code #}
+     * are comments. Only the first characters and the last non blank one of each line are looked at.
+     */
+    static final class DdlWatchingInputStream extends FilterInputStream {
+        private static final int KEYWORD_LENGTH = 8;
+
+        private final StringBuilder lineStart = new StringBuilder(KEYWORD_LENGTH);
+        private int last = -1;
+        private boolean statementStart = true;
+        private boolean ddl;
+
+        DdlWatchingInputStream(InputStream in) {
+            super(in);
+        }
+
+        /**
+         * @return True if any statement read so far is DDL
+         */
+        boolean sawDdl() {
+            return ddl;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b == -1) {
+                endLine();
+            } else {
+                watch(b);
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] bytes, int off, int len) throws IOException {
+            int read = super.read(bytes, off, len);
+            if (read == -1) {
+                endLine();
+            }
+            for (int i = off; i < off + read; i++) {
+                watch(bytes[i] & 0xFF);
+            }
+            return read;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = 0;
+            while (skipped < n && read() != -1) {
+                skipped++;
+            }
+            return skipped;
+        }
+
+        private void watch(int b) {
+            if (b == '\n') {
+                endLine();
+            } else {
+                boolean blank = Character.isWhitespace(b);
+                if ((!blank || lineStart.length() > 0) && lineStart.length() < KEYWORD_LENGTH) {
+                    lineStart.append((char) b);
+                }
+                if (!blank) {
+                    last = b;
+                }
+            }
+        }
+
+        private void endLine() {
+            String start = lineStart.toString();
+            if (!start.isEmpty() && !start.startsWith("--") && !start.startsWith("#")) {
+                if (statementStart && isDdl(start)) {
+                    ddl = true;
+                }
+                statementStart = last == ';';
+            }
+            lineStart.setLength(0);
+            last = -1;
+        }
+    }
+
+    /**
+     * Notified after each statement of a script executed.
+     */
+    @FunctionalInterface
+    public interface StatementListener {
+
+        StatementListener NOOP = (statement, nanos, batchSize) -> {
+        };
+
+        /**
+         * @param nanos     Execution time, for batched statements the batch time divided by its size
+         * @param batchSize Number of statements in the batch the statement was part of, 1 if not batched
+         */
+        void statementExecuted(ScriptStatement statement, long nanos, int batchSize);
+    }
+}
@@ -0,0 +1,179 @@
+/*
+ *
+ * Artifactory is a binaries repository manager.
+ * Copyright (C) 2016 JFrog Ltd.
+ *
+ * Artifactory is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ * Artifactory is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with Artifactory.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package org.jfrog.storage.util;
+
+import javax.annotation.Nullable;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.Locale;
+
+/**
+ * Splits a SQL script into statements while reading it, only the statement being parsed is kept in memory.
+ * <p>
+ * Understands line ({@code --} and, at the start of a line, {@code #}) and block comments, quoted strings and
+ * identifiers, and the DB2 CLP {@code --#SET TERMINATOR x} directive, so procedure and trigger bodies can be
+ * terminated with {@code @} (or anything else) while containing {@code ;}. Like {@link DbStatementUtils}, a line
+ * starting with {@code #} is a comment anywhere in a statement.
+ */
+class SqlScriptReader {
+
+    private static final String SET_TERMINATOR = "--#SET TERMINATOR";
+
+    private final Reader reader;
+    private char terminator;
+    private int line = 1;
+    private int statementIndex;
+    private int pushedBack = -1;
+
+    /**
+     * @param reader     Should be buffered, it's read one char at a time
+     * @param terminator The statement terminator in effect until the script changes it
+     */
+    SqlScriptReader(Reader reader, char terminator) {
+        this.reader = reader;
+        this.terminator = terminator;
+    }
+
+    /**
+     * @return The next statement without its terminator, or null at the end of the script.
+     */
+    @Nullable
+    ScriptStatement next() throws IOException {
+        StringBuilder sql = new StringBuilder();
+        int startLine = -1;
+        boolean lineStart = true;
+        int c;
+        while ((c = read()) != -1) {
+            char ch = (char) c;
+            if (ch == '-' && peek() == '-') {
+                String comment = readLine(ch);
+                if (comment.toUpperCase(Locale.ENGLISH).startsWith(SET_TERMINATOR)) {
+                    String value = comment.substring(SET_TERMINATOR.length()).trim();
+                    if (!value.isEmpty()) {
+                        terminator = value.charAt(0);
+                    }
+                }
+                if (sql.length() > 0) {
+                    sql.append('\n');
+                }
+                lineStart = true;
+                continue;
+            }
+            if (ch == '#' && lineStart) {
+                readLine(ch);
+                continue;
+            }
+            if (ch == '/' && peek() == '*') {
+                read();
+                skipBlockComment();
+                if (sql.length() > 0) {
+                    sql.append(' ');
+                }
+                continue;
+            }
+            if (ch == terminator) {
+                String statement = sql.toString().trim();
+                if (!statement.isEmpty()) {
+                    return new ScriptStatement(statement, startLine, ++statementIndex);
+                }
+                sql.setLength(0);
+                lineStart = false;
+                continue;
+            }
+            if (startLine < 0 && !Character.isWhitespace(ch)) {
+                startLine = line;
+            }
+            sql.append(ch);
+            if (ch == '\'' || ch == '"') {
+                readQuoted(ch, sql);
+            }
+            if (ch == '\n') {
+                line++;
+                lineStart = true;
+            } else if (!Character.isWhitespace(ch)) {
+                lineStart = false;
+            }
+        }
+        String statement = sql.toString().trim();
+        return statement.isEmpty() ? null : new ScriptStatement(statement, startLine, ++statementIndex);
+    }
+
+    private void readQuoted(char quote, StringBuilder sql) throws IOException {
+        int c;
+        while ((c = read()) != -1) {
+            sql.append((char) c);
+            if (c == '\n') {
+                line++;
+            } else if (c == quote) {
+                if (peek() != quote) {
+                    return;
+                }
+                // Escaped quote
+                sql.append((char) read());
+            }
+        }
+    }
+
+    private void skipBlockComment() throws IOException {
+        int c;
+        while ((c = read()) != -1) {
+            if (c == '\n') {
+                line++;
+            } else if (c == '*' && peek() == '/') {
+                read();
+                return;
+            }
+        }
+    }
+
+    /**
+     * Reads the rest of the current line, consuming the line break.
+     *
+     * @param first The already consumed first char of the line
+     */
+    private String readLine(char first) throws IOException {
+        StringBuilder rest = new StringBuilder().append(first);
+        int c;
+        while ((c = read()) != -1 && c != '\n') {
+            rest.append((char) c);
+        }
+        if (c == '\n') {
+            line++;
+        }
+        return rest.toString().trim();
+    }
+
+    private int read() throws IOException {
+        if (pushedBack != -1) {
+            int c = pushedBack;
+            pushedBack = -1;
+            return c;
+        }
+        return reader.read();
+    }
+
+    private int peek() throws IOException {
+        if (pushedBack == -1) {
+            pushedBack = reader.read();
+        }
+        return pushedBack;
+    }
+}
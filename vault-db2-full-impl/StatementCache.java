@@ -0,0 +1,313 @@
+/*
+ *
+ * Artifactory is a binaries repository manager.
+ * Copyright (C) 2016 JFrog Ltd.
+ *
+ * Artifactory is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ * Artifactory is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with Artifactory.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package org.jfrog.storage.util;
+
+import lombok.AccessLevel;
+import lombok.NoArgsConstructor;
+import org.jfrog.storage.util.functional.SQLThrowingFunction;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import java.lang.reflect.Method;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps the prepared statements of the {@link DbUtils} catalog queries open per physical connection, keyed by their
+ * SQL, so the driver doesn't prepare the same statement again on every probe (on DB2 a package and section lookup each
+ * time).
+ * <p>
+ * The statements are prepared on the driver's connection behind the pool's logical one (unwrapped, as Hikari and tomcat
+ * pools allow, or the innermost delegate of a dbcp pool allowing access to it), so they outlive the lease and the next
+ * borrow of the same pooled connection reuses them. Only queries on the connections the helpers borrow themselves
+ * ({@link ConnectionLease#borrow}, so also the connection of a {@link ConnectionScope}) use the cache, a connection
+ * handed in by the caller is never cached on, its statements are prepared and closed by each query.
+ * <p>
+ * The statements are closed with their physical connection: when it is closed through {@link DbUtils#close} (a data
+ * source that isn't pooled, or a pool that doesn't let the driver's connection be reached), or once the pool closed it
+ * (e.g. evicted it), found when the pool hands out a connection it didn't before or the data source is closed.
+ * <p>
+ * Each connection holds at most {@value #DEFAULT_SIZE} statements (or as set by the system property
+ * {@value #SIZE_PROPERTY}), evicting and closing the least recently used. Set the system property
+ * {@value #ENABLED_PROPERTY} to false to prepare every query anew.
+ */
+@NoArgsConstructor(access = AccessLevel.PRIVATE)
+abstract class StatementCache {
+    private static final Logger log = LoggerFactory.getLogger(StatementCache.class);
+
+    static final String ENABLED_PROPERTY = "jfrog.storage.statementCache.enabled";
+    static final String SIZE_PROPERTY = "jfrog.storage.statementCache.size";
+    static final int DEFAULT_SIZE = 32;
+
+    // The statements of each physical connection, and of each connection currently borrowed by the helpers
+    private static final Map<Connection, Statements> statements = new ConcurrentHashMap<>();
+    private static final Map<Connection, Statements> borrowed = new ConcurrentHashMap<>();
+    private static final ClassValue<Method> innermostDelegates = new ClassValue<Method>() {
+        @Override
+        protected Method computeValue(Class<?> type) {
+            try {
+                return type.getMethod("getInnermostDelegate");
+            } catch (NoSuchMethodException e) {
+                return null;
+            }
+        }
+    };
+    private static final AtomicLong hits = new AtomicLong();
+    private static final AtomicLong misses = new AtomicLong();
+    private static final AtomicLong evictions = new AtomicLong();
+
+    static boolean isEnabled() {
+        return !"false".equalsIgnoreCase(System.getProperty(ENABLED_PROPERTY));
+    }
+
+    /**
+     * Runs the query with the connection's cached statement for {@param sql}, preparing and caching it if there is
+     * none and the connection was {@link #register}ed. String parameters are set with
+     * {@link PreparedStatement#setString}, any other with setObject.
+     */
+    static <T> T query(Connection conn, String sql, SQLThrowingFunction<ResultSet, T, SQLException> reader,
+            Object... params) throws SQLException {
+        Statements cached = borrowed.isEmpty() ? null : borrowed.get(conn);
+        PreparedStatement stmt = cached == null ? null : cached.borrow(sql);
+        if (stmt == null) {
+            misses.incrementAndGet();
+            stmt = (cached == null ? conn : cached.connection).prepareStatement(sql);
+            if (cached == null || !cached.add(sql, stmt)) {
+                try (PreparedStatement uncached = stmt) {
+                    return query(uncached, reader, params);
+                }
+            }
+        } else {
+            hits.incrementAndGet();
+        }
+        try {
+            return query(stmt, reader, params);
+        } finally {
+            cached.giveBack(sql);
+        }
+    }
+
+    private static <T> T query(PreparedStatement stmt, SQLThrowingFunction<ResultSet, T, SQLException> reader,
+            Object... params) throws SQLException {
+        for (int i = 0; i < params.length; i++) {
+            if (params[i] instanceof String) {
+                stmt.setString(i + 1, (String) params[i]);
+            } else {
+                stmt.setObject(i + 1, params[i]);
+            }
+        }
+        try (ResultSet rs = stmt.executeQuery()) {
+            return reader.apply(rs);
+        }
+    }
+
+    /**
+     * Lets queries on the connection use the statements cached for its physical connection until it is
+     * {@link #release}d.
+     */
+    static void register(Connection conn) {
+        if (!isEnabled()) {
+            return;
+        }
+        Connection physical = getPhysicalConnection(conn);
+        Statements cached = statements.get(physical);
+        if (cached == null) {
+            // A connection the pool didn't hand out before, often replacing one it closed
+            removeClosed();
+            cached = statements.computeIfAbsent(physical,
+                    key -> new Statements(key, Integer.getInteger(SIZE_PROPERTY, DEFAULT_SIZE)));
+        }
+        borrowed.put(conn, cached);
+    }
+
+    /**
+     * Called right before the connection is given back, its statements stay open for the next borrow.
+     */
+    static void release(Connection conn) {
+        if (!borrowed.isEmpty()) {
+            borrowed.remove(conn);
+        }
+    }
+
+    /**
+     * Closes the statements cached for the connection, called right before it is closed. A pool's logical connection
+     * has none, those of its physical connection stay open (even if the logical connection equals it).
+     */
+    static void close(Connection conn) {
+        Statements cached = statements.isEmpty() ? null : statements.get(conn);
+        if (cached != null && cached.connection == conn && statements.remove(conn, cached)) {
+            cached.closeAll();
+        }
+    }
+
+    /**
+     * Forgets the physical connections closed since they were cached on, closing what's left of their statements.
+     */
+    static void removeClosed() {
+        for (Map.Entry<Connection, Statements> entry : statements.entrySet()) {
+            if (isClosed(entry.getKey()) && statements.remove(entry.getKey(), entry.getValue())) {
+                entry.getValue().closeAll();
+            }
+        }
+    }
+
+    private static boolean isClosed(Connection conn) {
+        try {
+            return conn.isClosed();
+        } catch (SQLException e) {
+            return true;
+        }
+    }
+
+    /**
+     * @return The driver's connection behind the pool's logical connection, or the connection itself if the pool
+     * doesn't let it be reached or it isn't pooled
+     */
+    static Connection getPhysicalConnection(Connection conn) {
+        try {
+            if (conn.isWrapperFor(Connection.class)) {
+                Connection unwrapped = conn.unwrap(Connection.class);
+                if (unwrapped != null && unwrapped != conn) {
+                    return unwrapped;
+                }
+            }
+            // dbcp unwraps to itself, and gives its delegate only when accessToUnderlyingConnectionAllowed is set
+            Method innermostDelegate = innermostDelegates.get(conn.getClass());
+            Object delegate = innermostDelegate == null ? null : innermostDelegate.invoke(conn);
+            if (delegate instanceof Connection) {
+                return (Connection) delegate;
+            }
+        } catch (Exception e) {
+            log.debug("Could not get the physical connection of {}: {}", conn, e.getMessage());
+        }
+        return conn;
+    }
+
+    static long getHitCount() {
+        return hits.get();
+    }
+
+    static long getMissCount() {
+        return misses.get();
+    }
+
+    static long getEvictionCount() {
+        return evictions.get();
+    }
+
+    /**
+     * The statements of one physical connection, least recently used first.
+     */
+    private static class Statements {
+        private final Connection connection;
+        private final int size;
+        private final Map<String, Entry> entries;
+        private boolean closed;
+
+        Statements(Connection connection, int size) {
+            this.connection = connection;
+            this.size = size;
+            this.entries = new LinkedHashMap<>(16, 0.75f, true);
+        }
+
+        /**
+         * @return The cached statement, marked in use, or null if there is none or it's in use already (a nested
+         * query of the same SQL)
+         */
+        @Nullable
+        synchronized PreparedStatement borrow(String sql) throws SQLException {
+            Entry entry = entries.get(sql);
+            if (entry == null || entry.inUse) {
+                return null;
+            }
+            if (entry.statement.isClosed()) {
+                entries.remove(sql);
+                return null;
+            }
+            entry.statement.clearParameters();
+            entry.inUse = true;
+            return entry.statement;
+        }
+
+        /**
+         * @return True if the statement was cached, marked in use; false if it isn't cached and must be closed by the
+         * caller
+         */
+        synchronized boolean add(String sql, PreparedStatement statement) {
+            if (closed || size < 1 || entries.containsKey(sql)) {
+                return false;
+            }
+            Entry entry = new Entry(statement);
+            entry.inUse = true;
+            entries.put(sql, entry);
+            if (entries.size() > size) {
+                evictEldest();
+            }
+            return true;
+        }
+
+        synchronized void giveBack(String sql) {
+            Entry entry = entries.get(sql);
+            if (entry != null) {
+                entry.inUse = false;
+            }
+        }
+
+        private void evictEldest() {
+            for (Map.Entry<String, Entry> eldest : entries.entrySet()) {
+                if (!eldest.getValue().inUse) {
+                    entries.remove(eldest.getKey());
+                    evictions.incrementAndGet();
+                    DbUtils.close(eldest.getValue().statement);
+                    return;
+                }
+            }
+        }
+
+        synchronized void closeAll() {
+            closed = true;
+            int count = entries.size();
+            for (Entry entry : entries.values()) {
+                DbUtils.close(entry.statement);
+            }
+            entries.clear();
+            if (count > 0) {
+                log.trace("Closed {} cached statements", count);
+            }
+        }
+    }
+
+    private static class Entry {
+        private final PreparedStatement statement;
+        private boolean inUse;
+
+        Entry(PreparedStatement statement) {
+            this.statement = statement;
+        }
+    }
+}
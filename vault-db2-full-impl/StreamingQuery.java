@@ -0,0 +1,129 @@
+/*
+ *
+ * Artifactory is a binaries repository manager.
+ * Copyright (C) 2016 JFrog Ltd.
+ *
+ * Artifactory is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ * Artifactory is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with Artifactory.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package org.jfrog.storage.util;
+
+import org.jfrog.storage.DbType;
+import org.jfrog.storage.util.functional.SQLThrowingFunction;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * A query whose result set is read through a forward-only, read-only cursor that fetches rows in blocks instead of
+ * materializing the whole result in the driver, using the settings each db type needs for that.
+ * Closing it closes the statement and result set and restores the connection, but doesn't close the connection.
+ *
+ * @see DbUtils#getStreamingFetchSize
+ */
+class StreamingQuery implements AutoCloseable {
+    private static final Logger log = LoggerFactory.getLogger(StreamingQuery.class);
+
+    private final Connection connection;
+    private final boolean restoreAutoCommit;
+    private final PreparedStatement statement;
+    private final ResultSet resultSet;
+
+    private StreamingQuery(Connection connection, boolean restoreAutoCommit, PreparedStatement statement,
+            ResultSet resultSet) {
+        this.connection = connection;
+        this.restoreAutoCommit = restoreAutoCommit;
+        this.statement = statement;
+        this.resultSet = resultSet;
+    }
+
+    static StreamingQuery open(Connection connection, DbType dbType, String sql, Object... params)
+            throws SQLException {
+        boolean restoreAutoCommit = false;
+        if (DbType.POSTGRESQL.equals(dbType) && connection.getAutoCommit()) {
+            // The postgres driver only uses a cursor (and honors the fetch size) inside a transaction
+            connection.setAutoCommit(false);
+            restoreAutoCommit = true;
+        }
+        PreparedStatement statement = null;
+        try {
+            statement = connection.prepareStatement(sql, ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+            statement.setFetchSize(DbUtils.getStreamingFetchSize(dbType));
+            for (int i = 0; i < params.length; i++) {
+                statement.setObject(i + 1, params[i]);
+            }
+            return new StreamingQuery(connection, restoreAutoCommit, statement, statement.executeQuery());
+        } catch (SQLException | RuntimeException e) {
+            DbStatementUtils.close(statement);
+            if (restoreAutoCommit) {
+                restoreAutoCommit(connection);
+            }
+            throw e;
+        }
+    }
+
+    ResultSet getResultSet() {
+        return resultSet;
+    }
+
+    /**
+     * @return A sequential stream mapping the rows as they are read, closing it closes this query
+     */
+    <T> Stream<T> stream(SQLThrowingFunction<ResultSet, T, SQLException> rowMapper) {
+        Spliterator<T> rows = new Spliterators.AbstractSpliterator<T>(Long.MAX_VALUE, Spliterator.ORDERED) {
+            @Override
+            public boolean tryAdvance(Consumer<? super T> action) {
+                try {
+                    if (!resultSet.next()) {
+                        return false;
+                    }
+                    action.accept(rowMapper.apply(resultSet));
+                    return true;
+                } catch (SQLException e) {
+                    throw new RuntimeException("Failed reading streamed query results: " + e.getMessage(), e);
+                }
+            }
+        };
+        return StreamSupport.stream(rows, false).onClose(this::close);
+    }
+
+    @Override
+    public void close() {
+        DbUtils.close(resultSet);
+        DbUtils.close(statement);
+        if (restoreAutoCommit) {
+            restoreAutoCommit(connection);
+        }
+    }
+
+    private static void restoreAutoCommit(Connection connection) {
+        try {
+            // Read only, nothing to commit
+            connection.rollback();
+            connection.setAutoCommit(true);
+        } catch (SQLException e) {
+            log.warn("Could not restore auto commit on streaming connection: {}", e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,456 @@
+/*
+ *
+ * Artifactory is a binaries repository manager.
+ * Copyright (C) 2016 JFrog Ltd.
+ *
+ * Artifactory is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ * Artifactory is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with Artifactory.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package org.jfrog.storage.util;
+
+import org.jfrog.storage.DbType;
+import org.jfrog.storage.JdbcHelper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Row counts and sizes of the tables in the active schema, read from the statistics the optimizer keeps in the catalog
+ * rather than counted, so collecting them never scans a table:
+ * <ul>
+ * <li>DB2 LUW: SYSCAT.TABLES CARD and NPAGES, SYSCAT.INDEXES NLEAF</li>
+ * <li>DB2 for z/OS: SYSIBM.SYSTABLES CARDF and NPAGESF, SYSIBM.SYSINDEXES NLEAF</li>
+ * <li>Postgres: pg_class reltuples, pg_relation_size and pg_indexes_size</li>
+ * <li>Oracle: ALL_TABLES NUM_ROWS and BLOCKS, ALL_INDEXES LEAF_BLOCKS</li>
+ * <li>MySQL and MariaDB: information_schema.TABLES TABLE_ROWS, DATA_LENGTH and INDEX_LENGTH</li>
+ * <li>MSSQL: sys.partitions rows and sys.allocation_units used pages</li>
+ * <li>Derby: COUNT(*), which is exact but scans, and SYSCS_DIAG.SPACE_TABLE</li>
+ * </ul>
+ * The statistics are only as fresh as the last RUNSTATS/ANALYZE, values the database has none for are -1.
+ * <p>
+ * The statistics of the whole schema are read by one catalog query on one connection (Derby alone counts table by
+ * table). The {@link Report} is kept for a time to live ({@value #DEFAULT_TTL_SECONDS} seconds, or as set by the
+ * system property {@value #TTL_PROPERTY}); once it expired the cached report is still returned while a new one is
+ * collected in the background, so only the very first {@link #getReport()} waits for the database.
+ */
+public final class TableStatistics {
+    private static final Logger log = LoggerFactory.getLogger(TableStatistics.class);
+
+    static final String TTL_PROPERTY = "jfrog.storage.tableStatistics.ttlSeconds";
+    public static final int DEFAULT_TTL_SECONDS = 300;
+    public static final int DEFAULT_TIMEOUT_SECONDS = 300;
+
+    private static final String DB2_LUW_STATISTICS = "SELECT T.TABNAME, T.CARD, T.NPAGES * S.PAGESIZE, " +
+            "(SELECT SUM(I.NLEAF) FROM SYSCAT.INDEXES I WHERE I.TABSCHEMA = T.TABSCHEMA AND I.TABNAME = T.TABNAME " +
+            "AND I.NLEAF >= 0) * COALESCE(X.PAGESIZE, S.PAGESIZE) FROM SYSCAT.TABLES T " +
+            "LEFT JOIN SYSCAT.TABLESPACES S ON S.TBSPACE = T.TBSPACE " +
+            "LEFT JOIN SYSCAT.TABLESPACES X ON X.TBSPACE = T.INDEX_TBSPACE " +
+            "WHERE T.TABSCHEMA = ? AND T.TYPE = 'T'";
+    private static final String DB2_ZOS_STATISTICS = "SELECT T.NAME, T.CARDF, T.NPAGESF * S.PGSIZE * 1024, " +
+            "(SELECT SUM(I.NLEAF * I.PGSIZE) FROM SYSIBM.SYSINDEXES I WHERE I.TBCREATOR = T.CREATOR " +
+            "AND I.TBNAME = T.NAME AND I.NLEAF >= 0) * 1024 FROM SYSIBM.SYSTABLES T " +
+            "LEFT JOIN SYSIBM.SYSTABLESPACE S ON S.DBNAME = T.DBNAME AND S.NAME = T.TSNAME " +
+            "WHERE T.CREATOR = ? AND T.TYPE = 'T'";
+    private static final String POSTGRES_STATISTICS = "SELECT c.relname, c.reltuples, pg_relation_size(c.oid), " +
+            "pg_indexes_size(c.oid) FROM pg_class c JOIN pg_namespace n ON n.oid = c.relnamespace " +
+            "WHERE n.nspname = ? AND c.relkind IN ('r', 'p')";
+    private static final String ORACLE_STATISTICS = "SELECT t.TABLE_NAME, t.NUM_ROWS, t.BLOCKS * s.BLOCK_SIZE, " +
+            "(SELECT SUM(i.LEAF_BLOCKS) FROM ALL_INDEXES i WHERE i.TABLE_OWNER = t.OWNER " +
+            "AND i.TABLE_NAME = t.TABLE_NAME) * s.BLOCK_SIZE FROM ALL_TABLES t " +
+            "LEFT JOIN USER_TABLESPACES s ON s.TABLESPACE_NAME = t.TABLESPACE_NAME " +
+            "WHERE t.OWNER = ?";
+    private static final String MYSQL_STATISTICS = "SELECT TABLE_NAME, TABLE_ROWS, DATA_LENGTH, INDEX_LENGTH " +
+            "FROM information_schema.TABLES WHERE TABLE_SCHEMA = ? AND TABLE_TYPE = 'BASE TABLE'";
+    private static final String MSSQL_STATISTICS = "SELECT t.name, " +
+            "SUM(CASE WHEN p.index_id IN (0, 1) AND a.type = 1 THEN p.rows END), " +
+            "SUM(CASE WHEN p.index_id IN (0, 1) THEN a.used_pages END) * 8192, " +
+            "SUM(CASE WHEN p.index_id > 1 THEN a.used_pages END) * 8192 " +
+            "FROM sys.tables t JOIN sys.schemas s ON s.schema_id = t.schema_id " +
+            "JOIN sys.partitions p ON p.object_id = t.object_id " +
+            "JOIN sys.allocation_units a ON a.container_id = p.partition_id " +
+            "WHERE s.name = ? GROUP BY t.name";
+    private static final String DERBY_SPACE = "SELECT T.TABLENAME, " +
+            "SUM(CASE WHEN D.ISINDEX = 0 THEN D.NUMALLOCATEDPAGES * D.PAGESIZE ELSE 0 END), " +
+            "SUM(CASE WHEN D.ISINDEX = 1 THEN D.NUMALLOCATEDPAGES * D.PAGESIZE ELSE 0 END) " +
+            "FROM SYS.SYSSCHEMAS S, SYS.SYSTABLES T, TABLE (SYSCS_DIAG.SPACE_TABLE(S.SCHEMANAME, T.TABLENAME)) D " +
+            "WHERE T.SCHEMAID = S.SCHEMAID AND S.SCHEMANAME = ? AND T.TABLETYPE = 'T' GROUP BY T.TABLENAME";
+
+    private static final Map<DataSource, TableStatistics> collectors = new ConcurrentHashMap<>();
+
+    private final JdbcHelper jdbcHelper;
+    private final DbType dbType;
+    private int timeoutSeconds = DEFAULT_TIMEOUT_SECONDS;
+    private long ttlMillis = TimeUnit.SECONDS.toMillis(Integer.getInteger(TTL_PROPERTY, DEFAULT_TTL_SECONDS));
+    private final AtomicBoolean refreshing = new AtomicBoolean();
+    private volatile Report report;
+
+    public TableStatistics(JdbcHelper jdbcHelper, DbType dbType) {
+        this.jdbcHelper = jdbcHelper;
+        this.dbType = dbType;
+    }
+
+    /**
+     * @return The shared collector of the data source, dropped when it is closed through
+     * {@link DbUtils#closeDataSource}
+     */
+    static TableStatistics of(JdbcHelper jdbcHelper, DbType dbType) {
+        return collectors.compute(jdbcHelper.getDataSource(), (dataSource, statistics) ->
+                statistics == null || statistics.dbType != dbType ? new TableStatistics(jdbcHelper, dbType) : statistics);
+    }
+
+    static void unregister(DataSource dataSource) {
+        collectors.remove(dataSource);
+    }
+
+    /**
+     * @param seconds Max time one statement of a collection may take
+     */
+    public TableStatistics timeout(int seconds) {
+        if (seconds < 1) {
+            throw new IllegalArgumentException("Timeout must be positive: " + seconds);
+        }
+        this.timeoutSeconds = seconds;
+        return this;
+    }
+
+    public TableStatistics ttl(long duration, TimeUnit unit) {
+        this.ttlMillis = unit.toMillis(duration);
+        return this;
+    }
+
+    /**
+     * @return The cached report, collecting a new one in the background if it expired, or collected now if there is
+     * none yet
+     */
+    public Report getReport() throws SQLException {
+        Report current = report;
+        if (current == null) {
+            return refreshIfMissing();
+        }
+        if (current.getAgeMillis() >= ttlMillis) {
+            refreshInBackground();
+        }
+        return current;
+    }
+
+    /**
+     * Collects and caches a new report now.
+     */
+    public synchronized Report refresh() throws SQLException {
+        long start = System.nanoTime();
+        ConnectionProfile profile = DbUtils.getConnectionProfile(jdbcHelper, dbType);
+        List<TableStats> stats = DbUtils.withConnection(jdbcHelper, conn -> collect(conn, profile));
+        Report collected = new Report(dbType, profile.getSchema(), stats, System.currentTimeMillis());
+        log.debug("Collected the statistics of {} tables in {}ms", stats.size(),
+                TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+        report = collected;
+        return collected;
+    }
+
+    /**
+     * The callers that found no report wait for the first of them to collect it rather than each collecting one.
+     */
+    private synchronized Report refreshIfMissing() throws SQLException {
+        Report current = report;
+        return current != null ? current : refresh();
+    }
+
+    private void refreshInBackground() {
+        if (!refreshing.compareAndSet(false, true)) {
+            return;
+        }
+        ExecutorService executor = Executors.newSingleThreadExecutor(r -> {
+            Thread thread = new Thread(r, "db-table-statistics");
+            thread.setDaemon(true);
+            return thread;
+        });
+        CompletableFuture.runAsync(() -> {
+            try {
+                refresh();
+            } catch (Exception e) {
+                log.warn("Could not collect the table statistics: {}", e.getMessage());
+                log.debug("Could not collect the table statistics", e);
+            } finally {
+                refreshing.set(false);
+            }
+        }, executor);
+        executor.shutdown();
+    }
+
+    /**
+     * @return The statistics of the tables the metadata lists, in its order, -1 for those the catalog query didn't
+     * return
+     */
+    private List<TableStats> collect(Connection conn, ConnectionProfile profile) throws SQLException {
+        List<String> tables = getTables(conn, profile);
+        Map<String, TableStats> loaded = load(conn, profile);
+        List<TableStats> stats = new ArrayList<>(tables.size());
+        for (String table : tables) {
+            TableStats tableStats = loaded.get(table);
+            if (dbType == DbType.DERBY) {
+                stats.add(countDerby(conn, profile.getSchema(), table, tableStats));
+            } else {
+                stats.add(tableStats != null ? tableStats : new TableStats(table, -1, -1, -1, false));
+            }
+        }
+        return stats;
+    }
+
+    private static List<String> getTables(Connection conn, ConnectionProfile profile) throws SQLException {
+        List<String> tables = new ArrayList<>();
+        try (ResultSet rs = conn.getMetaData().getTables(profile.getCatalog(), profile.getSchema(), "%",
+                new String[]{"TABLE"})) {
+            while (rs.next()) {
+                tables.add(rs.getString("TABLE_NAME"));
+            }
+        }
+        return tables;
+    }
+
+    /**
+     * @return The statistics of all the tables of the schema by name, from one catalog query
+     */
+    private Map<String, TableStats> load(Connection conn, ConnectionProfile profile) throws SQLException {
+        switch (dbType) {
+            case DB2:
+                return load(conn, profile.isDb2ForZos() ? DB2_ZOS_STATISTICS : DB2_LUW_STATISTICS,
+                        profile.getSchema(), false);
+            case POSTGRESQL:
+                return load(conn, POSTGRES_STATISTICS, profile.getSchema(), false);
+            case ORACLE:
+                return load(conn, ORACLE_STATISTICS, profile.getSchema(), false);
+            case MYSQL:
+            case MARIADB:
+                return load(conn, MYSQL_STATISTICS, profile.getCatalog(), false);
+            case MSSQL:
+                return load(conn, MSSQL_STATISTICS, profile.getSchema(), false);
+            case DERBY:
+                return load(conn, DERBY_SPACE, profile.getSchema(), true);
+            default:
+                throw new IllegalArgumentException("No table statistics for " + dbType);
+        }
+    }
+
+    /**
+     * Runs a statistics query selecting the table name followed by the row count, data and index bytes, Derby's
+     * selects only the bytes, its rows are counted afterwards.
+     */
+    private Map<String, TableStats> load(Connection conn, String query, String schema, boolean derby)
+            throws SQLException {
+        Map<String, TableStats> stats = new HashMap<>();
+        try (PreparedStatement stmt = conn.prepareStatement(query)) {
+            stmt.setQueryTimeout(timeoutSeconds);
+            stmt.setString(1, schema);
+            try (ResultSet rs = stmt.executeQuery()) {
+                while (rs.next()) {
+                    String table = rs.getString(1);
+                    stats.put(table, derby ? new TableStats(table, -1, getLong(rs, 2), getLong(rs, 3), true)
+                            : new TableStats(table, getLong(rs, 2), getLong(rs, 3), getLong(rs, 4), false));
+                }
+            }
+        }
+        return stats;
+    }
+
+    /**
+     * Derby keeps no row count statistic that can be queried, it's counted.
+     */
+    private TableStats countDerby(Connection conn, String schema, String table, @Nullable TableStats space)
+            throws SQLException {
+        long rows;
+        try (Statement stmt = conn.createStatement()) {
+            stmt.setQueryTimeout(timeoutSeconds);
+            try (ResultSet rs = stmt.executeQuery("SELECT COUNT(*) FROM " + quote(schema) + "." +
+                    quote(table))) {
+                rows = rs.next() ? rs.getLong(1) : -1;
+            }
+        }
+        return space == null ? new TableStats(table, rows, -1, -1, true)
+                : new TableStats(table, rows, space.getDataBytes(), space.getIndexBytes(), true);
+    }
+
+    /**
+     * @return The column's value, -1 if it's null or negative (no statistics collected)
+     */
+    private static long getLong(ResultSet rs, int column) throws SQLException {
+        double value = rs.getDouble(column);
+        return rs.wasNull() || value < 0 ? -1 : (long) value;
+    }
+
+    private static String quote(String identifier) {
+        return "\"" + identifier.replace("\"", "\"\"") + "\"";
+    }
+
+    /**
+     * The statistics of one table, -1 where unknown.
+     */
+    public static final class TableStats {
+        private final String name;
+        private final long rows;
+        private final long dataBytes;
+        private final long indexBytes;
+        private final boolean exact;
+
+        TableStats(String name, long rows, long dataBytes, long indexBytes, boolean exact) {
+            this.name = name;
+            this.rows = rows;
+            this.dataBytes = dataBytes;
+            this.indexBytes = indexBytes;
+            this.exact = exact;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public long getRows() {
+            return rows;
+        }
+
+        /**
+         * @return Bytes allocated to the table's rows
+         */
+        public long getDataBytes() {
+            return dataBytes;
+        }
+
+        /**
+         * @return Bytes allocated to the table's indexes
+         */
+        public long getIndexBytes() {
+            return indexBytes;
+        }
+
+        /**
+         * @return True if the row count was counted rather than estimated by the optimizer statistics
+         */
+        public boolean isExact() {
+            return exact;
+        }
+
+        @Override
+        public String toString() {
+            return name + ": rows=" + rows + ", dataBytes=" + dataBytes + ", indexBytes=" + indexBytes;
+        }
+    }
+
+    /**
+     * The statistics of all the tables of the schema at one point in time.
+     */
+    public static final class Report {
+        private final DbType dbType;
+        private final String schema;
+        private final List<TableStats> tables;
+        private final long collectedAt;
+
+        Report(DbType dbType, @Nullable String schema, List<TableStats> tables, long collectedAt) {
+            this.dbType = dbType;
+            this.schema = schema;
+            this.tables = Collections.unmodifiableList(tables);
+            this.collectedAt = collectedAt;
+        }
+
+        public DbType getDbType() {
+            return dbType;
+        }
+
+        @Nullable
+        public String getSchema() {
+            return schema;
+        }
+
+        public List<TableStats> getTables() {
+            return tables;
+        }
+
+        /**
+         * @return The statistics of the table, null if the schema has no such table
+         */
+        @Nullable
+        public TableStats getTable(String name) {
+            for (TableStats table : tables) {
+                if (table.getName().equalsIgnoreCase(name)) {
+                    return table;
+                }
+            }
+            return null;
+        }
+
+        /**
+         * @return Time the report was collected, in epoch millis
+         */
+        public long getCollectedAt() {
+            return collectedAt;
+        }
+
+        public long getAgeMillis() {
+            return System.currentTimeMillis() - collectedAt;
+        }
+
+        /**
+         * @return Sum of the known row counts
+         */
+        public long getTotalRows() {
+            long total = 0;
+            for (TableStats table : tables) {
+                total += Math.max(table.getRows(), 0);
+            }
+            return total;
+        }
+
+        /**
+         * @return Sum of the known data and index sizes
+         */
+        public long getTotalBytes() {
+            long total = 0;
+            for (TableStats table : tables) {
+                total += Math.max(table.getDataBytes(), 0) + Math.max(table.getIndexBytes(), 0);
+            }
+            return total;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder report = new StringBuilder("Table statistics of ").append(dbType);
+            if (schema != null) {
+                report.append(" schema ").append(schema);
+            }
+            report.append(": ").append(tables.size()).append(" tables, ").append(getTotalRows())
+                    .append(" rows, ").append(getTotalBytes()).append(" bytes");
+            for (TableStats table : tables) {
+                report.append("\n  ").append(table);
+            }
+            return report.toString();
+        }
+    }
+}
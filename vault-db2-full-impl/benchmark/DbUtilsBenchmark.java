@@ -0,0 +1,290 @@
+/*
+ *
+ * Artifactory is a binaries repository manager.
+ * Copyright (C) 2016 JFrog Ltd.
+ *
+ * Artifactory is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ * Artifactory is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with Artifactory.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package org.jfrog.storage.benchmark;
+
+import org.apache.derby.jdbc.EmbeddedDataSource;
+import org.jfrog.storage.DbType;
+import org.jfrog.storage.JdbcHelper;
+import org.jfrog.storage.util.ConnectionProfile;
+import org.jfrog.storage.util.DbUtils;
+import org.jfrog.storage.util.SchemaExpectation;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.sql.Connection;
+import java.sql.DatabaseMetaData;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Measures the {@link DbUtils} metadata and connection helpers against an embedded Derby database holding schemas of
+ * 10, 100 and 1,000 tables, with and without the schema snapshot cache.
+ * <p>
+ * Works like a JMH average-time run (warmup and measurement iterations, mean and 99.9% error per operation)
+ * but only needs the jars already shipped in the access webapp, so it runs offline. Results are written as a
+ * JMH-compatible JSON array, see run-benchmark.sh.
+ */
+public class DbUtilsBenchmark {
+
+    private static final int[] TABLE_COUNTS = {10, 100, 1000};
+    private static final int WARMUP_ITERATIONS = 3;
+    private static final int MEASUREMENT_ITERATIONS = 5;
+    private static final long ITERATION_NANOS = 1_000_000_000L;
+    private static final String CACHE_PROPERTY = "jfrog.storage.schemaCache.enabled";
+    // Student's t for 99.9% confidence with MEASUREMENT_ITERATIONS - 1 degrees of freedom, as JMH reports it
+    private static final double T_999_4DF = 8.610;
+
+    // Results are published here so the JIT can't drop the measured calls
+    private static volatile Object blackhole;
+
+    private final List<Result> results = new ArrayList<>();
+
+    public static void main(String[] args) throws Exception {
+        Path output = Paths.get(args.length > 0 ? args[0] : "dbutils-benchmark.json");
+        Path dbDir = Files.createTempDirectory("dbutils-benchmark");
+        System.setProperty("derby.system.home", dbDir.toString());
+        DbUtilsBenchmark benchmark = new DbUtilsBenchmark();
+        for (int tables : TABLE_COUNTS) {
+            EmbeddedDataSource dataSource = new EmbeddedDataSource();
+            dataSource.setDatabaseName("bench" + tables);
+            dataSource.setCreateDatabase("create");
+            createSchema(dataSource, tables);
+            // The generic path runs as POSTGRESQL, on a data source of its own so the Derby one keeps its cached
+            // profile and snapshot
+            EmbeddedDataSource genericDataSource = new EmbeddedDataSource();
+            genericDataSource.setDatabaseName("bench" + tables);
+            benchmark.runAll(new JdbcHelper(dataSource), new JdbcHelper(genericDataSource), tables);
+            DbUtils.closeDataSource(genericDataSource);
+            DbUtils.closeDataSource(dataSource);
+        }
+        benchmark.writeJson(output);
+        System.out.println("Results written to " + output.toAbsolutePath());
+    }
+
+    private void runAll(JdbcHelper jdbcHelper, JdbcHelper genericJdbcHelper, int tables) throws Exception {
+        String lastTable = tableName(tables - 1);
+        String lastIndex = "IDX_" + lastTable;
+        String lastForeignKey = "FK_" + lastTable;
+        List<SchemaExpectation> expectations = new ArrayList<>();
+        for (int i = 0; i < tables; i++) {
+            expectations.add(SchemaExpectation.column(tableName(i), "NAME"));
+            expectations.add(SchemaExpectation.index(tableName(i), "NAME", "IDX_" + tableName(i)));
+        }
+        byte[] script = ("INSERT INTO " + tableName(0) + " (ID, NAME, SIZE) VALUES (1, 'a', 1);\n" +
+                "UPDATE " + tableName(0) + " SET SIZE = 2 WHERE ID = 1;\n" +
+                "DELETE FROM " + tableName(0) + " WHERE ID = 1;\n").getBytes(StandardCharsets.UTF_8);
+
+        for (boolean schemaCache : new boolean[]{false, true}) {
+            System.setProperty(CACHE_PROPERTY, String.valueOf(schemaCache));
+            DbUtils.invalidateSchemaCache();
+            Map<String, String> params = params(tables, schemaCache);
+            measure("tableExists", params, () -> DbUtils.tableExists(jdbcHelper, DbType.DERBY, lastTable));
+            measure("tableExistsMissing", params, () -> DbUtils.tableExists(jdbcHelper, DbType.DERBY, "NO_SUCH"));
+            measure("columnExists", params,
+                    () -> DbUtils.columnExists(jdbcHelper, DbType.DERBY, lastTable, "NAME"));
+            measure("getColumnSize", params,
+                    () -> DbUtils.getColumnSize(jdbcHelper, DbType.DERBY, lastTable, "NAME"));
+            // Same database, different code paths: POSTGRESQL walks the generic getIndexInfo scan
+            measure("indexExistsGeneric", params,
+                    () -> DbUtils.indexExists(genericJdbcHelper, lastTable, "NAME", lastIndex, DbType.POSTGRESQL));
+            measure("indexExistsDerby", params,
+                    () -> DbUtils.indexExists(jdbcHelper, lastTable, "NAME", lastIndex, DbType.DERBY));
+            measure("foreignKeyExists", params,
+                    () -> DbUtils.foreignKeyExists(jdbcHelper, DbType.DERBY, lastTable, lastForeignKey));
+            measure("verifySchema", params, () -> DbUtils.verifySchema(jdbcHelper, DbType.DERBY, expectations));
+        }
+
+        System.clearProperty(CACHE_PROPERTY);
+        Map<String, String> params = params(tables, null);
+        // Oracle style targeted catalog lookup, Derby's catalog stands in for ALL_IND_COLUMNS
+        measure("indexExistsCatalogQuery", params, () -> DbUtils.withConnection(jdbcHelper,
+                conn -> derbyCatalogIndexExists(conn, lastTable, lastIndex)));
+        measure("normalizedNameMetadata", params, () -> DbUtils.withMetadata(jdbcHelper,
+                metadata -> {
+                    String name = null;
+                    for (int i = 0; i < 100; i++) {
+                        name = DbUtils.normalizedName("some_table_name", metadata);
+                    }
+                    return name;
+                }));
+        ConnectionProfile profile = DbUtils.getConnectionProfile(jdbcHelper, DbType.DERBY);
+        measure("normalizedNameProfile", params, () -> DbUtils.withConnection(jdbcHelper,
+                conn -> {
+                    String name = null;
+                    for (int i = 0; i < 100; i++) {
+                        name = DbUtils.normalizedName("some_table_name", profile);
+                    }
+                    return name;
+                }));
+        measure("withConnection", params, () -> DbUtils.withConnection(jdbcHelper, Connection::getAutoCommit));
+        measure("withMetadata", params, () -> DbUtils.withMetadata(jdbcHelper, DatabaseMetaData::getURL));
+        measure("executeSqlStream", params, () -> {
+            DbUtils.doStreamWithConnection(jdbcHelper,
+                    conn -> DbUtils.executeSqlStream(conn, new ByteArrayInputStream(script)));
+            return null;
+        });
+    }
+
+    private static boolean derbyCatalogIndexExists(Connection conn, String table, String index) throws SQLException {
+        try (PreparedStatement stmt = conn.prepareStatement("SELECT COUNT(*) FROM SYS.SYSCONGLOMERATES C " +
+                "JOIN SYS.SYSTABLES T ON T.TABLEID = C.TABLEID " +
+                "WHERE C.ISINDEX = TRUE AND T.TABLENAME = ? AND C.CONGLOMERATENAME = ?")) {
+            stmt.setString(1, table);
+            stmt.setString(2, index);
+            try (ResultSet rs = stmt.executeQuery()) {
+                return rs.next() && rs.getInt(1) > 0;
+            }
+        }
+    }
+
+    private void measure(String name, Map<String, String> params, Operation operation) throws Exception {
+        for (int i = 0; i < WARMUP_ITERATIONS; i++) {
+            runIteration(operation);
+        }
+        double[] scores = new double[MEASUREMENT_ITERATIONS];
+        for (int i = 0; i < MEASUREMENT_ITERATIONS; i++) {
+            scores[i] = runIteration(operation);
+        }
+        Result result = new Result(name, params, scores);
+        results.add(result);
+        System.out.printf(Locale.ENGLISH, "%-26s %-36s %12.3f +- %10.3f us/op%n", name, params, result.mean(),
+                result.error());
+    }
+
+    /**
+     * @return Average microseconds per operation
+     */
+    private static double runIteration(Operation operation) throws Exception {
+        long ops = 0;
+        long start = System.nanoTime();
+        long elapsed;
+        do {
+            blackhole = operation.run();
+            ops++;
+            elapsed = System.nanoTime() - start;
+        } while (elapsed < ITERATION_NANOS);
+        return elapsed / 1000.0 / ops;
+    }
+
+    private static void createSchema(EmbeddedDataSource dataSource, int tables) throws SQLException {
+        try (Connection conn = dataSource.getConnection(); Statement stmt = conn.createStatement()) {
+            for (int i = 0; i < tables; i++) {
+                String table = tableName(i);
+                stmt.executeUpdate("CREATE TABLE " + table + " (ID BIGINT NOT NULL PRIMARY KEY, " +
+                        "NAME VARCHAR(255), SIZE BIGINT, PARENT_ID BIGINT)");
+                stmt.executeUpdate("CREATE INDEX IDX_" + table + " ON " + table + " (NAME)");
+                if (i > 0) {
+                    stmt.executeUpdate("ALTER TABLE " + table + " ADD CONSTRAINT FK_" + table +
+                            " FOREIGN KEY (PARENT_ID) REFERENCES " + tableName(i - 1) + " (ID)");
+                }
+            }
+        }
+    }
+
+    private static String tableName(int i) {
+        return String.format("BENCH_TABLE_%04d", i);
+    }
+
+    private static Map<String, String> params(int tables, Boolean schemaCache) {
+        Map<String, String> params = new LinkedHashMap<>();
+        params.put("tables", String.valueOf(tables));
+        if (schemaCache != null) {
+            params.put("schemaCache", String.valueOf(schemaCache));
+        }
+        return params;
+    }
+
+    private void writeJson(Path output) throws IOException {
+        try (PrintWriter out = new PrintWriter(Files.newBufferedWriter(output, StandardCharsets.UTF_8))) {
+            out.println("[");
+            for (int i = 0; i < results.size(); i++) {
+                results.get(i).writeJson(out);
+                out.println(i < results.size() - 1 ? "," : "");
+            }
+            out.println("]");
+        }
+    }
+
+    @FunctionalInterface
+    private interface Operation {
+        Object run() throws Exception;
+    }
+
+    private static class Result {
+        private final String benchmark;
+        private final Map<String, String> params;
+        private final double[] scores;
+
+        private Result(String benchmark, Map<String, String> params, double[] scores) {
+            this.benchmark = benchmark;
+            this.params = params;
+            this.scores = scores;
+        }
+
+        private double mean() {
+            double sum = 0;
+            for (double score : scores) {
+                sum += score;
+            }
+            return sum / scores.length;
+        }
+
+        private double error() {
+            double mean = mean();
+            double variance = 0;
+            for (double score : scores) {
+                variance += (score - mean) * (score - mean);
+            }
+            variance /= scores.length - 1;
+            return T_999_4DF * Math.sqrt(variance / scores.length);
+        }
+
+        private void writeJson(PrintWriter out) {
+            out.print("  {\"benchmark\": \"" + DbUtilsBenchmark.class.getName() + "." + benchmark + "\", ");
+            out.print("\"mode\": \"avgt\", \"warmupIterations\": " + WARMUP_ITERATIONS + ", ");
+            out.print("\"measurementIterations\": " + MEASUREMENT_ITERATIONS + ", \"params\": {");
+            int i = 0;
+            for (Map.Entry<String, String> param : params.entrySet()) {
+                out.print((i++ > 0 ? ", " : "") + "\"" + param.getKey() + "\": \"" + param.getValue() + "\"");
+            }
+            out.print("}, \"primaryMetric\": {");
+            out.printf(Locale.ENGLISH, "\"score\": %.3f, \"scoreError\": %.3f, \"scoreUnit\": \"us/op\", ", mean(),
+                    error());
+            out.print("\"rawData\": [[");
+            for (int j = 0; j < scores.length; j++) {
+                out.printf(Locale.ENGLISH, "%s%.3f", j > 0 ? ", " : "", scores[j]);
+            }
+            out.print("]]}}");
+        }
+    }
+}
@@ -0,0 +1,17 @@
+#!/bin/bash
+
+# Runs DbUtilsBenchmark against an embedded Derby database and writes the results as JMH style JSON.
+# Not part of the image: copy this directory into a running artifactory-db2 container (LIB_DIR defaults to where
+# update-dependencies.sh leaves the patched access jars), or anywhere else point LIB_DIR to a directory with the
+# jfrog-db-infra, derby, slf4j, spring-jdbc and commons-lang jars.
+#
+# Usage: run-benchmark.sh [results.json]
+
+LIB_DIR=${LIB_DIR:-/opt/jfrog/artifactory/webapps/tmp/WEB-INF/lib}
+OUTPUT=$(realpath -m "${1:-dbutils-benchmark.json}")
+BUILD_DIR=$(mktemp -d)
+
+cd "$(dirname "$0")"
+javac -cp "$LIB_DIR/*" -d "$BUILD_DIR" DbUtilsBenchmark.java || exit 1
+java -cp "$BUILD_DIR:$LIB_DIR/*" org.jfrog.storage.benchmark.DbUtilsBenchmark "$OUTPUT"
+rm -rf "$BUILD_DIR"
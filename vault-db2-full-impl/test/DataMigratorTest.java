@@ -0,0 +1,190 @@
+/*
+ *
+ * Artifactory is a binaries repository manager.
+ * Copyright (C) 2016 JFrog Ltd.
+ *
+ * Artifactory is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ * Artifactory is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with Artifactory.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package org.jfrog.storage.test;
+
+import org.apache.derby.jdbc.EmbeddedDataSource;
+import org.jfrog.storage.DbType;
+import org.jfrog.storage.JdbcHelper;
+import org.jfrog.storage.util.DataMigrator;
+import org.jfrog.storage.util.DbUtils;
+import org.jfrog.storage.util.MigrationCheckpoints;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Map;
+
+/**
+ * Checks {@link DataMigrator} copying between two in-memory Derby databases: the copy and its verification, resuming
+ * from file checkpoints after rows were added around the copied key ranges, and the checksums catching a row that
+ * differs.
+ * <p>
+ * Only needs the jars already shipped in the access webapp, see run-tests.sh. Fails with the first check that
+ * doesn't hold.
+ */
+public class DataMigratorTest {
+
+    private static final long RANGE_SIZE = 100;
+    private static final String SCHEMA = "CREATE TABLE NODES (ID BIGINT NOT NULL PRIMARY KEY, NAME VARCHAR(100), " +
+            "DATA BLOB(2M), NOTE CLOB(2M));" +
+            "CREATE TABLE PROPS (NAME VARCHAR(50), PROP_VALUE VARCHAR(50))";
+
+    private int checks;
+
+    public static void main(String[] args) throws Exception {
+        new DataMigratorTest().run();
+    }
+
+    private void run() throws Exception {
+        EmbeddedDataSource sourceDataSource = dataSource("migration-source");
+        EmbeddedDataSource targetDataSource = dataSource("migration-target");
+        JdbcHelper source = new JdbcHelper(sourceDataSource);
+        JdbcHelper target = new JdbcHelper(targetDataSource);
+        Path checkpointFile = Files.createTempFile("migration-checkpoints", ".txt");
+        try {
+            for (String sql : SCHEMA.split(";")) {
+                execute(source, sql);
+                execute(target, sql);
+            }
+            fillSource(source);
+            copiesAndVerifies(source, target, checkpointFile);
+            resumesFromCheckpoints(source, target, checkpointFile);
+            checksumsCatchADifferentRow(source, target, checkpointFile);
+        } finally {
+            Files.deleteIfExists(checkpointFile);
+            DbUtils.closeDataSource(sourceDataSource);
+            DbUtils.closeDataSource(targetDataSource);
+        }
+        System.out.println(checks + " checks passed");
+    }
+
+    private void copiesAndVerifies(JdbcHelper source, JdbcHelper target, Path checkpointFile) throws Exception {
+        Map<String, DataMigrator.TableResult> results;
+        try (MigrationCheckpoints checkpoints = new MigrationCheckpoints(checkpointFile)) {
+            results = migrator(source, target, checkpoints).migrate();
+        }
+        DataMigrator.TableResult nodes = results.get("NODES");
+        check(nodes.isVerified(), "NODES copied and verified, got " + nodes);
+        check(nodes.getRowsCopied() == 300, "all NODES rows copied, got " + nodes.getRowsCopied());
+        DataMigrator.TableResult props = results.get("PROPS");
+        check(props.isVerified() && props.getRowsCopied() == 3, "PROPS copied whole and verified, got " + props);
+        // NODES keys 1-249, 999999 and 1000000-1000049 fall in 5 ranges, PROPS has no key and is a single one
+        check(Files.readAllLines(checkpointFile).size() == 6,
+                "one checkpoint per range, got " + Files.readAllLines(checkpointFile));
+    }
+
+    /**
+     * Rows added below the smallest and above the largest key only make new ranges, the copied ones keep their
+     * checkpoints. A row that an interrupted copy left in the target is replaced.
+     */
+    private void resumesFromCheckpoints(JdbcHelper source, JdbcHelper target, Path checkpointFile) throws Exception {
+        insertNode(source, -50);
+        insertNode(source, 2_000_000);
+        insertNode(target, 2_000_000);
+        Map<String, DataMigrator.TableResult> results;
+        try (MigrationCheckpoints checkpoints = new MigrationCheckpoints(checkpointFile)) {
+            results = migrator(source, target, checkpoints).migrate();
+        }
+        DataMigrator.TableResult nodes = results.get("NODES");
+        check(nodes.getRowsCopied() == 2, "only the new ranges copied, got " + nodes);
+        check(nodes.isVerified() && nodes.getTargetRows() == 302, "resumed copy verified, got " + nodes);
+        check(results.get("PROPS").getRowsCopied() == 0, "copied table skipped, got " + results.get("PROPS"));
+    }
+
+    private void checksumsCatchADifferentRow(JdbcHelper source, JdbcHelper target, Path checkpointFile)
+            throws Exception {
+        execute(target, "UPDATE NODES SET NAME = 'changed' WHERE ID = 120");
+        try (MigrationCheckpoints checkpoints = new MigrationCheckpoints(checkpointFile)) {
+            DataMigrator.TableResult nodes = migrator(source, target, checkpoints).migrate().get("NODES");
+            check(nodes.getRowsCopied() == 0 && nodes.getSourceRows() == nodes.getTargetRows(),
+                    "nothing left to copy, same row counts, got " + nodes);
+            check(!nodes.isVerified(), "checksum mismatch reported, got " + nodes);
+            nodes = migrator(source, target, checkpoints).verifyChecksums(false).migrate().get("NODES");
+            check(nodes.isVerified(), "row counts alone match without checksums, got " + nodes);
+        }
+    }
+
+    private static DataMigrator migrator(JdbcHelper source, JdbcHelper target, MigrationCheckpoints checkpoints) {
+        return new DataMigrator(source, DbType.DERBY, target, DbType.DERBY)
+                .rangeSize(RANGE_SIZE)
+                .pageSize(40)
+                .threads(3)
+                .checkpoints(checkpoints);
+    }
+
+    private static void fillSource(JdbcHelper source) throws SQLException {
+        for (long id = 1; id < 250; id++) {
+            insertNode(source, id);
+        }
+        for (long id = 1_000_000; id < 1_000_050; id++) {
+            insertNode(source, id);
+        }
+        // A large value, spooled by the copy, and a row with nulls
+        try (Connection conn = source.getDataSource().getConnection();
+             PreparedStatement stmt = conn.prepareStatement("INSERT INTO NODES VALUES (?, ?, ?, ?)")) {
+            StringBuilder note = new StringBuilder();
+            while (note.length() < 1_500_000) {
+                note.append("note \u00e9 ");
+            }
+            stmt.setLong(1, 999_999);
+            stmt.setString(2, "large");
+            stmt.setBytes(3, new byte[1_500_000]);
+            stmt.setString(4, note.toString());
+            stmt.executeUpdate();
+        }
+        execute(source, "UPDATE NODES SET DATA = NULL, NOTE = NULL WHERE ID = 7");
+        execute(source, "INSERT INTO PROPS VALUES ('a', '1'), ('b', NULL), ('c', '3')");
+    }
+
+    private static void insertNode(JdbcHelper jdbcHelper, long id) throws SQLException {
+        try (Connection conn = jdbcHelper.getDataSource().getConnection();
+             PreparedStatement stmt = conn.prepareStatement("INSERT INTO NODES VALUES (?, ?, ?, ?)")) {
+            stmt.setLong(1, id);
+            stmt.setString(2, "node-" + id);
+            stmt.setBytes(3, new byte[]{(byte) id, (byte) (id >> 8)});
+            stmt.setString(4, "note " + id);
+            stmt.executeUpdate();
+        }
+    }
+
+    private static EmbeddedDataSource dataSource(String name) {
+        EmbeddedDataSource dataSource = new EmbeddedDataSource();
+        dataSource.setDatabaseName("memory:" + name);
+        dataSource.setCreateDatabase("create");
+        return dataSource;
+    }
+
+    private static void execute(JdbcHelper jdbcHelper, String sql) throws SQLException {
+        try (Connection conn = jdbcHelper.getDataSource().getConnection(); Statement stmt = conn.createStatement()) {
+            stmt.execute(sql);
+        }
+    }
+
+    private void check(boolean condition, String description) {
+        if (!condition) {
+            throw new AssertionError("Failed: " + description);
+        }
+        checks++;
+    }
+}
@@ -0,0 +1,178 @@
+/*
+ *
+ * Artifactory is a binaries repository manager.
+ * Copyright (C) 2016 JFrog Ltd.
+ *
+ * Artifactory is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ * Artifactory is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with Artifactory.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package org.jfrog.storage.test;
+
+import org.apache.derby.jdbc.EmbeddedDataSource;
+import org.jfrog.storage.DbType;
+import org.jfrog.storage.JdbcHelper;
+import org.jfrog.storage.util.DbUtils;
+import org.jfrog.storage.util.ReplicaRouter;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Checks {@link ReplicaRouter} on in-memory Derby databases standing in for a primary and its replicas, each holding
+ * its own name in a table so a read tells where it ran: reads go to the least busy replica, and to the primary when
+ * a replica fails or lags too far behind.
+ * <p>
+ * Only needs the jars already shipped in the access webapp, see run-tests.sh. Fails with the first check that
+ * doesn't hold.
+ */
+public class ReplicaRouterTest {
+
+    private int checks;
+
+    public static void main(String[] args) throws Exception {
+        new ReplicaRouterTest().run();
+    }
+
+    private void run() throws Exception {
+        EmbeddedDataSource primary = dataSource("router-primary");
+        EmbeddedDataSource replica1 = dataSource("router-replica1");
+        EmbeddedDataSource replica2 = dataSource("router-replica2");
+        CountingDataSource missing = new CountingDataSource();
+        missing.setDatabaseName("memory:router-missing");
+        JdbcHelper jdbcHelper = new JdbcHelper(primary);
+        try {
+            routesReadsToTheLeastBusyReplica(jdbcHelper, replica1, replica2);
+            fallsBackWhenAReplicaFails(jdbcHelper, missing);
+            skipsLaggingReplicas(jdbcHelper, replica1, replica2);
+            DbUtils.setReplicaRouter(jdbcHelper, null);
+            check("router-primary".equals(whereReadRuns(jdbcHelper)), "reads on the primary once routing stops");
+        } finally {
+            DbUtils.closeDataSource(primary);
+            DbUtils.closeDataSource(replica1);
+            DbUtils.closeDataSource(replica2);
+        }
+        System.out.println(checks + " checks passed");
+    }
+
+    private void routesReadsToTheLeastBusyReplica(JdbcHelper jdbcHelper, EmbeddedDataSource replica1,
+            EmbeddedDataSource replica2) throws SQLException {
+        ReplicaRouter router = new ReplicaRouter(jdbcHelper.getDataSource(), DbType.DERBY,
+                Arrays.asList(replica1, replica2));
+        DbUtils.setReplicaRouter(jdbcHelper, router);
+        String outer = DbUtils.withReadOnlyConnection(jdbcHelper, conn -> {
+            String inner = DbUtils.withReadOnlyConnection(jdbcHelper, innerConn -> {
+                check(router.getOutstandingBorrows().equals(Arrays.asList(1, 1)),
+                        "one borrow on each replica, got " + router.getOutstandingBorrows());
+                return name(innerConn);
+            });
+            String self = name(conn);
+            check(!inner.equals(self) && inner.startsWith("router-replica"),
+                    "nested read on the other replica, got " + self + " and " + inner);
+            return self;
+        });
+        check(outer.startsWith("router-replica"), "read on a replica, got " + outer);
+        check(router.getOutstandingBorrows().equals(Arrays.asList(0, 0)),
+                "borrows returned, got " + router.getOutstandingBorrows());
+        check(DbUtils.withReadOnlyMetadata(jdbcHelper, metadata -> name(metadata.getConnection()))
+                .startsWith("router-replica"), "metadata read on a replica");
+    }
+
+    /**
+     * A replica that can't give a connection is left out for the failure backoff, reads meanwhile go to the primary.
+     */
+    private void fallsBackWhenAReplicaFails(JdbcHelper jdbcHelper, CountingDataSource missing) throws SQLException {
+        ReplicaRouter router = new ReplicaRouter(jdbcHelper.getDataSource(), DbType.DERBY,
+                Arrays.asList(missing)).failureBackoff(60_000);
+        DbUtils.setReplicaRouter(jdbcHelper, router);
+        check("router-primary".equals(whereReadRuns(jdbcHelper)), "read on the primary when the replica fails");
+        check("router-primary".equals(whereReadRuns(jdbcHelper)), "read on the primary during the backoff");
+        check(missing.connections == 1, "failed replica not retried during the backoff, tried " +
+                missing.connections + " times");
+
+        router.failureBackoff(0);
+        whereReadRuns(jdbcHelper);
+        check(missing.connections == 2, "failed replica retried after the backoff, tried " + missing.connections +
+                " times");
+    }
+
+    private void skipsLaggingReplicas(JdbcHelper jdbcHelper, EmbeddedDataSource replica1,
+            EmbeddedDataSource replica2) throws SQLException {
+        Map<String, Long> lags = new HashMap<>();
+        lags.put("router-replica1", 10_000L);
+        lags.put("router-replica2", 0L);
+        ReplicaRouter router = new ReplicaRouter(jdbcHelper.getDataSource(), DbType.DERBY,
+                Arrays.asList(replica1, replica2)) {
+            @Override
+            protected long measureLagMillis(Connection conn) throws SQLException {
+                return lags.get(name(conn));
+            }
+        }.maxLag(1000).lagCheckInterval(0);
+        DbUtils.setReplicaRouter(jdbcHelper, router);
+        for (int i = 0; i < 3; i++) {
+            check("router-replica2".equals(whereReadRuns(jdbcHelper)), "reads skip the lagging replica");
+        }
+        lags.put("router-replica2", 5000L);
+        check("router-primary".equals(whereReadRuns(jdbcHelper)), "read on the primary when all replicas lag");
+        lags.put("router-replica1", 0L);
+        check("router-replica1".equals(whereReadRuns(jdbcHelper)), "caught up replica used again");
+    }
+
+    private static String whereReadRuns(JdbcHelper jdbcHelper) throws SQLException {
+        return DbUtils.withReadOnlyConnection(jdbcHelper, ReplicaRouterTest::name);
+    }
+
+    private static String name(Connection conn) throws SQLException {
+        try (Statement stmt = conn.createStatement(); ResultSet rs = stmt.executeQuery("SELECT NAME FROM DB_NAME")) {
+            rs.next();
+            return rs.getString(1);
+        }
+    }
+
+    private static EmbeddedDataSource dataSource(String name) throws SQLException {
+        EmbeddedDataSource dataSource = new EmbeddedDataSource();
+        dataSource.setDatabaseName("memory:" + name);
+        dataSource.setCreateDatabase("create");
+        try (Connection conn = dataSource.getConnection(); Statement stmt = conn.createStatement()) {
+            stmt.execute("CREATE TABLE DB_NAME (NAME VARCHAR(50))");
+            stmt.execute("INSERT INTO DB_NAME VALUES ('" + name + "')");
+        }
+        return dataSource;
+    }
+
+    private void check(boolean condition, String description) {
+        if (!condition) {
+            throw new AssertionError("Failed: " + description);
+        }
+        checks++;
+    }
+
+    /**
+     * A replica whose database doesn't exist, counting the connections asked of it.
+     */
+    private static class CountingDataSource extends EmbeddedDataSource {
+        private int connections;
+
+        @Override
+        public Connection getConnection() throws SQLException {
+            connections++;
+            return super.getConnection();
+        }
+    }
+}
@@ -0,0 +1,267 @@
+/*
+ *
+ * Artifactory is a binaries repository manager.
+ * Copyright (C) 2016 JFrog Ltd.
+ *
+ * Artifactory is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ * Artifactory is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with Artifactory.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+// In the package of the code under test, SqlScriptReader is package-private
+package org.jfrog.storage.util;
+
+import org.apache.derby.jdbc.EmbeddedDataSource;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.StringReader;
+import java.lang.reflect.Proxy;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Enumeration;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+import java.util.stream.Collectors;
+
+/**
+ * Checks that {@link SqlScriptReader} splits the conversion scripts like {@link DbStatementUtils#executeSqlStream}
+ * does, and that {@link SqlScriptExecutor} batches in auto-commit mode and stops at the first failing statement.
+ * <p>
+ * The scripts compared are the {@code .sql} entries of the jars on the class path, of the jars, directories and files
+ * given as arguments, and a few samples written like the Artifactory conversion scripts. The statements
+ * {@link DbStatementUtils} executes are recorded through a connection that runs nothing, and compared to the reader's
+ * ignoring whitespace, since one joins lines with a space and the other keeps the line breaks. Only needs the jars
+ * already shipped in the access webapp, see run-tests.sh. Fails with the first check that doesn't hold.
+ */
+public class SqlScriptTest {
+
+    private static final String[] SAMPLES = {
+            "CREATE TABLE nodes (\n" +
+                    "  node_id BIGINT NOT NULL,\n" +
+                    "  node_name VARCHAR(1024) NOT NULL,\n" +
+                    "  CONSTRAINT nodes_pk PRIMARY KEY (node_id)\n" +
+                    ");\n" +
+                    "CREATE INDEX nodes_name_idx ON nodes (node_name);\n",
+            "-- Conversion of the properties table\n" +
+                    "# MySQL style comment\n" +
+                    "ALTER TABLE node_props ADD COLUMN prop_value_long VARCHAR(4000);\n" +
+                    "\n" +
+                    "UPDATE node_props SET prop_value_long = prop_value\n" +
+                    "# a comment inside the statement\n" +
+                    "  WHERE prop_value IS NOT NULL;\n" +
+                    "INSERT INTO unique_ids (index_type, current_id) VALUES ('general', 1);\n" +
+                    "INSERT INTO db_properties VALUES ('-- not a comment', 'it''s quoted');\n",
+            "ALTER TABLE nodes ADD sha256 CHAR(64);\n" +
+                    "ALTER TABLE nodes ADD repo_path_checksum CHAR(40)"
+    };
+
+    private int checks;
+
+    public static void main(String[] args) throws Exception {
+        new SqlScriptTest().run(args);
+    }
+
+    private void run(String[] args) throws Exception {
+        Map<String, byte[]> scripts = new LinkedHashMap<>();
+        for (int i = 0; i < SAMPLES.length; i++) {
+            scripts.put("sample " + (i + 1), SAMPLES[i].getBytes(StandardCharsets.UTF_8));
+        }
+        for (String entry : System.getProperty("java.class.path").split(File.pathSeparator)) {
+            if (entry.endsWith(".jar")) {
+                addScripts(new File(entry), scripts);
+            }
+        }
+        for (String arg : args) {
+            addScripts(new File(arg), scripts);
+        }
+        for (Map.Entry<String, byte[]> script : scripts.entrySet()) {
+            readsLikeDbStatementUtils(script.getKey(), script.getValue());
+        }
+        System.out.println(scripts.size() + " scripts split alike");
+
+        EmbeddedDataSource dataSource = new EmbeddedDataSource();
+        dataSource.setDatabaseName("memory:sql-script");
+        dataSource.setCreateDatabase("create");
+        try (Connection conn = dataSource.getConnection()) {
+            batchesInAutoCommit(conn);
+            stopsAtTheFirstFailingStatement(conn);
+        } finally {
+            DbUtils.closeDataSource(dataSource);
+        }
+        System.out.println(checks + " checks passed");
+    }
+
+    private void readsLikeDbStatementUtils(String name, byte[] script) throws IOException, SQLException {
+        List<String> recorded = new ArrayList<>();
+        DbStatementUtils.executeSqlStream(recordingConnection(recorded), new ByteArrayInputStream(script));
+        List<String> read = new ArrayList<>();
+        SqlScriptReader reader = new SqlScriptReader(
+                new StringReader(new String(script, StandardCharsets.UTF_8)), ';');
+        ScriptStatement statement;
+        while ((statement = reader.next()) != null) {
+            read.add(statement.getSql());
+        }
+        check(normalize(read).equals(normalize(recorded)),
+                name + " split alike, DbStatementUtils: " + recorded + ", SqlScriptReader: " + read);
+    }
+
+    private void batchesInAutoCommit(Connection conn) throws SQLException, IOException {
+        execute(conn, "CREATE TABLE script_rows (id INT NOT NULL PRIMARY KEY)");
+        List<Integer> batchSizes = new ArrayList<>();
+        conn.setAutoCommit(true);
+        new SqlScriptExecutor().batchSize(3)
+                .listener((statement, nanos, batchSize) -> batchSizes.add(batchSize))
+                .execute(conn, script("INSERT INTO script_rows VALUES (1);\n" +
+                        "INSERT INTO script_rows VALUES (2);\n" +
+                        "INSERT INTO script_rows VALUES (3);\n" +
+                        "INSERT INTO script_rows VALUES (4);\n"));
+        check(batchSizes.equals(listOf(3, 3, 3, 1)), "DML batched in auto-commit mode, got " + batchSizes);
+        check(conn.getAutoCommit(), "auto-commit restored after the batches");
+        check(count(conn) == 4, "all rows inserted");
+    }
+
+    private void stopsAtTheFirstFailingStatement(Connection conn) throws SQLException, IOException {
+        execute(conn, "DELETE FROM script_rows");
+        List<Integer> executed = new ArrayList<>();
+        SQLException failure = null;
+        try {
+            new SqlScriptExecutor().batchSize(10)
+                    .listener((statement, nanos, batchSize) -> executed.add(statement.getIndex()))
+                    .execute(conn, script("INSERT INTO script_rows VALUES (1);\n" +
+                            "INSERT INTO script_rows VALUES (2);\n" +
+                            "INSERT INTO script_rows VALUES (1);\n" +
+                            "INSERT INTO script_rows VALUES (3);\n"));
+        } catch (SQLException e) {
+            failure = e;
+        }
+        check(failure != null, "duplicate key fails the script");
+        check(executed.equals(listOf(1, 2)), "statements before the failure replayed alone, got " + executed);
+        check(count(conn) == 2, "nothing after the failing statement ran, got " + count(conn) + " rows");
+        check(conn.getAutoCommit(), "auto-commit restored after the failed batch");
+    }
+
+    private static Connection recordingConnection(List<String> recorded) {
+        Statement statement = (Statement) Proxy.newProxyInstance(SqlScriptTest.class.getClassLoader(),
+                new Class[]{Statement.class}, (proxy, method, args) -> {
+                    if (method.getName().startsWith("execute") && args != null && args[0] instanceof String) {
+                        recorded.add((String) args[0]);
+                    }
+                    return defaultValue(method.getReturnType());
+                });
+        return (Connection) Proxy.newProxyInstance(SqlScriptTest.class.getClassLoader(),
+                new Class[]{Connection.class}, (proxy, method, args) -> {
+                    switch (method.getName()) {
+                        case "createStatement":
+                            return statement;
+                        case "getAutoCommit":
+                            return true;
+                        default:
+                            return defaultValue(method.getReturnType());
+                    }
+                });
+    }
+
+    private static Object defaultValue(Class<?> type) {
+        if (type == boolean.class) {
+            return false;
+        }
+        if (type == int.class) {
+            return 0;
+        }
+        if (type == long.class) {
+            return 0L;
+        }
+        return null;
+    }
+
+    private static void addScripts(File file, Map<String, byte[]> scripts) throws IOException {
+        if (file.isDirectory()) {
+            File[] children = file.listFiles();
+            if (children != null) {
+                for (File child : children) {
+                    addScripts(child, scripts);
+                }
+            }
+        } else if (file.getName().endsWith(".sql")) {
+            scripts.put(file.getPath(), Files.readAllBytes(file.toPath()));
+        } else if (file.getName().endsWith(".jar") && file.isFile()) {
+            try (JarFile jar = new JarFile(file)) {
+                Enumeration<JarEntry> entries = jar.entries();
+                while (entries.hasMoreElements()) {
+                    JarEntry entry = entries.nextElement();
+                    if (entry.getName().endsWith(".sql")) {
+                        try (InputStream in = jar.getInputStream(entry)) {
+                            scripts.put(file.getName() + "!/" + entry.getName(), readAll(in));
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    private static byte[] readAll(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int read;
+        while ((read = in.read(buffer)) != -1) {
+            out.write(buffer, 0, read);
+        }
+        return out.toByteArray();
+    }
+
+    private static List<String> normalize(List<String> statements) {
+        return statements.stream().map(sql -> sql.replaceAll("\\s+", "")).collect(Collectors.toList());
+    }
+
+    private static InputStream script(String script) {
+        return new ByteArrayInputStream(script.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static List<Integer> listOf(Integer... values) {
+        return Arrays.asList(values);
+    }
+
+    private static void execute(Connection conn, String sql) throws SQLException {
+        try (Statement stmt = conn.createStatement()) {
+            stmt.execute(sql);
+        }
+    }
+
+    private static int count(Connection conn) throws SQLException {
+        try (Statement stmt = conn.createStatement();
+             ResultSet rs = stmt.executeQuery("SELECT COUNT(*) FROM script_rows")) {
+            rs.next();
+            return rs.getInt(1);
+        }
+    }
+
+    private void check(boolean condition, String description) {
+        if (!condition) {
+            throw new AssertionError("Failed: " + description);
+        }
+        checks++;
+    }
+}
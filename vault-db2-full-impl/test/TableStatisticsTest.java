@@ -0,0 +1,185 @@
+/*
+ *
+ * Artifactory is a binaries repository manager.
+ * Copyright (C) 2016 JFrog Ltd.
+ *
+ * Artifactory is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ * Artifactory is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with Artifactory.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package org.jfrog.storage.test;
+
+import org.apache.derby.jdbc.EmbeddedDataSource;
+import org.jfrog.storage.DbType;
+import org.jfrog.storage.JdbcHelper;
+import org.jfrog.storage.util.DbUtils;
+import org.jfrog.storage.util.TableStatistics;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Checks the {@link TableStatistics} report against an in-memory Derby database: the tables it lists, the counted
+ * rows and allocated bytes, and how the report is cached and shared.
+ * <p>
+ * Only needs the jars already shipped in the access webapp, see run-tests.sh. Fails with the first check that
+ * doesn't hold.
+ */
+public class TableStatisticsTest {
+
+    private static final int ROWS = 500;
+
+    private int checks;
+
+    public static void main(String[] args) throws Exception {
+        new TableStatisticsTest().run();
+    }
+
+    private void run() throws Exception {
+        EmbeddedDataSource dataSource = new EmbeddedDataSource();
+        dataSource.setDatabaseName("memory:table-statistics");
+        dataSource.setCreateDatabase("create");
+        createSchema(dataSource);
+        JdbcHelper jdbcHelper = new JdbcHelper(dataSource);
+        try {
+            reportsEveryTable(jdbcHelper);
+            keepsTheReportForItsTimeToLive(jdbcHelper);
+            concurrentFirstCallsShareOneCollection(jdbcHelper);
+            refreshesAnExpiredReportInTheBackground(jdbcHelper);
+        } finally {
+            DbUtils.closeDataSource(dataSource);
+        }
+        System.out.println(checks + " checks passed");
+    }
+
+    private void reportsEveryTable(JdbcHelper jdbcHelper) throws SQLException {
+        TableStatistics.Report report = DbUtils.getTableStatistics(jdbcHelper, DbType.DERBY);
+        check(report.getDbType() == DbType.DERBY, "report of the database type");
+        check(report.getTables().size() == 3, "three tables reported, got " + report.getTables());
+
+        TableStatistics.TableStats nodes = report.getTable("NODES");
+        check(nodes != null, "NODES reported");
+        check(nodes.getRows() == ROWS, "NODES rows counted, got " + nodes.getRows());
+        check(nodes.isExact(), "Derby rows are exact");
+        check(nodes.getDataBytes() > 0, "NODES data bytes, got " + nodes.getDataBytes());
+        check(nodes.getIndexBytes() > 0, "NODES index bytes, got " + nodes.getIndexBytes());
+
+        TableStatistics.TableStats empty = report.getTable("EMPTY_TABLE");
+        check(empty != null && empty.getRows() == 0, "empty table has no rows, got " + empty);
+        check(empty.getIndexBytes() == 0, "table without index has no index bytes, got " + empty);
+
+        TableStatistics.TableStats mixedCase = report.getTable("Mixed Case");
+        check(mixedCase != null && mixedCase.getRows() == 2, "quoted table counted, got " + mixedCase);
+
+        check(report.getTable("NO_SUCH_TABLE") == null, "unknown table not reported");
+        check(report.getTotalRows() == ROWS + 2, "total rows, got " + report.getTotalRows());
+        check(report.getTotalBytes() >= nodes.getDataBytes() + nodes.getIndexBytes(),
+                "total bytes, got " + report.getTotalBytes());
+        check(DbUtils.getTableStatistics(jdbcHelper, DbType.DERBY) == report, "shared report of the data source");
+    }
+
+    private void keepsTheReportForItsTimeToLive(JdbcHelper jdbcHelper) throws SQLException {
+        TableStatistics statistics = new TableStatistics(jdbcHelper, DbType.DERBY).ttl(1, TimeUnit.HOURS);
+        TableStatistics.Report report = statistics.getReport();
+        execute(jdbcHelper, "INSERT INTO EMPTY_TABLE (ID) VALUES (1)");
+        try {
+            check(statistics.getReport() == report, "cached report returned within its time to live");
+            TableStatistics.Report refreshed = statistics.refresh();
+            check(refreshed != report, "refresh collects a new report");
+            check(refreshed.getTable("EMPTY_TABLE").getRows() == 1, "refreshed report sees the new row");
+            check(statistics.getReport() == refreshed, "refreshed report cached");
+        } finally {
+            execute(jdbcHelper, "DELETE FROM EMPTY_TABLE");
+        }
+    }
+
+    private void concurrentFirstCallsShareOneCollection(JdbcHelper jdbcHelper) throws Exception {
+        TableStatistics statistics = new TableStatistics(jdbcHelper, DbType.DERBY);
+        int threads = 8;
+        CountDownLatch start = new CountDownLatch(1);
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<TableStatistics.Report>> reports = new ArrayList<>();
+            for (int i = 0; i < threads; i++) {
+                reports.add(executor.submit((Callable<TableStatistics.Report>) () -> {
+                    start.await();
+                    return statistics.getReport();
+                }));
+            }
+            start.countDown();
+            TableStatistics.Report first = reports.get(0).get(1, TimeUnit.MINUTES);
+            for (Future<TableStatistics.Report> report : reports) {
+                check(report.get(1, TimeUnit.MINUTES) == first, "concurrent first calls get the same report");
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private void refreshesAnExpiredReportInTheBackground(JdbcHelper jdbcHelper) throws Exception {
+        TableStatistics statistics = new TableStatistics(jdbcHelper, DbType.DERBY).ttl(0, TimeUnit.MILLISECONDS);
+        TableStatistics.Report expired = statistics.getReport();
+        check(statistics.getReport() == expired, "expired report still returned");
+        long deadline = System.nanoTime() + TimeUnit.MINUTES.toNanos(1);
+        TableStatistics.Report current = expired;
+        while (current == expired && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+            current = statistics.getReport();
+        }
+        check(current != expired, "expired report replaced by the background collection");
+    }
+
+    private static void createSchema(EmbeddedDataSource dataSource) throws SQLException {
+        try (Connection conn = dataSource.getConnection(); Statement stmt = conn.createStatement()) {
+            stmt.execute("CREATE TABLE NODES (ID BIGINT NOT NULL PRIMARY KEY, NAME VARCHAR(255), SIZE BIGINT)");
+            stmt.execute("CREATE INDEX IDX_NODES_NAME ON NODES (NAME)");
+            stmt.execute("CREATE TABLE EMPTY_TABLE (ID BIGINT)");
+            stmt.execute("CREATE TABLE \"Mixed Case\" (ID BIGINT)");
+            stmt.execute("INSERT INTO \"Mixed Case\" (ID) VALUES (1), (2)");
+            try (PreparedStatement insert = conn.prepareStatement(
+                    "INSERT INTO NODES (ID, NAME, SIZE) VALUES (?, ?, ?)")) {
+                for (int i = 0; i < ROWS; i++) {
+                    insert.setLong(1, i);
+                    insert.setString(2, "node-" + i);
+                    insert.setLong(3, i * 1024L);
+                    insert.addBatch();
+                }
+                insert.executeBatch();
+            }
+        }
+    }
+
+    private static void execute(JdbcHelper jdbcHelper, String sql) throws SQLException {
+        try (Connection conn = jdbcHelper.getDataSource().getConnection(); Statement stmt = conn.createStatement()) {
+            stmt.execute(sql);
+        }
+    }
+
+    private void check(boolean condition, String description) {
+        if (!condition) {
+            throw new AssertionError("Failed: " + description);
+        }
+        checks++;
+    }
+}
@@ -0,0 +1,22 @@
+#!/bin/bash
+
+# Runs the behaviour tests of the patched storage utilities against embedded Derby databases.
+# Not part of the image: like the benchmark, copy this directory into a running artifactory-db2 container (LIB_DIR
+# defaults to where update-dependencies.sh leaves the patched access jars), or anywhere else point LIB_DIR to a
+# directory with the jfrog-db-infra, derby, slf4j, spring-jdbc and commons-lang jars.
+#
+# Usage: run-tests.sh [jars or directories with more SQL scripts to compare the script readers on]
+
+LIB_DIR=${LIB_DIR:-/opt/jfrog/artifactory/webapps/tmp/WEB-INF/lib}
+BUILD_DIR=$(mktemp -d)
+SCRIPTS=$(realpath -m "$@" 2>/dev/null)
+
+cd "$(dirname "$0")"
+javac -cp "$LIB_DIR/*" -d "$BUILD_DIR" *.java || exit 1
+STATUS=0
+java -cp "$BUILD_DIR:$LIB_DIR/*" org.jfrog.storage.test.TableStatisticsTest || STATUS=1
+java -cp "$BUILD_DIR:$LIB_DIR/*" org.jfrog.storage.test.DataMigratorTest || STATUS=1
+java -cp "$BUILD_DIR:$LIB_DIR/*" org.jfrog.storage.test.ReplicaRouterTest || STATUS=1
+java -cp "$BUILD_DIR:$LIB_DIR/*" org.jfrog.storage.util.SqlScriptTest $SCRIPTS || STATUS=1
+rm -rf "$BUILD_DIR"
+exit $STATUS
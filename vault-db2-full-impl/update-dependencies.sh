@@ -10,10 +10,11 @@ rm -rf access.war
 cd WEB-INF/lib
 jar -uvf jfrog-db-infra-3.12.0.jar org/jfrog/storage/DbType.class
 cd ../../..
-javac DbUtils.java -cp /opt/jfrog/artifactory/webapps/tmp/WEB-INF/lib/jfrog-db-infra-3.12.0.jar:/opt/jfrog/artifactory/webapps/tmp/WEB-INF/lib/lombok-1.18.2.jar:/opt/jfrog/artifactory/webapps/tmp/WEB-INF/lib/slf4j-api-1.7.26.jar:/opt/jfrog/artifactory/webapps/tmp/WEB-INF/lib/spring-jdbc-5.1.15.RELEASE.jar:/opt/jfrog/artifactory/webapps/tmp/WEB-INF/lib/javax.annotation-api-1.3.2.jar:/opt/jfrog/artifactory/webapps/tmp/WEB-INF/lib/commons-lang-2.6.jar:/opt/jfrog/artifactory/webapps/tmp/WEB-INF/lib/jsr305-2.0.0.jar -d tmp/WEB-INF/lib/
+javac DbUtils.java SchemaSnapshot.java SchemaSnapshotCache.java ConnectionProfile.java Db2Catalog.java SchemaExpectation.java ConnectionMetrics.java HistogramConnectionMetrics.java ConnectionLease.java ScriptStatement.java SqlScriptReader.java SqlScriptExecutor.java StreamingQuery.java ResultSetExporter.java BlobStreams.java BulkWriter.java MigrationCheckpoints.java DataMigrator.java ConnectionScope.java AsyncDbHelper.java ReplicaRouter.java SqlErrorClass.java RetryPolicy.java DbEvents.java SchemaDiff.java ConversionScheduler.java StatementCache.java PoolWarmer.java TableStatistics.java -cp /opt/jfrog/artifactory/webapps/tmp/WEB-INF/lib/jfrog-db-infra-3.12.0.jar:/opt/jfrog/artifactory/webapps/tmp/WEB-INF/lib/lombok-1.18.2.jar:/opt/jfrog/artifactory/webapps/tmp/WEB-INF/lib/slf4j-api-1.7.26.jar:/opt/jfrog/artifactory/webapps/tmp/WEB-INF/lib/spring-jdbc-5.1.15.RELEASE.jar:/opt/jfrog/artifactory/webapps/tmp/WEB-INF/lib/javax.annotation-api-1.3.2.jar:/opt/jfrog/artifactory/webapps/tmp/WEB-INF/lib/commons-lang-2.6.jar:/opt/jfrog/artifactory/webapps/tmp/WEB-INF/lib/jsr305-2.0.0.jar -d tmp/WEB-INF/lib/
+# Flight Recorder events need jdk.jfr, without it DbUtils runs with events disabled
+javac JfrDbEventRecorder.java -cp /opt/jfrog/artifactory/webapps/tmp/WEB-INF/lib/:/opt/jfrog/artifactory/webapps/tmp/WEB-INF/lib/jfrog-db-infra-3.12.0.jar:/opt/jfrog/artifactory/webapps/tmp/WEB-INF/lib/lombok-1.18.2.jar:/opt/jfrog/artifactory/webapps/tmp/WEB-INF/lib/slf4j-api-1.7.26.jar:/opt/jfrog/artifactory/webapps/tmp/WEB-INF/lib/spring-jdbc-5.1.15.RELEASE.jar:/opt/jfrog/artifactory/webapps/tmp/WEB-INF/lib/javax.annotation-api-1.3.2.jar:/opt/jfrog/artifactory/webapps/tmp/WEB-INF/lib/commons-lang-2.6.jar:/opt/jfrog/artifactory/webapps/tmp/WEB-INF/lib/jsr305-2.0.0.jar -d tmp/WEB-INF/lib/ || echo "jdk.jfr is not available, skipping DbUtils Flight Recorder events"
 cd tmp/WEB-INF/lib
-jar uvf jfrog-db-infra-3.12.0.jar org/jfrog/storage/util/DbUtils.class
-jar uvf jfrog-db-infra-3.12.0.jar org/jfrog/storage/util/DbUtils\$1.class
+jar uvf jfrog-db-infra-3.12.0.jar org/jfrog/storage/util/*.class
 mv org ../../../
 cd ../..
 jar -cvf access.war *